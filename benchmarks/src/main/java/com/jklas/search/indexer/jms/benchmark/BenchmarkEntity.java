@@ -0,0 +1,78 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms.benchmark;
+
+import java.io.Serializable;
+
+import com.jklas.search.annotations.Indexable;
+import com.jklas.search.annotations.SearchField;
+import com.jklas.search.annotations.SearchId;
+import com.jklas.search.exception.SearchEngineMappingException;
+import com.jklas.search.index.dto.IndexObjectDto;
+import com.jklas.search.indexer.IndexerAction;
+import com.jklas.search.indexer.jms.JmsIndexPDU;
+import com.jklas.search.util.SearchLibrary;
+
+@Indexable
+public class BenchmarkEntity implements Serializable {
+
+	private static final long serialVersionUID = -2281532934591837205L;
+
+	@SearchId
+	private int id;
+
+	@SearchField
+	private String name;
+
+	@SearchField
+	private String description;
+
+	public BenchmarkEntity() {}
+
+	public BenchmarkEntity(int id, String name, String description) {
+		this.id = id;
+		this.name = name;
+		this.description = description;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public static void map() throws SearchEngineMappingException {
+		SearchLibrary.configureAndMap(BenchmarkEntity.class);
+	}
+
+	public static BenchmarkEntity newEntity(int id) {
+		return new BenchmarkEntity(id, "Julian" + id, "An entity used to benchmark the indexing pipeline, number " + id);
+	}
+
+	public static JmsIndexPDU newPdu(int id) {
+		return new JmsIndexPDU(IndexerAction.CREATE, new IndexObjectDto(newEntity(id), id));
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jklas.search.index.memory.MemoryIndex;
+import com.jklas.search.index.memory.MemoryIndexWriterFactory;
+import com.jklas.search.indexer.DefaultIndexerService;
+import com.jklas.search.indexer.jms.JmsOfflineIndexerConsumer;
+import com.jklas.search.indexer.jms.JmsOfflineIndexerProducer;
+import com.jklas.search.indexer.pipeline.DefaultIndexingPipeline;
+
+/**
+ * Operations per second a consumer receives and indexes into a
+ * <code>MemoryIndex</code> through <code>DefaultIndexerService</code>.
+ * Every invocation first fills the queue, then consumes it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(ConsumerIndexBenchmark.MESSAGES)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConsumerIndexBenchmark {
+
+	static final int MESSAGES = 1000;
+
+	@Param({"1", "100"})
+	private int bulkSize;
+
+	private EmbeddedBroker broker;
+
+	private JmsOfflineIndexerProducer producer;
+
+	@Setup
+	public void setup() throws Exception {
+		BenchmarkEntity.map();
+
+		broker = new EmbeddedBroker(false);
+
+		producer = new JmsOfflineIndexerProducer("benchmark-producer", broker.getConnectionFactory());
+		producer.startup();
+	}
+
+	@Setup(Level.Invocation)
+	public void fillQueue() {
+		MemoryIndex.newDefaultIndex();
+
+		for (int i = 0; i < MESSAGES; i++) {
+			producer.send(BenchmarkEntity.newPdu(i));
+		}
+	}
+
+	@Benchmark
+	public int receiveAndIndex() {
+		JmsOfflineIndexerConsumer consumer = new JmsOfflineIndexerConsumer("benchmark-consumer", broker.getConnectionFactory(),
+				new DefaultIndexerService(
+						new DefaultIndexingPipeline(),
+						MemoryIndexWriterFactory.getInstance()));
+		consumer.setBulkSize(bulkSize);
+		consumer.stopWhenReceivedCountReaches(MESSAGES);
+		consumer.run();
+
+		return consumer.getReceivedCount();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		broker.stop();
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms.benchmark;
+
+import java.io.File;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.store.kahadb.KahaDBPersistenceAdapter;
+
+/**
+ * ActiveMQ broker running in the benchmark JVM, reached through the vm
+ * transport. A persistent broker keeps a KahaDB store in a temporary
+ * directory.
+ */
+public class EmbeddedBroker {
+
+	private final BrokerService broker;
+
+	private final ActiveMQConnectionFactory connectionFactory;
+
+	public EmbeddedBroker(boolean persistent) throws Exception {
+		broker = new BrokerService();
+		broker.setBrokerName("benchmark");
+		broker.setUseJmx(false);
+		broker.setPersistent(persistent);
+
+		if(persistent) {
+			File dataDirectory = File.createTempFile("benchmark-broker", "");
+			dataDirectory.delete();
+			broker.setDataDirectoryFile(dataDirectory);
+
+			KahaDBPersistenceAdapter kahaDB = new KahaDBPersistenceAdapter();
+			kahaDB.setDirectory(new File(dataDirectory, "kahadb"));
+			broker.setPersistenceAdapter(kahaDB);
+		}
+
+		broker.start();
+
+		connectionFactory = new ActiveMQConnectionFactory("vm://benchmark?create=false");
+	}
+
+	public ActiveMQConnectionFactory getConnectionFactory() {
+		return connectionFactory;
+	}
+
+	public void stop() throws Exception {
+		broker.stop();
+	}
+}
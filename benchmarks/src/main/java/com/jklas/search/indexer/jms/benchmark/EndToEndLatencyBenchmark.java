@@ -0,0 +1,127 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jklas.search.exception.IndexObjectException;
+import com.jklas.search.index.dto.IndexObjectDto;
+import com.jklas.search.index.memory.MemoryIndex;
+import com.jklas.search.index.memory.MemoryIndexWriterFactory;
+import com.jklas.search.indexer.DefaultIndexerService;
+import com.jklas.search.indexer.jms.JmsOfflineIndexer;
+import com.jklas.search.indexer.jms.JmsOfflineIndexerConsumerPool;
+import com.jklas.search.indexer.jms.JmsOfflineIndexerProducer;
+import com.jklas.search.indexer.pipeline.DefaultIndexingPipeline;
+
+/**
+ * Time from {@link JmsOfflineIndexer#create(IndexObjectDto)} until the
+ * consumer pool indexed the object, one object at a time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EndToEndLatencyBenchmark {
+
+	private EmbeddedBroker broker;
+
+	private JmsOfflineIndexerProducer producer;
+
+	private Thread producerThread;
+
+	private JmsOfflineIndexerConsumerPool consumers;
+
+	private Thread consumersThread;
+
+	private JmsOfflineIndexer offlineIndexer;
+
+	private int sent;
+
+	@Setup
+	public void setup() throws Exception {
+		BenchmarkEntity.map();
+		MemoryIndex.newDefaultIndex();
+
+		broker = new EmbeddedBroker(false);
+
+		producer = new JmsOfflineIndexerProducer("benchmark-producer", broker.getConnectionFactory());
+		producer.stopWhenSentCountReaches(Integer.MAX_VALUE);
+		producerThread = new Thread(producer);
+		producerThread.start();
+
+		consumers = new JmsOfflineIndexerConsumerPool("benchmark-consumers", broker.getConnectionFactory(),
+				new DefaultIndexerService(
+						new DefaultIndexingPipeline(),
+						MemoryIndexWriterFactory.getInstance()));
+		consumers.setWorkerCount(2);
+		consumersThread = new Thread(consumers);
+		consumersThread.start();
+
+		offlineIndexer = new JmsOfflineIndexer(producer);
+	}
+
+	@Benchmark
+	public int createAndWaitUntilIndexed() throws IndexObjectException {
+		int id = sent++;
+		offlineIndexer.create(new IndexObjectDto(BenchmarkEntity.newEntity(id), id));
+
+		while(consumers.getIndexedCount() < sent) {
+			Thread.yield();
+		}
+
+		return id;
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		printLatencyBreakdown();
+
+		producer.setShutdown(true);
+		producerThread.interrupt();
+		producerThread.join();
+
+		consumers.shutdown();
+		consumersThread.join();
+
+		broker.stop();
+	}
+
+	private void printLatencyBreakdown() throws IOException {
+		System.out.println();
+		producer.getMetrics().exportHistograms(System.out);
+		consumers.getMetrics().exportHistograms(System.out);
+	}
+}
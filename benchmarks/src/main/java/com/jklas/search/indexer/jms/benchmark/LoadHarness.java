@@ -0,0 +1,263 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms.benchmark;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jklas.search.index.dto.IndexObjectDto;
+import com.jklas.search.index.memory.MemoryIndex;
+import com.jklas.search.index.memory.MemoryIndexWriterFactory;
+import com.jklas.search.indexer.DefaultIndexerService;
+import com.jklas.search.indexer.Utils;
+import com.jklas.search.indexer.jms.Histogram;
+import com.jklas.search.indexer.jms.JmsOfflineIndexer;
+import com.jklas.search.indexer.jms.JmsOfflineIndexerConsumerPool;
+import com.jklas.search.indexer.jms.JmsOfflineIndexerProducer;
+import com.jklas.search.indexer.pipeline.DefaultIndexingPipeline;
+
+/**
+ * Soak test: pushes a large number of <code>SingleAttributeEntity</code> and
+ * <code>DoubleAttributeEntity</code> objects from several producers through
+ * an embedded broker to a consumer pool, then reports throughput, latency
+ * and heap/GC figures and checks that every object was indexed exactly
+ * once.
+ * <p>
+ * Options are given as <code>name=value</code> arguments; see
+ * {@link #DEFAULTS}. Exits with status 1 when objects were lost or
+ * indexed more than once.
+ */
+public class LoadHarness {
+
+	private static final int MESSAGE_GROUPS = 16;
+
+	private static final String[][] DEFAULTS = {
+		{"objects", "1000000"},
+		{"producers", "2"},
+		{"receivers", "2"},
+		{"workers", "4"},
+		{"persistent", "false"},
+		{"batchSize", "100"},
+		{"bulkSize", "100"},
+		{"queueCapacity", "10000"},
+		{"stallSeconds", "30"},
+	};
+
+	private final Map<String, String> options;
+
+	private final int objects;
+
+	private final int producerCount;
+
+	public LoadHarness(Map<String, String> options) {
+		this.options = options;
+		this.objects = intOption("objects");
+		this.producerCount = intOption("producers");
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String[] option : DEFAULTS) {
+			options.put(option[0], option[1]);
+		}
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if(separator < 0 || !options.containsKey(arg.substring(0, separator))) {
+				System.err.println("Unknown option " + arg);
+				System.exit(2);
+			}
+			options.put(arg.substring(0, separator), arg.substring(separator + 1));
+		}
+
+		boolean passed = new LoadHarness(options).run();
+		System.exit(passed ? 0 : 1);
+	}
+
+	public boolean run() throws Exception {
+		Utils.configureAndMap(Utils.SingleAttributeEntity.class);
+		Utils.configureAndMap(Utils.DoubleAttributeEntity.class);
+		MemoryIndex.newDefaultIndex();
+
+		EmbeddedBroker broker = new EmbeddedBroker(Boolean.parseBoolean(options.get("persistent")));
+
+		VerifyingIndexerService indexerService = new VerifyingIndexerService(
+				new DefaultIndexerService(
+						new DefaultIndexingPipeline(),
+						MemoryIndexWriterFactory.getInstance()));
+
+		JmsOfflineIndexerConsumerPool consumers = new JmsOfflineIndexerConsumerPool("load-consumers", broker.getConnectionFactory(), indexerService);
+		consumers.setReceiverCount(intOption("receivers"));
+		consumers.setMessageGroups(true);
+		consumers.setWorkerCount(intOption("workers"));
+		consumers.setBulkSize(intOption("bulkSize"));
+		consumers.setBulkTimeoutMillis(10);
+		consumers.setAckMode("CLIENT_ACKNOWLEDGE");
+		Thread consumersThread = consumers.start();
+
+		long gcCountBefore = gcCount();
+		long gcMillisBefore = gcMillis();
+		resetPeakHeap();
+		long start = System.currentTimeMillis();
+
+		List<JmsOfflineIndexerProducer> producers = new ArrayList<JmsOfflineIndexerProducer>();
+		List<Thread> producerThreads = new ArrayList<Thread>();
+		List<Thread> feederThreads = new ArrayList<Thread>();
+
+		for (int p = 0; p < producerCount; p++) {
+			JmsOfflineIndexerProducer producer = new JmsOfflineIndexerProducer("load-producer-" + p, broker.getConnectionFactory(), intOption("queueCapacity"));
+			producer.setPersistent(Boolean.parseBoolean(options.get("persistent")));
+			producer.setBatchSize(intOption("batchSize"));
+			producer.setBatchLingerMillis(5);
+			producer.setMessageGroupCount(MESSAGE_GROUPS);
+			producers.add(producer);
+
+			Thread producerThread = new Thread(producer, "load-producer-" + p);
+			producerThread.start();
+			producerThreads.add(producerThread);
+
+			Thread feederThread = new Thread(feeder(new JmsOfflineIndexer(producer), p), "load-feeder-" + p);
+			feederThread.start();
+			feederThreads.add(feederThread);
+		}
+
+		for (int p = 0; p < producerCount; p++) {
+			feederThreads.get(p).join();
+			producers.get(p).stopWhenDrained();
+			producerThreads.get(p).join();
+		}
+		long sentAt = System.currentTimeMillis();
+
+		awaitIndexed(consumers);
+		long end = System.currentTimeMillis();
+
+		consumers.shutdown();
+		consumersThread.join();
+		broker.stop();
+
+		int sent = 0;
+		for (JmsOfflineIndexerProducer producer : producers) {
+			sent += producer.getSentCount();
+		}
+
+		long indexed = MemoryIndex.getDefaultIndex().getObjectCount();
+		long lost = objects - indexerService.getDistinctCount();
+		long duplicated = indexerService.getDuplicateCount();
+
+		Histogram endToEnd = consumers.getMetrics().histogram("latencyMicros.endToEndPerMessage");
+
+		System.out.println("options            " + options);
+		System.out.println("sent               " + sent + " in " + (sentAt - start) + " ms");
+		System.out.println("indexed            " + indexed + " in " + (end - start) + " ms");
+		System.out.println("throughput         " + (objects * 1000L / Math.max(1, end - start)) + " ops/s");
+		System.out.println("latency/msg (us)   p50=" + endToEnd.getMedian() + " p99=" + endToEnd.get99thPercentile() + " p999=" + endToEnd.get999thPercentile() + " max=" + endToEnd.getMax());
+		System.out.println("gc                 " + (gcCount() - gcCountBefore) + " collections, " + (gcMillis() - gcMillisBefore) + " ms");
+		System.out.println("peak heap          " + peakHeap() / (1024 * 1024) + " MB");
+		System.out.println("lost               " + lost);
+		System.out.println("duplicated         " + duplicated);
+
+		boolean passed = sent == objects && indexed == objects && lost == 0 && duplicated == 0;
+		System.out.println(passed ? "PASSED" : "FAILED");
+		return passed;
+	}
+
+	/**
+	 * Creates the share of objects of producer <code>p</code>, alternating
+	 * both entity classes.
+	 */
+	private Runnable feeder(final JmsOfflineIndexer offlineIndexer, final int p) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int id = p; id < objects; id += producerCount) {
+						Object entity = id % 2 == 0
+							? new Utils.SingleAttributeEntity(id, "Julian" + id)
+							: new Utils.DoubleAttributeEntity(id, "Julian" + id, "Klas" + id);
+						offlineIndexer.create(new IndexObjectDto(entity, id));
+					}
+				} catch (Exception e) {
+					throw new RuntimeException("Feeder " + p + " failed", e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Waits until every object was indexed, or until the consumers made no
+	 * progress for <code>stallSeconds</code>.
+	 */
+	private void awaitIndexed(JmsOfflineIndexerConsumerPool consumers) throws InterruptedException {
+		long stallMillis = intOption("stallSeconds") * 1000L;
+		int lastIndexed = -1;
+		long lastProgress = System.currentTimeMillis();
+
+		while(consumers.getIndexedCount() < objects) {
+			int indexed = consumers.getIndexedCount();
+			if(indexed != lastIndexed) {
+				lastIndexed = indexed;
+				lastProgress = System.currentTimeMillis();
+			} else if(System.currentTimeMillis() - lastProgress > stallMillis) {
+				System.out.println("consumers stalled at " + indexed + " operations");
+				return;
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	private int intOption(String name) {
+		return Integer.parseInt(options.get(name));
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return millis;
+	}
+
+	private static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+		}
+	}
+
+	private static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+}
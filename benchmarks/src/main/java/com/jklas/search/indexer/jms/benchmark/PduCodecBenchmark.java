@@ -0,0 +1,98 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jklas.search.indexer.jms.JmsIndexBatchPDU;
+import com.jklas.search.indexer.jms.JmsIndexCodec;
+import com.jklas.search.indexer.jms.JmsIndexCodecs;
+import com.jklas.search.indexer.jms.JmsIndexPDU;
+
+/**
+ * Cost of encoding and decoding a PDU, or a batch of them, with each codec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PduCodecBenchmark {
+
+	@Param({"java", "binary"})
+	private String codecName;
+
+	@Param({"1", "100"})
+	private int batchSize;
+
+	private JmsIndexCodec codec;
+
+	private Serializable payload;
+
+	private byte[] encoded;
+
+	@Setup
+	public void setup() throws IOException {
+		codec = JmsIndexCodecs.forName(codecName);
+
+		if(batchSize == 1) {
+			payload = BenchmarkEntity.newPdu(0);
+		} else {
+			List<JmsIndexPDU> pdus = new ArrayList<JmsIndexPDU>(batchSize);
+			for (int i = 0; i < batchSize; i++) {
+				pdus.add(BenchmarkEntity.newPdu(i));
+			}
+			payload = new JmsIndexBatchPDU(pdus);
+		}
+
+		encoded = encode();
+	}
+
+	@Benchmark
+	public byte[] encode() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		codec.encode(payload, out);
+		return out.toByteArray();
+	}
+
+	@Benchmark
+	public Serializable decode() throws IOException {
+		return codec.decode(new ByteArrayInputStream(encoded));
+	}
+}
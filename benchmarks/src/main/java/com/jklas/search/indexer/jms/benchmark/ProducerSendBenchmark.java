@@ -0,0 +1,98 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jklas.search.indexer.jms.JmsIndexPDU;
+import com.jklas.search.indexer.jms.JmsOfflineIndexerConsumer;
+import com.jklas.search.indexer.jms.JmsOfflineIndexerProducer;
+
+/**
+ * Messages per second a single producer sends to the embedded broker. A
+ * consumer that doesn't index drains the queue so the broker never
+ * throttles the producer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProducerSendBenchmark {
+
+	@Param({"false", "true"})
+	private boolean persistent;
+
+	@Param({"false", "true"})
+	private boolean transacted;
+
+	private EmbeddedBroker broker;
+
+	private JmsOfflineIndexerProducer producer;
+
+	private JmsOfflineIndexerConsumer drain;
+
+	private Thread drainThread;
+
+	private JmsIndexPDU pdu;
+
+	@Setup
+	public void setup() throws Exception {
+		broker = new EmbeddedBroker(persistent);
+
+		producer = new JmsOfflineIndexerProducer("benchmark-producer", broker.getConnectionFactory());
+		producer.setPersistent(persistent);
+		producer.setTransacted(transacted);
+		producer.startup();
+
+		drain = new JmsOfflineIndexerConsumer("benchmark-drain", broker.getConnectionFactory());
+		drain.stopWhenReceivedCountReaches(Integer.MAX_VALUE);
+		drainThread = new Thread(drain);
+		drainThread.start();
+
+		pdu = BenchmarkEntity.newPdu(0);
+	}
+
+	@Benchmark
+	public void send() {
+		producer.send(pdu);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		drain.shutdown();
+		drainThread.join();
+		broker.stop();
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms.benchmark;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jklas.search.exception.IndexObjectException;
+import com.jklas.search.index.dto.IndexObjectDto;
+import com.jklas.search.indexer.IndexerService;
+import com.jklas.search.indexer.jms.EntityKey;
+
+/**
+ * Delegates to another {@link IndexerService}, remembering every entity it
+ * was asked to index so duplicated operations can be told apart from lost
+ * ones.
+ */
+public class VerifyingIndexerService implements IndexerService {
+
+	private final IndexerService delegate;
+
+	private final Set<EntityKey> seen = Collections.newSetFromMap(new ConcurrentHashMap<EntityKey, Boolean>());
+
+	private final AtomicLong duplicateCount = new AtomicLong();
+
+	public VerifyingIndexerService(IndexerService delegate) {
+		this.delegate = delegate;
+	}
+
+	private void record(IndexObjectDto dto) {
+		if(!seen.add(EntityKey.of(dto))) {
+			duplicateCount.incrementAndGet();
+		}
+	}
+
+	private void recordAll(List<IndexObjectDto> dtos) {
+		for (IndexObjectDto dto : dtos) {
+			record(dto);
+		}
+	}
+
+	public long getDistinctCount() {
+		return seen.size();
+	}
+
+	public long getDuplicateCount() {
+		return duplicateCount.get();
+	}
+
+	@Override
+	public void create(IndexObjectDto indexObjectDto) throws IndexObjectException {
+		record(indexObjectDto);
+		delegate.create(indexObjectDto);
+	}
+
+	@Override
+	public void createOrUpdate(IndexObjectDto indexObjectDto) throws IndexObjectException {
+		record(indexObjectDto);
+		delegate.createOrUpdate(indexObjectDto);
+	}
+
+	@Override
+	public void delete(IndexObjectDto indexObjectDto) throws IndexObjectException {
+		delegate.delete(indexObjectDto);
+	}
+
+	@Override
+	public void update(IndexObjectDto indexObjectDto) throws IndexObjectException {
+		record(indexObjectDto);
+		delegate.update(indexObjectDto);
+	}
+
+	@Override
+	public void create(Object entity) throws IndexObjectException {
+		delegate.create(entity);
+	}
+
+	@Override
+	public void createOrUpdate(Object entity) throws IndexObjectException {
+		delegate.createOrUpdate(entity);
+	}
+
+	@Override
+	public void delete(Object entity) throws IndexObjectException {
+		delegate.delete(entity);
+	}
+
+	@Override
+	public void update(Object entity) throws IndexObjectException {
+		delegate.update(entity);
+	}
+
+	@Override
+	public void bulkCreate(List<?> entities) throws IndexObjectException {
+		delegate.bulkCreate(entities);
+	}
+
+	@Override
+	public void bulkCreateOrUpdate(List<?> entities) throws IndexObjectException {
+		delegate.bulkCreateOrUpdate(entities);
+	}
+
+	@Override
+	public void bulkDelete(List<?> entities) throws IndexObjectException {
+		delegate.bulkDelete(entities);
+	}
+
+	@Override
+	public void bulkUpdate(List<?> entities) throws IndexObjectException {
+		delegate.bulkUpdate(entities);
+	}
+
+	@Override
+	public void bulkDtoCreate(List<IndexObjectDto> indexObjectDto) throws IndexObjectException {
+		recordAll(indexObjectDto);
+		delegate.bulkDtoCreate(indexObjectDto);
+	}
+
+	@Override
+	public void bulkDtoCreateOrUpdate(List<IndexObjectDto> indexObjectDto) throws IndexObjectException {
+		recordAll(indexObjectDto);
+		delegate.bulkDtoCreateOrUpdate(indexObjectDto);
+	}
+
+	@Override
+	public void bulkDtoDelete(List<IndexObjectDto> indexObjectDto) throws IndexObjectException {
+		delegate.bulkDtoDelete(indexObjectDto);
+	}
+
+	@Override
+	public void bulkDtoUpdate(List<IndexObjectDto> indexObjectDto) throws IndexObjectException {
+		recordAll(indexObjectDto);
+		delegate.bulkDtoUpdate(indexObjectDto);
+	}
+}
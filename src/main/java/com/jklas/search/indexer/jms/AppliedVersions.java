@@ -0,0 +1,249 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The last version applied to every entity seen lately, so that consumers
+ * can skip operations superseded by one they already applied.
+ * <p>
+ * Entities are looked up by a 64-bit hash of their {@link EntityKey} in
+ * open addressing tables of primitive longs, split in lock stripes. The
+ * key itself is kept alongside and compared on a hash match, so entities
+ * whose hashes collide are told apart. Every stripe keeps two
+ * generations: once the current one is full it becomes the previous one,
+ * dropping the entities not seen during the last two generations. Between
+ * <code>capacity</code> and twice as many entities are remembered, at
+ * about 80 bytes each plus their keys.
+ * <p>
+ * An operation is applied between {@link #claim(long, EntityKey)} and
+ * {@link #release(long, EntityKey, long)}, which keep other threads off
+ * the same entity only: the stripe lock isn't held meanwhile, so a slow
+ * or retried operation doesn't hold up the other entities of its stripe.
+ */
+class AppliedVersions {
+
+	private static final int STRIPE_BITS = 6;
+
+	private static final int MIN_STRIPE_CAPACITY = 16;
+
+	private static final long EMPTY = 0;
+
+	private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+	AppliedVersions(int capacity) {
+		int stripeCapacity = Math.max(MIN_STRIPE_CAPACITY, capacity >> STRIPE_BITS);
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new Stripe(stripeCapacity);
+		}
+	}
+
+	/**
+	 * The hash an entity is looked up by.
+	 */
+	static long keyOf(EntityKey entityKey) {
+		Serializable id = entityKey.getId();
+
+		long idHash;
+		if(id instanceof Long || id instanceof Integer || id instanceof Short || id instanceof Byte) {
+			idHash = ((Number) id).longValue();
+		} else if(id instanceof String) {
+			idHash = hash((String) id);
+		} else {
+			idHash = id == null ? 0 : id.hashCode();
+		}
+
+		long key = mix(hash(entityKey.getEntityClassName()) ^ mix(idHash));
+		return key == EMPTY ? 1 : key;
+	}
+
+	private static long hash(String value) {
+		if(value == null) return 0;
+
+		// 64-bit FNV-1a
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static long mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return value;
+	}
+
+	/**
+	 * Waits until no other thread holds the entity, then holds it until
+	 * {@link #release(long, EntityKey, long)}.
+	 *
+	 * @param key the hash of the entity, as given by {@link #keyOf(EntityKey)}
+	 * @return the last version applied to the entity, or 0 if unknown
+	 */
+	long claim(long key, EntityKey entity) {
+		Stripe stripe = stripeOf(key);
+		boolean interrupted = false;
+
+		synchronized (stripe) {
+			while(stripe.claimed.contains(entity)) {
+				try {
+					stripe.wait();
+				} catch (InterruptedException e) {
+					// the operation still has to be applied or failed
+					interrupted = true;
+				}
+			}
+			stripe.claimed.add(entity);
+
+			if(interrupted) Thread.currentThread().interrupt();
+			return stripe.get(key, entity);
+		}
+	}
+
+	/**
+	 * Lets other threads claim the entity again, recording the version
+	 * applied to it meanwhile, if any.
+	 *
+	 * @param appliedVersion the version applied, or 0 if none was
+	 */
+	void release(long key, EntityKey entity, long appliedVersion) {
+		Stripe stripe = stripeOf(key);
+		synchronized (stripe) {
+			if(appliedVersion != 0) {
+				stripe.put(key, entity, appliedVersion);
+			}
+			stripe.claimed.remove(entity);
+			stripe.notifyAll();
+		}
+	}
+
+	/**
+	 * Entities remembered, counting those in both generations.
+	 */
+	int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size + stripe.previousSize;
+			}
+		}
+		return size;
+	}
+
+	private Stripe stripeOf(long key) {
+		return stripes[(int) (key >>> (64 - STRIPE_BITS))];
+	}
+
+	private static final class Stripe {
+
+		private final int capacity;
+
+		/** entities an operation is being applied to */
+		private final Set<EntityKey> claimed = new HashSet<EntityKey>();
+
+		private long[] keys;
+		private EntityKey[] entities;
+		private long[] versions;
+		private int size;
+
+		private long[] previousKeys;
+		private EntityKey[] previousEntities;
+		private long[] previousVersions;
+		private int previousSize;
+
+		private Stripe(int capacity) {
+			this.capacity = capacity;
+
+			int length = Integer.highestOneBit(2 * capacity - 1) << 1;
+			this.keys = new long[length];
+			this.entities = new EntityKey[length];
+			this.versions = new long[length];
+			this.previousKeys = new long[length];
+			this.previousEntities = new EntityKey[length];
+			this.previousVersions = new long[length];
+		}
+
+		private long get(long key, EntityKey entity) {
+			int slot = find(keys, entities, key, entity);
+			if(keys[slot] != EMPTY) return versions[slot];
+
+			slot = find(previousKeys, previousEntities, key, entity);
+			if(previousKeys[slot] == EMPTY) return 0;
+
+			// still in use, keep it through the next rotation
+			long version = previousVersions[slot];
+			put(key, entity, version);
+			return version;
+		}
+
+		private void put(long key, EntityKey entity, long version) {
+			int slot = find(keys, entities, key, entity);
+			if(keys[slot] == EMPTY) {
+				if(size == capacity) {
+					rotate();
+					slot = find(keys, entities, key, entity);
+				}
+				keys[slot] = key;
+				entities[slot] = entity;
+				size++;
+			}
+			versions[slot] = version;
+		}
+
+		/**
+		 * The slot holding the entity, or the empty slot it would go in.
+		 */
+		private static int find(long[] table, EntityKey[] tableEntities, long key, EntityKey entity) {
+			int mask = table.length - 1;
+			int slot = (int) key & mask;
+			while(table[slot] != EMPTY && (table[slot] != key || !tableEntities[slot].equals(entity))) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		private void rotate() {
+			long[] recycledKeys = previousKeys;
+			EntityKey[] recycledEntities = previousEntities;
+			long[] recycledVersions = previousVersions;
+
+			previousKeys = keys;
+			previousEntities = entities;
+			previousVersions = versions;
+			previousSize = size;
+
+			Arrays.fill(recycledKeys, EMPTY);
+			Arrays.fill(recycledEntities, null);
+			keys = recycledKeys;
+			entities = recycledEntities;
+			versions = recycledVersions;
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+/**
+ * What {@link JmsOfflineIndexerProducer#enqueue(java.io.Serializable)} does when the
+ * send queue is full.
+ */
+public enum BackpressurePolicy {
+
+	/**
+	 * Blocks the caller until there is room in the queue, failing with an
+	 * <code>IndexObjectException</code> once the enqueue timeout elapses.
+	 */
+	BLOCK,
+
+	/**
+	 * Fails right away with an <code>IndexObjectException</code>.
+	 */
+	FAIL,
+
+	/**
+	 * Discards the oldest queued entries to make room for the new one.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Merges the new operation into an operation already queued for the
+	 * same entity. When there's none to merge with, behaves like
+	 * {@link #BLOCK}.
+	 */
+	COALESCE
+
+}
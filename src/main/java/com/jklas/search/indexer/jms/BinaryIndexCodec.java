@@ -0,0 +1,523 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.jklas.search.index.dto.IndexObjectDto;
+import com.jklas.search.indexer.IndexerAction;
+
+/**
+ * Compact codec for {@link JmsIndexPDU} and {@link JmsIndexBatchPDU}.
+ * <p>
+ * Each PDU is written as an action byte, the id, an interned class
+ * identifier and the values of the entity fields that carry a search
+ * mapping annotation (<code>@SearchId</code>, <code>@SearchField</code>,
+ * ...). Class names are written once per message and referenced by index
+ * afterwards. Entity classes without a no-argument constructor can't be
+ * rebuilt from their fields, so they are embedded with Java serialization,
+ * as are field values of types this codec doesn't know. So are classes
+ * without any annotated field, since they may be mapped programmatically
+ * and this codec can't tell which of their fields the index needs.
+ * Reference PDUs are written as the action, the id and the class
+ * identifier alone.
+ * <p>
+ * A PDU with a version sets the high bit of its action byte and writes
+ * the version right after it, so unversioned PDUs keep the same encoding.
+ */
+public class BinaryIndexCodec implements JmsIndexCodec {
+
+	public static final String NAME = "binary";
+
+	private static final int VERSION = 1;
+
+	private static final int PAYLOAD_PDU = 1;
+	private static final int PAYLOAD_BATCH = 2;
+	private static final int PAYLOAD_SERIALIZED = 3;
+
+	private static final int ENTITY_NULL = 0;
+	private static final int ENTITY_FIELDS = 1;
+	private static final int ENTITY_SERIALIZED = 2;
+	private static final int ENTITY_REFERENCE = 3;
+
+	private static final int ACTION_BY_NAME = 0;
+	private static final int VERSIONED = 0x80;
+	private static final IndexerAction[] ACTIONS = {
+		null, IndexerAction.CREATE, IndexerAction.UPDATE, IndexerAction.DELETE, IndexerAction.CREATE_OR_UPDATE
+	};
+
+	private static final int NULL = 0;
+	private static final int STRING = 1;
+	private static final int INTEGER = 2;
+	private static final int LONG = 3;
+	private static final int SHORT = 4;
+	private static final int BYTE = 5;
+	private static final int BOOLEAN = 6;
+	private static final int CHARACTER = 7;
+	private static final int FLOAT = 8;
+	private static final int DOUBLE = 9;
+	private static final int DATE = 10;
+	private static final int SERIALIZED = 11;
+
+	private static final String MAPPING_ANNOTATIONS_PACKAGE = "com.jklas.search.annotations";
+
+	private static final Constructor<?> NO_CONSTRUCTOR;
+
+	static {
+		try {
+			NO_CONSTRUCTOR = Object.class.getConstructor();
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private final ConcurrentMap<Class<?>, Field[]> mappedFields = new ConcurrentHashMap<Class<?>, Field[]>();
+
+	private final ConcurrentMap<Class<?>, Constructor<?>> constructors = new ConcurrentHashMap<Class<?>, Constructor<?>>();
+
+	private final ConcurrentMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void encode(Serializable payload, OutputStream out) throws IOException {
+		Writer writer = new Writer(new DataOutputStream(out));
+		writer.out.writeByte(VERSION);
+
+		if(payload instanceof JmsIndexPDU) {
+			writer.out.writeByte(PAYLOAD_PDU);
+			writer.writePdu((JmsIndexPDU) payload);
+		} else if(payload instanceof JmsIndexBatchPDU) {
+			List<JmsIndexPDU> pdus = ((JmsIndexBatchPDU) payload).getPdus();
+			writer.out.writeByte(PAYLOAD_BATCH);
+			writeVarInt(writer.out, pdus.size());
+			for (JmsIndexPDU pdu : pdus) {
+				writer.writePdu(pdu);
+			}
+		} else {
+			writer.out.writeByte(PAYLOAD_SERIALIZED);
+			writeSerialized(writer.out, payload);
+		}
+
+		writer.out.flush();
+	}
+
+	@Override
+	public Serializable decode(InputStream in) throws IOException {
+		Reader reader = new Reader(new DataInputStream(in));
+
+		int version = reader.in.readUnsignedByte();
+		if(version != VERSION) {
+			throw new IOException("Unsupported binary codec version " + version);
+		}
+
+		int payloadType = reader.in.readUnsignedByte();
+		switch (payloadType) {
+		case PAYLOAD_PDU:
+			return reader.readPdu();
+		case PAYLOAD_BATCH:
+			int size = readVarInt(reader.in);
+			List<JmsIndexPDU> pdus = new ArrayList<JmsIndexPDU>(size);
+			for (int i = 0; i < size; i++) {
+				pdus.add(reader.readPdu());
+			}
+			return new JmsIndexBatchPDU(pdus);
+		case PAYLOAD_SERIALIZED:
+			return readSerialized(reader.in);
+		default:
+			throw new IOException("Unknown payload type " + payloadType);
+		}
+	}
+
+	private class Writer {
+		private final DataOutputStream out;
+		private final Map<String, Integer> classIds = new HashMap<String, Integer>();
+
+		private Writer(DataOutputStream out) {
+			this.out = out;
+		}
+
+		private void writePdu(JmsIndexPDU pdu) throws IOException {
+			writeAction(pdu.getAction(), pdu.getVersion());
+
+			if(pdu.isReference()) {
+				EntityKey reference = pdu.getReference();
+				writeValue(reference.getId());
+				out.writeByte(ENTITY_REFERENCE);
+				writeClassName(reference.getEntityClassName());
+				return;
+			}
+
+			IndexObjectDto dto = pdu.getIndexObjectDto();
+			writeValue(dto.getId());
+
+			Object entity = dto.getEntity();
+
+			if(entity == null) {
+				out.writeByte(ENTITY_NULL);
+			} else if(constructorFor(entity.getClass()) == NO_CONSTRUCTOR || mappedFieldsOf(entity.getClass()).length == 0) {
+				out.writeByte(ENTITY_SERIALIZED);
+				writeSerialized(out, entity);
+			} else {
+				out.writeByte(ENTITY_FIELDS);
+				writeClassName(entity.getClass().getName());
+
+				Field[] fields = mappedFieldsOf(entity.getClass());
+				for (Field field : fields) {
+					try {
+						writeValue(field.get(entity));
+					} catch (IllegalAccessException e) {
+						throw new IOException("Can't read field " + field + ": " + e.getMessage());
+					}
+				}
+			}
+		}
+
+		private void writeAction(IndexerAction action, long version) throws IOException {
+			int code = ACTION_BY_NAME;
+			for (int i = 1; i < ACTIONS.length; i++) {
+				if(ACTIONS[i] == action) {
+					code = i;
+					break;
+				}
+			}
+
+			out.writeByte(version != 0 ? code | VERSIONED : code);
+			if(version != 0) out.writeLong(version);
+			if(code == ACTION_BY_NAME) out.writeUTF(action.name());
+		}
+
+		private void writeClassName(String className) throws IOException {
+			Integer id = classIds.get(className);
+
+			if(id != null) {
+				writeVarInt(out, id);
+			} else {
+				id = classIds.size();
+				classIds.put(className, id);
+				writeVarInt(out, id);
+				out.writeUTF(className);
+			}
+		}
+
+		private void writeValue(Object value) throws IOException {
+			if(value == null) {
+				out.writeByte(NULL);
+			} else if(value instanceof String) {
+				out.writeByte(STRING);
+				writeString(out, (String) value);
+			} else if(value instanceof Integer) {
+				out.writeByte(INTEGER);
+				out.writeInt((Integer) value);
+			} else if(value instanceof Long) {
+				out.writeByte(LONG);
+				out.writeLong((Long) value);
+			} else if(value instanceof Short) {
+				out.writeByte(SHORT);
+				out.writeShort((Short) value);
+			} else if(value instanceof Byte) {
+				out.writeByte(BYTE);
+				out.writeByte((Byte) value);
+			} else if(value instanceof Boolean) {
+				out.writeByte(BOOLEAN);
+				out.writeBoolean((Boolean) value);
+			} else if(value instanceof Character) {
+				out.writeByte(CHARACTER);
+				out.writeChar((Character) value);
+			} else if(value instanceof Float) {
+				out.writeByte(FLOAT);
+				out.writeFloat((Float) value);
+			} else if(value instanceof Double) {
+				out.writeByte(DOUBLE);
+				out.writeDouble((Double) value);
+			} else if(value.getClass() == Date.class) {
+				out.writeByte(DATE);
+				out.writeLong(((Date) value).getTime());
+			} else if(value instanceof Serializable) {
+				out.writeByte(SERIALIZED);
+				writeSerialized(out, (Serializable) value);
+			} else {
+				throw new IOException("Can't encode a value of " + value.getClass());
+			}
+		}
+	}
+
+	private class Reader {
+		private final DataInputStream in;
+		private final List<String> classTable = new ArrayList<String>();
+
+		private Reader(DataInputStream in) {
+			this.in = in;
+		}
+
+		private JmsIndexPDU readPdu() throws IOException {
+			int code = in.readUnsignedByte();
+			long version = (code & VERSIONED) != 0 ? in.readLong() : 0;
+
+			JmsIndexPDU pdu = readPdu(readAction(code & ~VERSIONED));
+			pdu.setVersion(version);
+			return pdu;
+		}
+
+		private JmsIndexPDU readPdu(IndexerAction action) throws IOException {
+			Serializable id = (Serializable) readValue();
+
+			Object entity;
+			int entityType = in.readUnsignedByte();
+
+			switch (entityType) {
+			case ENTITY_NULL:
+				entity = null;
+				break;
+			case ENTITY_SERIALIZED:
+				entity = readSerialized(in);
+				break;
+			case ENTITY_FIELDS:
+				entity = readEntity(classForName(readClassName()));
+				break;
+			case ENTITY_REFERENCE:
+				return new JmsIndexPDU(action, new EntityKey(readClassName(), id));
+			default:
+				throw new IOException("Unknown entity encoding " + entityType);
+			}
+
+			return new JmsIndexPDU(action, new IndexObjectDto(entity, id));
+		}
+
+		private Object readEntity(Class<?> clazz) throws IOException {
+			try {
+				Object entity = constructorFor(clazz).newInstance();
+
+				for (Field field : mappedFieldsOf(clazz)) {
+					field.set(entity, readValue());
+				}
+
+				return entity;
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				IOException ioe = new IOException("Can't rebuild an instance of " + clazz + ": " + e.getMessage());
+				ioe.initCause(e);
+				throw ioe;
+			}
+		}
+
+		private IndexerAction readAction(int code) throws IOException {
+			if(code == ACTION_BY_NAME) {
+				return IndexerAction.valueOf(in.readUTF());
+			}
+			if(code >= ACTIONS.length) {
+				throw new IOException("Unknown action code " + code);
+			}
+			return ACTIONS[code];
+		}
+
+		private String readClassName() throws IOException {
+			int id = readVarInt(in);
+
+			if(id < classTable.size()) {
+				return classTable.get(id);
+			}
+
+			String className = in.readUTF();
+			classTable.add(className);
+			return className;
+		}
+
+		private Object readValue() throws IOException {
+			int type = in.readUnsignedByte();
+
+			switch (type) {
+			case NULL: return null;
+			case STRING: return readString(in);
+			case INTEGER: return in.readInt();
+			case LONG: return in.readLong();
+			case SHORT: return in.readShort();
+			case BYTE: return in.readByte();
+			case BOOLEAN: return in.readBoolean();
+			case CHARACTER: return in.readChar();
+			case FLOAT: return in.readFloat();
+			case DOUBLE: return in.readDouble();
+			case DATE: return new Date(in.readLong());
+			case SERIALIZED: return readSerialized(in);
+			default:
+				throw new IOException("Unknown value type " + type);
+			}
+		}
+	}
+
+	/**
+	 * Fields carrying a search mapping annotation, superclass fields first
+	 * and in name order, so producer and consumer agree on the layout.
+	 */
+	private Field[] mappedFieldsOf(Class<?> clazz) {
+		Field[] fields = mappedFields.get(clazz);
+		if(fields != null) return fields;
+
+		List<Field> mapped = new ArrayList<Field>();
+
+		List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+		for (Class<?> current = clazz; current != null && current != Object.class; current = current.getSuperclass()) {
+			hierarchy.add(0, current);
+		}
+
+		for (Class<?> current : hierarchy) {
+			Field[] declared = current.getDeclaredFields();
+			Arrays.sort(declared, new Comparator<Field>() {
+				@Override
+				public int compare(Field a, Field b) {
+					return a.getName().compareTo(b.getName());
+				}
+			});
+
+			for (Field field : declared) {
+				if(!Modifier.isStatic(field.getModifiers()) && isMapped(field)) {
+					field.setAccessible(true);
+					mapped.add(field);
+				}
+			}
+		}
+
+		fields = mapped.toArray(new Field[mapped.size()]);
+		mappedFields.put(clazz, fields);
+		return fields;
+	}
+
+	private static boolean isMapped(Field field) {
+		for (Annotation annotation : field.getAnnotations()) {
+			if(annotation.annotationType().getName().startsWith(MAPPING_ANNOTATIONS_PACKAGE)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Constructor<?> constructorFor(Class<?> clazz) {
+		Constructor<?> constructor = constructors.get(clazz);
+		if(constructor != null) return constructor;
+
+		try {
+			constructor = clazz.getDeclaredConstructor();
+			constructor.setAccessible(true);
+		} catch (NoSuchMethodException e) {
+			constructor = NO_CONSTRUCTOR;
+		}
+
+		constructors.put(clazz, constructor);
+		return constructor;
+	}
+
+	private Class<?> classForName(String name) throws IOException {
+		Class<?> clazz = classes.get(name);
+		if(clazz != null) return clazz;
+
+		try {
+			ClassLoader loader = Thread.currentThread().getContextClassLoader();
+			clazz = Class.forName(name, false, loader != null ? loader : getClass().getClassLoader());
+		} catch (ClassNotFoundException e) {
+			IOException ioe = new IOException("Unknown entity class " + name);
+			ioe.initCause(e);
+			throw ioe;
+		}
+
+		classes.put(name, clazz);
+		return clazz;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		// writeUTF is limited to 64K, and search fields can be large texts
+		byte[] bytes = value.getBytes("UTF-8");
+		writeVarInt(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[readVarInt(in)];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static void writeSerialized(DataOutputStream out, Object value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+		objectOut.writeObject(value);
+		objectOut.close();
+
+		writeVarInt(out, bytes.size());
+		bytes.writeTo(out);
+	}
+
+	private static Serializable readSerialized(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[readVarInt(in)];
+		in.readFully(bytes);
+
+		ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return (Serializable) objectIn.readObject();
+		} catch (ClassNotFoundException e) {
+			IOException ioe = new IOException("Can't decode value: " + e.getMessage());
+			ioe.initCause(e);
+			throw ioe;
+		}
+	}
+
+	static void writeVarInt(DataOutputStream out, int value) throws IOException {
+		while((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0) return value;
+		}
+		throw new IOException("Malformed variable length integer");
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+
+/**
+ * Asks the broker how many messages are waiting on a queue, through the
+ * ActiveMQ statistics plugin (<code>&lt;statisticsBrokerPlugin/&gt;</code>).
+ * <p>
+ * Brokers without the plugin never answer. After a request went unanswered
+ * the next one waits for the back-off of the {@link RetryPolicy}, and once
+ * out of attempts no more are sent, as every one of them would be left on
+ * the statistics queue until it expires. An answer resets the attempts.
+ */
+class BrokerQueueStatistics {
+
+	static final String DESTINATION_PREFIX = "ActiveMQ.Statistics.Destination.";
+
+	static final RetryPolicy DEFAULT_RETRY_POLICY = new RetryPolicy(5, 1000, 60000);
+
+	private final ActiveMQConnectionFactory connectionFactory;
+
+	private final String queueName;
+
+	private final long timeoutMillis;
+
+	private final RetryPolicy retryPolicy;
+
+	private Connection connection;
+
+	private Session session;
+
+	private MessageProducer requester;
+
+	private TemporaryQueue replyQueue;
+
+	private MessageConsumer replies;
+
+	/** requests in a row that went unanswered */
+	private volatile int misses = 0;
+
+	private long nextRequestTime;
+
+	BrokerQueueStatistics(ActiveMQConnectionFactory connectionFactory, String queueName, long timeoutMillis) {
+		this(connectionFactory, queueName, timeoutMillis, DEFAULT_RETRY_POLICY);
+	}
+
+	BrokerQueueStatistics(ActiveMQConnectionFactory connectionFactory, String queueName, long timeoutMillis, RetryPolicy retryPolicy) {
+		this.connectionFactory = connectionFactory;
+		this.queueName = queueName;
+		this.timeoutMillis = timeoutMillis;
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Messages on the queue, including those dispatched to consumers and
+	 * not acknowledged yet, or -1 when the broker doesn't tell.
+	 */
+	synchronized long queueSize() {
+		if(misses > 0 && (!retryPolicy.canRetry(misses) || System.currentTimeMillis() < nextRequestTime)) return -1;
+
+		try {
+			if(connection == null) open();
+
+			Message request = session.createMessage();
+			request.setJMSReplyTo(replyQueue);
+			requester.send(request);
+
+			Message reply = replies.receive(timeoutMillis);
+			if(!(reply instanceof MapMessage)) {
+				misses++;
+				nextRequestTime = System.currentTimeMillis() + retryPolicy.backoffMillis(misses);
+				close();
+				return -1;
+			}
+
+			misses = 0;
+			return ((MapMessage) reply).getLong("size");
+		} catch (JMSException e) {
+			// the broker may be restarting, ask again next time
+			close();
+			return -1;
+		}
+	}
+
+	private void open() throws JMSException {
+		connection = connectionFactory.createConnection();
+		connection.start();
+
+		session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+
+		requester = session.createProducer(session.createQueue(DESTINATION_PREFIX + queueName));
+		requester.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+		requester.setTimeToLive(timeoutMillis);
+
+		replyQueue = session.createTemporaryQueue();
+		replies = session.createConsumer(replyQueue);
+	}
+
+	synchronized void close() {
+		try {
+			if(connection != null) connection.close();
+		} catch (JMSException ignore) {
+			// nothing left to release
+		} finally {
+			connection = null;
+			session = null;
+			requester = null;
+			replyQueue = null;
+			replies = null;
+		}
+	}
+
+	/**
+	 * Whether requests are still sent, that is, the broker answered or may
+	 * answer a later request.
+	 */
+	boolean isAnswering() {
+		return retryPolicy.canRetry(misses);
+	}
+}
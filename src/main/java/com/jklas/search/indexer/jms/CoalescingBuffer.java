@@ -0,0 +1,140 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+
+import com.jklas.search.exception.IndexObjectException;
+
+/**
+ * Holds PDUs for a time window, folding operations on the same entity into
+ * one with {@link IndexerActionCoalescer} before they reach the send queue.
+ */
+class CoalescingBuffer {
+
+	private final Map<EntityKey, JmsIndexPDU> pending = new LinkedHashMap<EntityKey, JmsIndexPDU>();
+
+	private final long windowMillis;
+
+	private final int capacity;
+
+	private long windowStart;
+
+	CoalescingBuffer(long windowMillis, int capacity) {
+		this.windowMillis = windowMillis;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Adds a PDU, merging it with the one pending for the same entity.
+	 * When the buffer is full, either drops its oldest entry or waits up to
+	 * <code>timeoutMillis</code> for the producer to flush it.
+	 *
+	 * @return the number of operations saved by merging, or -1 if the
+	 * buffer stayed full
+	 */
+	synchronized int add(JmsIndexPDU pdu, long timeoutMillis, boolean dropOldest) throws InterruptedException {
+		EntityKey key = EntityKey.of(pdu);
+		JmsIndexPDU previous = pending.get(key);
+
+		if(previous != null) {
+			JmsIndexPDU coalesced = IndexerActionCoalescer.coalesce(previous, pdu);
+
+			if(coalesced == null) {
+				// created and deleted within the window, none of them is sent
+				pending.remove(key);
+				SendFuture.sent(previous);
+				SendFuture.sent(pdu);
+				return 2;
+			}
+
+			pending.put(key, coalesced);
+			return 1;
+		}
+
+		if(!awaitRoom(timeoutMillis, dropOldest)) return -1;
+
+		if(pending.isEmpty()) {
+			windowStart = System.currentTimeMillis();
+		}
+		pending.put(key, pdu);
+
+		return 0;
+	}
+
+	private boolean awaitRoom(long timeoutMillis, boolean dropOldest) throws InterruptedException {
+		if(dropOldest) {
+			Iterator<JmsIndexPDU> oldest = pending.values().iterator();
+			while(pending.size() >= capacity) {
+				JmsIndexPDU dropped = oldest.next();
+				oldest.remove();
+				SendFuture.failed(dropped, new IndexObjectException("Dropped from the full coalescing window"));
+			}
+			return true;
+		}
+
+		long now = System.currentTimeMillis();
+		long deadline = timeoutMillis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + timeoutMillis;
+
+		while(pending.size() >= capacity) {
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0) return false;
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Moves pending PDUs to the send queue once the window is over, as many
+	 * as the queue takes without blocking.
+	 */
+	synchronized void flushInto(Queue<Serializable> sendQueue) {
+		if(pending.isEmpty() || millisUntilFlush() > 0) return;
+
+		Iterator<JmsIndexPDU> pdus = pending.values().iterator();
+		while(pdus.hasNext() && sendQueue.offer(pdus.next())) {
+			pdus.remove();
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 * Time left before the current window is over, or the window length
+	 * when nothing is pending.
+	 */
+	synchronized long millisUntilFlush() {
+		if(pending.isEmpty()) return windowMillis;
+
+		return Math.max(0, windowStart + windowMillis - System.currentTimeMillis());
+	}
+
+	synchronized int size() {
+		return pending.size();
+	}
+
+	long getWindowMillis() {
+		return windowMillis;
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Samples the lag of a {@link JmsOfflineIndexerConsumerPool} and resizes
+ * its receivers and workers as its {@link ScalingPolicy} says.
+ */
+class ConsumerPoolSupervisor {
+
+	private final JmsOfflineIndexerConsumerPool pool;
+
+	private final ScalingPolicy policy;
+
+	private final Meter scaleUpMeter;
+
+	private final Meter scaleDownMeter;
+
+	private volatile long lag;
+
+	private long lowSince = 0;
+
+	private Timer timer;
+
+	ConsumerPoolSupervisor(JmsOfflineIndexerConsumerPool pool, ScalingPolicy policy, MetricsRegistry metrics) {
+		this.pool = pool;
+		this.policy = policy;
+		this.scaleUpMeter = metrics.meter("scaleUps");
+		this.scaleDownMeter = metrics.meter("scaleDowns");
+
+		metrics.gauge("lag", new Gauge() {
+			@Override
+			public long getValue() {
+				return lag;
+			}
+		});
+	}
+
+	synchronized void start() {
+		timer = new Timer(pool.getName() + "-supervisor", true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				sample();
+			}
+		}, 0, policy.getSampleIntervalMillis());
+	}
+
+	/**
+	 * Stops sampling, waiting for a sample being taken.
+	 */
+	void stop() {
+		timer.cancel();
+		synchronized (this) {
+			timer = null;
+		}
+	}
+
+	synchronized void sample() {
+		if(timer == null) return;
+
+		lag = pool.estimateLag();
+
+		int receivers = pool.getActiveReceiverCount();
+		int workers = pool.getWorkerCount();
+		// several receivers could reorder the operations on an entity
+		int neededReceivers = pool.isOrdered() ? policy.receiversFor(lag) : receivers;
+		int neededWorkers = policy.workersFor(lag);
+
+		if(neededReceivers > receivers || neededWorkers > workers) {
+			pool.resize(Math.max(receivers, neededReceivers), Math.max(workers, neededWorkers));
+			scaleUpMeter.mark();
+			lowSince = 0;
+			return;
+		}
+
+		if(neededReceivers == receivers && neededWorkers == workers) {
+			lowSince = 0;
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		if(lowSince == 0) {
+			lowSince = now;
+		}
+
+		if(now - lowSince >= policy.getScaleDownDelayMillis()) {
+			pool.resize(neededReceivers, neededWorkers);
+			scaleDownMeter.mark();
+			lowSince = 0;
+		}
+	}
+}
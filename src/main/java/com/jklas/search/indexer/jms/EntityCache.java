@@ -0,0 +1,97 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of entities loaded by an {@link EntityLoader}.
+ * <p>
+ * Every entry remembers when it was loaded. A cached entity is only used
+ * for a message sent before that time; entities changed after they were
+ * cached are loaded again. This relies on producer and consumer clocks
+ * being reasonably in sync.
+ */
+public class EntityCache {
+
+	private final Map<EntityKey, CachedEntity> entries;
+
+	private int hitCount;
+
+	private int missCount;
+
+	public EntityCache(final int maxEntries) {
+		this.entries = new LinkedHashMap<EntityKey, CachedEntity>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<EntityKey, CachedEntity> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached entity if it was loaded at or after
+	 * <code>notBefore</code>, or null.
+	 */
+	public synchronized Object get(EntityKey key, long notBefore) {
+		CachedEntity cached = entries.get(key);
+
+		if(cached == null || cached.loadedAt < notBefore) {
+			missCount++;
+			return null;
+		}
+
+		hitCount++;
+		return cached.entity;
+	}
+
+	public synchronized void put(EntityKey key, Object entity, long loadedAt) {
+		entries.put(key, new CachedEntity(entity, loadedAt));
+	}
+
+	public synchronized void invalidate(EntityKey key) {
+		entries.remove(key);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized int getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized int getMissCount() {
+		return missCount;
+	}
+
+	private static class CachedEntity {
+		private final Object entity;
+		private final long loadedAt;
+
+		private CachedEntity(Object entity, long loadedAt) {
+			this.entity = entity;
+			this.loadedAt = loadedAt;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.io.Serializable;
+
+import com.jklas.search.index.dto.IndexObjectDto;
+
+/**
+ * Identifies an indexed entity by its class and its <code>@SearchId</code>.
+ * Two PDUs with equal keys refer to the same document in the index.
+ */
+public final class EntityKey implements Serializable {
+
+	private static final long serialVersionUID = -6271410373829573842L;
+
+	private final String entityClassName;
+
+	private final Serializable id;
+
+	public EntityKey(String entityClassName, Serializable id) {
+		this.entityClassName = entityClassName;
+		this.id = id;
+	}
+
+	public static EntityKey of(IndexObjectDto dto) {
+		Object entity = dto.getEntity();
+		return new EntityKey(entity == null ? null : entity.getClass().getName(), dto.getId());
+	}
+
+	public static EntityKey of(JmsIndexPDU pdu) {
+		if(pdu.isReference()) return pdu.getReference();
+		return of(pdu.getIndexObjectDto());
+	}
+
+	public String getEntityClassName() {
+		return entityClassName;
+	}
+
+	public Serializable getId() {
+		return id;
+	}
+
+	/**
+	 * Maps this key to one of <code>partitionCount</code> partitions. Equal
+	 * keys always land on the same partition.
+	 */
+	public int partition(int partitionCount) {
+		return (hashCode() & Integer.MAX_VALUE) % partitionCount;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = 31 + (entityClassName == null ? 0 : entityClassName.hashCode());
+		return 31 * result + (id == null ? 0 : id.hashCode());
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) return true;
+		if (!(obj instanceof EntityKey)) return false;
+
+		EntityKey other = (EntityKey) obj;
+
+		if (entityClassName == null ? other.entityClassName != null : !entityClassName.equals(other.entityClassName)) return false;
+		return id == null ? other.id == null : id.equals(other.id);
+	}
+
+	@Override
+	public String toString() {
+		return entityClassName + "#" + id;
+	}
+}
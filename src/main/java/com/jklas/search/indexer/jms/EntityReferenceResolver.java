@@ -0,0 +1,152 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.jklas.search.exception.IndexObjectException;
+import com.jklas.search.index.dto.IndexObjectDto;
+import com.jklas.search.indexer.IndexerAction;
+
+/**
+ * Replaces reference PDUs with PDUs carrying the entity, loading all the
+ * entities of a class missing from the cache with a single call to the
+ * {@link EntityLoader}.
+ */
+class EntityReferenceResolver {
+
+	private final EntityLoader loader;
+
+	private final EntityCache cache;
+
+	private final Map<String, Class<?>> classes = new HashMap<String, Class<?>>();
+
+	private int unresolvedCount;
+
+	EntityReferenceResolver(EntityLoader loader, EntityCache cache) {
+		this.loader = loader;
+		this.cache = cache;
+	}
+
+	/**
+	 * @param notBefore send time of the newest message the PDUs came in;
+	 * cached entities loaded before it are not used
+	 */
+	List<JmsIndexPDU> resolve(List<JmsIndexPDU> pdus, long notBefore) throws IndexObjectException {
+		Map<EntityKey, Object> entities = new HashMap<EntityKey, Object>();
+		Map<String, Set<Serializable>> toLoad = new LinkedHashMap<String, Set<Serializable>>();
+
+		for (JmsIndexPDU pdu : pdus) {
+			if(!pdu.isReference()) {
+				if(cache != null && pdu.getAction() == IndexerAction.DELETE) {
+					cache.invalidate(EntityKey.of(pdu));
+				}
+				continue;
+			}
+
+			EntityKey key = pdu.getReference();
+			if(entities.containsKey(key)) continue;
+
+			Object entity = cache == null ? null : cache.get(key, notBefore);
+			if(entity != null) {
+				entities.put(key, entity);
+				continue;
+			}
+
+			Set<Serializable> ids = toLoad.get(key.getEntityClassName());
+			if(ids == null) {
+				ids = new LinkedHashSet<Serializable>();
+				toLoad.put(key.getEntityClassName(), ids);
+			}
+			ids.add(key.getId());
+		}
+
+		if(entities.isEmpty() && toLoad.isEmpty()) return pdus;
+
+		for (Map.Entry<String, Set<Serializable>> classIds : toLoad.entrySet()) {
+			load(classIds.getKey(), classIds.getValue(), entities);
+		}
+
+		List<JmsIndexPDU> resolved = new ArrayList<JmsIndexPDU>(pdus.size());
+
+		for (JmsIndexPDU pdu : pdus) {
+			if(!pdu.isReference()) {
+				resolved.add(pdu);
+				continue;
+			}
+
+			EntityKey key = pdu.getReference();
+			Object entity = entities.get(key);
+
+			if(entity == null) {
+				// deleted since the operation was sent; its delete follows
+				unresolvedCount++;
+			} else {
+				JmsIndexPDU loaded = new JmsIndexPDU(pdu.getAction(), new IndexObjectDto(entity, key.getId()));
+				loaded.setVersion(pdu.getVersion());
+				resolved.add(loaded);
+			}
+		}
+
+		return resolved;
+	}
+
+	private void load(String className, Set<Serializable> ids, Map<EntityKey, Object> entities) throws IndexObjectException {
+		long loadedAt = System.currentTimeMillis();
+
+		Map<Serializable, Object> loaded = loader.load(classForName(className), ids);
+
+		for (Map.Entry<Serializable, Object> entry : loaded.entrySet()) {
+			EntityKey key = new EntityKey(className, entry.getKey());
+			entities.put(key, entry.getValue());
+
+			if(cache != null) cache.put(key, entry.getValue(), loadedAt);
+		}
+	}
+
+	private Class<?> classForName(String name) throws IndexObjectException {
+		Class<?> clazz = classes.get(name);
+		if(clazz != null) return clazz;
+
+		try {
+			ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+			clazz = Class.forName(name, false, classLoader != null ? classLoader : getClass().getClassLoader());
+		} catch (ClassNotFoundException e) {
+			throw new IndexObjectException("Unknown entity class " + name);
+		}
+
+		classes.put(name, clazz);
+		return clazz;
+	}
+
+	/**
+	 * References to entities the loader didn't find.
+	 */
+	int getUnresolvedCount() {
+		return unresolvedCount;
+	}
+}
@@ -0,0 +1,134 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values, typically latencies in
+ * nanoseconds.
+ * <p>
+ * Values are counted in log-linear buckets: every power of two is split
+ * into eight sub-buckets, so percentiles are accurate to within 12.5%
+ * over the whole range of <code>long</code> without storing samples.
+ */
+public class Histogram implements HistogramMBean {
+
+	private static final int SUB_BUCKET_BITS = 3;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	public void update(long value) {
+		if(value < 0) value = 0;
+
+		buckets.incrementAndGet(bucketOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long currentMax = max.get();
+		while(value > currentMax && !max.compareAndSet(currentMax, value)) {
+			currentMax = max.get();
+		}
+	}
+
+	static int bucketOf(long value) {
+		if(value < SUB_BUCKETS) return (int) value;
+
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+		return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	static long highestValueOf(int bucket) {
+		if(bucket < SUB_BUCKETS) return bucket;
+
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 * Value below which the given fraction of the recorded values fall,
+	 * e.g. 0.99 for the 99th percentile.
+	 */
+	public long getPercentile(double fraction) {
+		long total = count.get();
+		if(total == 0) return 0;
+
+		long rank = (long) Math.ceil(fraction * total);
+		long seen = 0;
+
+		for (int i = 0; i < buckets.length(); i++) {
+			seen += buckets.get(i);
+			if(seen >= rank) {
+				return Math.min(highestValueOf(i), max.get());
+			}
+		}
+
+		return max.get();
+	}
+
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+
+	@Override
+	public double getMean() {
+		long total = count.get();
+		return total == 0 ? 0 : (double) sum.get() / total;
+	}
+
+	@Override
+	public long getMax() {
+		return max.get();
+	}
+
+	@Override
+	public long getMedian() {
+		return getPercentile(0.5);
+	}
+
+	@Override
+	public long get99thPercentile() {
+		return getPercentile(0.99);
+	}
+
+	@Override
+	public long get999thPercentile() {
+		return getPercentile(0.999);
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + ", p50=" + getMedian() + ", p99=" + get99thPercentile() + ", p999=" + get999thPercentile() + ", max=" + getMax();
+	}
+}
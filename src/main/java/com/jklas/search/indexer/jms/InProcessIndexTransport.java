@@ -0,0 +1,353 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import com.jklas.search.exception.IndexObjectException;
+import com.jklas.search.indexer.IndexerService;
+
+/**
+ * Hands PDUs straight to an {@link IndexingWorkerPool} in the same JVM,
+ * through a lock-free ring buffer, without serializing them or going
+ * through a broker. Meant for single JVM deployments and tests, behind the
+ * same {@link JmsOfflineIndexer} API as the JMS transport.
+ * <p>
+ * A dispatcher thread takes batches from the ring like the producer does
+ * (see {@link JmsOfflineIndexerProducer#setBatchSize(int)}), and the pool
+ * applies the operations on an entity in the order they were enqueued.
+ * {@link SendFuture}s complete once their operations are indexed.
+ */
+public class InProcessIndexTransport implements OfflineIndexTransport, Runnable {
+
+	private static final long MAX_IDLE_PARK_NANOS = 1000000;
+
+	private final String name;
+
+	private final IndexerService indexerService;
+
+	private final RingBuffer<JmsIndexPDU> ring;
+
+	private int workerCount = Runtime.getRuntime().availableProcessors();
+
+	private int batchSize = 64;
+
+	private long batchLingerMillis = 0;
+
+	private long enqueueTimeoutMillis = Long.MAX_VALUE;
+
+	private boolean bulk;
+
+	private RetryPolicy retryPolicy = RetryPolicy.NONE;
+
+	private EntityLoader entityLoader;
+
+	private EntityCache entityCache;
+
+	private volatile IndexingWorkerPool workerPool;
+
+	private volatile Thread dispatcher;
+
+	private volatile boolean dispatcherIdle;
+
+	private volatile boolean draining;
+
+	private volatile boolean shutdown;
+
+	private final MetricsRegistry metrics;
+
+	private final Meter enqueueMeter;
+
+	private final Meter dispatchMeter;
+
+	private final Meter rejectMeter;
+
+	/**
+	 * Creates a transport holding at most <code>capacity</code> PDUs,
+	 * rounded up to a power of two, before callers have to wait.
+	 */
+	public InProcessIndexTransport(String name, IndexerService indexerService, int capacity) {
+		this.name = name;
+		this.indexerService = indexerService;
+		this.ring = new RingBuffer<JmsIndexPDU>(capacity);
+
+		this.metrics = new MetricsRegistry("InProcess", name);
+		this.enqueueMeter = metrics.meter("enqueued");
+		this.dispatchMeter = metrics.meter("dispatched");
+		this.rejectMeter = metrics.meter("rejected");
+		metrics.gauge("queueDepth", new Gauge() {
+			@Override
+			public long getValue() {
+				return ring.size();
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		dispatcher = Thread.currentThread();
+
+		workerPool = new IndexingWorkerPool(name, indexerService, workerCount, metrics);
+		workerPool.setBulk(bulk);
+		workerPool.setRetryPolicy(retryPolicy);
+		workerPool.start();
+
+		EntityReferenceResolver referenceResolver = entityLoader == null ? null : new EntityReferenceResolver(entityLoader, entityCache);
+
+		List<JmsIndexPDU> batch = new ArrayList<JmsIndexPDU>(batchSize);
+
+		try {
+			while(!shutdown && !(draining && ring.isEmpty())) {
+				if(!takeBatch(batch)) continue;
+
+				List<JmsIndexPDU> pdus = batch;
+				try {
+					if(referenceResolver != null) {
+						pdus = referenceResolver.resolve(batch, newestEnqueueTime(batch));
+					}
+				} catch (IndexObjectException e) {
+					failed(batch, e);
+					batch.clear();
+					continue;
+				}
+
+				List<IndexFailure> failures = workerPool.execute(pdus);
+				dispatchMeter.mark(batch.size());
+
+				completed(batch, failures);
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				workerPool.shutdown();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Fills the batch, parking while the ring is empty.
+	 *
+	 * @return false if it woke up with nothing to dispatch
+	 */
+	private boolean takeBatch(List<JmsIndexPDU> batch) {
+		ring.drainTo(batch, batchSize);
+
+		if(batch.isEmpty()) {
+			idle();
+			return false;
+		}
+
+		if(batch.size() < batchSize && batchLingerMillis > 0) {
+			long deadline = System.nanoTime() + batchLingerMillis * 1000000;
+			while(batch.size() < batchSize && !shutdown) {
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0) break;
+
+				if(ring.drainTo(batch, batchSize - batch.size()) == 0) {
+					LockSupport.parkNanos(Math.min(remaining, MAX_IDLE_PARK_NANOS));
+				}
+			}
+		}
+
+		return true;
+	}
+
+	private void idle() {
+		dispatcherIdle = true;
+		// enqueue() unparks the dispatcher if it sees it idle, so check again
+		if(ring.isEmpty() && !shutdown && !draining) {
+			LockSupport.parkNanos(MAX_IDLE_PARK_NANOS);
+		}
+		dispatcherIdle = false;
+	}
+
+	private static long newestEnqueueTime(List<JmsIndexPDU> batch) {
+		long newest = 0;
+		for (JmsIndexPDU pdu : batch) {
+			newest = Math.max(newest, pdu.getEnqueueTime());
+		}
+		return newest;
+	}
+
+	/**
+	 * Fails the futures of the operations on entities that failed. Resolved
+	 * references are new PDUs, so failures are matched by entity.
+	 */
+	private static void completed(List<JmsIndexPDU> batch, List<IndexFailure> failures) {
+		Map<EntityKey, Throwable> failed = new HashMap<EntityKey, Throwable>();
+		for (IndexFailure failure : failures) {
+			failed.put(EntityKey.of(failure.getPdu()), failure.getCause());
+		}
+
+		for (JmsIndexPDU pdu : batch) {
+			Throwable cause = failed.isEmpty() ? null : failed.get(EntityKey.of(pdu));
+			if(cause == null) {
+				SendFuture.sent(pdu);
+			} else {
+				SendFuture.failed(pdu, cause);
+			}
+		}
+	}
+
+	private static void failed(List<JmsIndexPDU> batch, Throwable cause) {
+		for (JmsIndexPDU pdu : batch) {
+			SendFuture.failed(pdu, cause);
+		}
+	}
+
+	/**
+	 * Puts the PDU in the ring, waiting up to the enqueue timeout while it
+	 * is full.
+	 */
+	@Override
+	public void enqueue(JmsIndexPDU pdu) throws IndexObjectException {
+		pdu.setEnqueueTime(System.currentTimeMillis());
+
+		if(!ring.offer(pdu)) {
+			awaitRoom(pdu);
+		}
+
+		enqueueMeter.mark();
+
+		if(dispatcherIdle) {
+			Thread idleDispatcher = dispatcher;
+			if(idleDispatcher != null) LockSupport.unpark(idleDispatcher);
+		}
+	}
+
+	private void awaitRoom(JmsIndexPDU pdu) throws IndexObjectException {
+		long start = System.currentTimeMillis();
+		long parkNanos = 1000;
+
+		while(!ring.offer(pdu)) {
+			if(System.currentTimeMillis() - start >= enqueueTimeoutMillis) {
+				rejectMeter.mark();
+				throw new IndexObjectException("Timed out after " + enqueueTimeoutMillis + "ms waiting for room in the ring of transport " + name);
+			}
+			if(Thread.currentThread().isInterrupted()) {
+				rejectMeter.mark();
+				throw new IndexObjectException("Interrupted while waiting for room in the ring of transport " + name);
+			}
+
+			LockSupport.parkNanos(parkNanos);
+			parkNanos = Math.min(parkNanos * 2, MAX_IDLE_PARK_NANOS);
+		}
+	}
+
+	/**
+	 * Stops once everything enqueued so far is indexed.
+	 */
+	public void stopWhenDrained() {
+		draining = true;
+		wakeUp();
+	}
+
+	/**
+	 * Stops after the batch being indexed, leaving the rest unindexed.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		wakeUp();
+	}
+
+	private void wakeUp() {
+		Thread current = dispatcher;
+		if(current != null) LockSupport.unpark(current);
+	}
+
+	public int getUnsentMessageCount() {
+		return ring.size();
+	}
+
+	public int getIndexedCount() {
+		return workerPool == null ? 0 : workerPool.getIndexedCount();
+	}
+
+	/**
+	 * Enqueue, dispatch and indexing rates, indexing latencies and queue
+	 * depth. Worker metrics show up once the transport is running.
+	 */
+	public MetricsRegistry getMetrics() {
+		return metrics;
+	}
+
+	public int getCapacity() {
+		return ring.capacity();
+	}
+
+	public void setWorkerCount(int workerCount) {
+		this.workerCount = workerCount;
+	}
+
+	/**
+	 * Maximum number of PDUs handed to the workers at once, 64 by default.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public void setBatchLingerMillis(long batchLingerMillis) {
+		this.batchLingerMillis = batchLingerMillis;
+	}
+
+	/**
+	 * How long a caller waits for room in a full ring before failing.
+	 * Waits forever by default.
+	 */
+	public void setEnqueueTimeoutMillis(long enqueueTimeoutMillis) {
+		this.enqueueTimeoutMillis = enqueueTimeoutMillis;
+	}
+
+	/**
+	 * Whether workers apply their PDUs through the bulk methods of the
+	 * {@link IndexerService}.
+	 */
+	public void setBulk(boolean bulk) {
+		this.bulk = bulk;
+	}
+
+	/**
+	 * How operations failing with an <code>IndexObjectException</code> are
+	 * retried. By default they aren't, and their futures fail.
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Loads the entities of reference PDUs (see
+	 * {@link JmsOfflineIndexer#setReferenceMode(boolean)}).
+	 */
+	public void setEntityLoader(EntityLoader entityLoader) {
+		this.entityLoader = entityLoader;
+	}
+
+	public void setEntityCache(EntityCache entityCache) {
+		this.entityCache = entityCache;
+	}
+}
@@ -0,0 +1,297 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jklas.search.exception.IndexObjectException;
+import com.jklas.search.index.dto.IndexObjectDto;
+import com.jklas.search.indexer.IndexerAction;
+import com.jklas.search.indexer.IndexerService;
+
+/**
+ * Applies received PDUs to an {@link IndexerService}, either one by one or
+ * grouped through the bulk methods of the service.
+ * <p>
+ * With {@link AppliedVersions}, versioned PDUs are applied one by one in
+ * any order: those older than the version applied to their entity are
+ * skipped, and creates and updates are applied as CREATE_OR_UPDATE, as
+ * whether the entity is in the index depends on what was skipped.
+ */
+class IndexBatchApplier {
+
+	private final IndexerService indexerService;
+
+	private final Meter failures;
+
+	private final Meter retries;
+
+	private final Meter stale;
+
+	private final Map<IndexerAction, Histogram> latencies = new EnumMap<IndexerAction, Histogram>(IndexerAction.class);
+
+	private volatile RetryPolicy retryPolicy = RetryPolicy.NONE;
+
+	private volatile AppliedVersions appliedVersions;
+
+	IndexBatchApplier(IndexerService indexerService, MetricsRegistry metrics) {
+		this.indexerService = indexerService;
+		this.failures = metrics.meter("indexFailures");
+		this.retries = metrics.meter("indexRetries");
+		this.stale = metrics.meter("staleSkipped");
+
+		for (IndexerAction action : IndexerAction.values()) {
+			latencies.put(action, metrics.histogram("indexLatencyNanos." + action.name()));
+		}
+	}
+
+	/**
+	 * Applies the PDUs, returning those that failed for good.
+	 */
+	List<IndexFailure> apply(List<JmsIndexPDU> pdus, boolean bulk) {
+		return apply(pdus, bulk, null);
+	}
+
+	/**
+	 * Applies the PDUs, returning those that failed for good, and adds
+	 * those applied to <code>applied</code> in the order they were
+	 * applied. Failed and stale PDUs are left out.
+	 */
+	List<IndexFailure> apply(List<JmsIndexPDU> pdus, boolean bulk, List<JmsIndexPDU> applied) {
+		List<IndexFailure> failed = new ArrayList<IndexFailure>(0);
+
+		AppliedVersions versions = appliedVersions;
+		if(versions != null) {
+			for (JmsIndexPDU pdu : pdus) {
+				if(pdu.getVersion() != 0) {
+					indexVersioned(pdu, versions, failed, applied);
+				} else if(index(pdu, pdu.getAction(), failed)) {
+					record(pdu, applied);
+				}
+			}
+		} else if(bulk) {
+			bulkIndex(pdus, failed, applied);
+		} else {
+			for (JmsIndexPDU pdu : pdus) {
+				if(index(pdu, pdu.getAction(), failed)) {
+					record(pdu, applied);
+				}
+			}
+		}
+
+		return failed;
+	}
+
+	private static void record(JmsIndexPDU pdu, List<JmsIndexPDU> applied) {
+		if(applied != null) applied.add(pdu);
+	}
+
+	private void indexVersioned(JmsIndexPDU pdu, AppliedVersions versions, List<IndexFailure> failed, List<JmsIndexPDU> applied) {
+		EntityKey entity = EntityKey.of(pdu);
+		long key = AppliedVersions.keyOf(entity);
+
+		long appliedVersion = 0;
+		try {
+			if(pdu.getVersion() <= versions.claim(key, entity)) {
+				stale.mark();
+				return;
+			}
+
+			IndexerAction action = pdu.getAction();
+			if(action == IndexerAction.CREATE || action == IndexerAction.UPDATE) {
+				action = IndexerAction.CREATE_OR_UPDATE;
+			}
+
+			if(index(pdu, action, failed)) {
+				appliedVersion = pdu.getVersion();
+				record(pdu, applied);
+			}
+		} finally {
+			versions.release(key, entity, appliedVersion);
+		}
+	}
+
+	/**
+	 * Retries an <code>IndexObjectException</code> as the {@link RetryPolicy}
+	 * allows. Runtime exceptions are bugs or bad data, and aren't retried.
+	 *
+	 * @return whether the PDU was applied
+	 */
+	private boolean index(JmsIndexPDU pdu, IndexerAction action, List<IndexFailure> failed) {
+		long start = System.nanoTime();
+		boolean applied = false;
+
+		for (int attempt = 1; ; attempt++) {
+			try {
+				action.execute(indexerService, pdu.getIndexObjectDto());
+				applied = true;
+				break;
+			} catch (IndexObjectException e) {
+				if(!retryPolicy.canRetry(attempt) || !backOff(attempt)) {
+					failed(pdu, e, attempt, failed);
+					break;
+				}
+				retries.mark();
+			} catch (RuntimeException e) {
+				failed(pdu, e, attempt, failed);
+				break;
+			}
+		}
+
+		latencies.get(action).update(System.nanoTime() - start);
+		return applied;
+	}
+
+	private boolean backOff(int attempt) {
+		try {
+			Thread.sleep(retryPolicy.backoffMillis(attempt));
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private void failed(JmsIndexPDU pdu, Throwable cause, int attempts, List<IndexFailure> failed) {
+		failures.mark();
+		failed.add(new IndexFailure(pdu, cause, attempts));
+	}
+
+	/**
+	 * Groups PDUs by {@link IndexerAction} and hands every group to the
+	 * matching bulk method of the {@link IndexerService}. Groups are
+	 * flushed early whenever an entity shows up again under a different
+	 * action, so operations on the same entity keep their order.
+	 */
+	private void bulkIndex(List<JmsIndexPDU> pdus, List<IndexFailure> failed, List<JmsIndexPDU> applied) {
+		Map<IndexerAction, List<JmsIndexPDU>> groups = new LinkedHashMap<IndexerAction, List<JmsIndexPDU>>();
+		Map<EntityKey, IndexerAction> grouped = new HashMap<EntityKey, IndexerAction>();
+
+		for (JmsIndexPDU pdu : pdus) {
+			EntityKey key = EntityKey.of(pdu);
+			IndexerAction previous = grouped.get(key);
+
+			if(previous != null && previous != pdu.getAction()) {
+				bulkIndex(groups, failed, applied);
+				grouped.clear();
+			}
+
+			List<JmsIndexPDU> group = groups.get(pdu.getAction());
+			if(group == null) {
+				group = new ArrayList<JmsIndexPDU>();
+				groups.put(pdu.getAction(), group);
+			}
+
+			group.add(pdu);
+			grouped.put(key, pdu.getAction());
+		}
+
+		bulkIndex(groups, failed, applied);
+	}
+
+	/**
+	 * A group that fails is applied again one PDU at a time, so that a
+	 * single bad entity doesn't take the rest of the group down with it.
+	 * Part of the group may have been applied before it failed, so creates
+	 * are applied again as CREATE_OR_UPDATE.
+	 */
+	private void bulkIndex(Map<IndexerAction, List<JmsIndexPDU>> groups, List<IndexFailure> failed, List<JmsIndexPDU> applied) {
+		for (Map.Entry<IndexerAction, List<JmsIndexPDU>> group : groups.entrySet()) {
+			long start = System.nanoTime();
+			try {
+				bulkExecute(group.getKey(), dtosOf(group.getValue()));
+				latencies.get(group.getKey()).update(System.nanoTime() - start);
+				if(applied != null) applied.addAll(group.getValue());
+			} catch (IndexObjectException e) {
+				applyOneByOne(group.getValue(), failed, applied);
+			} catch (RuntimeException e) {
+				applyOneByOne(group.getValue(), failed, applied);
+			}
+		}
+		groups.clear();
+	}
+
+	private void applyOneByOne(List<JmsIndexPDU> pdus, List<IndexFailure> failed, List<JmsIndexPDU> applied) {
+		for (JmsIndexPDU pdu : pdus) {
+			IndexerAction action = pdu.getAction() == IndexerAction.CREATE ? IndexerAction.CREATE_OR_UPDATE : pdu.getAction();
+			if(index(pdu, action, failed)) {
+				record(pdu, applied);
+			}
+		}
+	}
+
+	private static List<IndexObjectDto> dtosOf(List<JmsIndexPDU> pdus) {
+		List<IndexObjectDto> dtos = new ArrayList<IndexObjectDto>(pdus.size());
+		for (JmsIndexPDU pdu : pdus) {
+			dtos.add(pdu.getIndexObjectDto());
+		}
+		return dtos;
+	}
+
+	private void bulkExecute(IndexerAction action, List<IndexObjectDto> dtos) throws IndexObjectException {
+		switch (action) {
+		case CREATE:
+			indexerService.bulkDtoCreate(dtos);
+			break;
+		case UPDATE:
+			indexerService.bulkDtoUpdate(dtos);
+			break;
+		case DELETE:
+			indexerService.bulkDtoDelete(dtos);
+			break;
+		case CREATE_OR_UPDATE:
+			indexerService.bulkDtoCreateOrUpdate(dtos);
+			break;
+		default:
+			for (IndexObjectDto dto : dtos) {
+				action.execute(indexerService, dto);
+			}
+		}
+	}
+
+	/**
+	 * Operations that failed for good.
+	 */
+	long getFailureCount() {
+		return failures.getCount();
+	}
+
+	void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	void setAppliedVersions(AppliedVersions appliedVersions) {
+		this.appliedVersions = appliedVersions;
+	}
+
+	AppliedVersions getAppliedVersions() {
+		return appliedVersions;
+	}
+
+}
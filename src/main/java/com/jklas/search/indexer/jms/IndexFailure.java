@@ -0,0 +1,59 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+/**
+ * An operation that couldn't be indexed, after as many attempts as the
+ * {@link RetryPolicy} allowed.
+ */
+public class IndexFailure {
+
+	private final JmsIndexPDU pdu;
+
+	private final Throwable cause;
+
+	private final int attempts;
+
+	IndexFailure(JmsIndexPDU pdu, Throwable cause, int attempts) {
+		this.pdu = pdu;
+		this.cause = cause;
+		this.attempts = attempts;
+	}
+
+	public JmsIndexPDU getPdu() {
+		return pdu;
+	}
+
+	/**
+	 * What the last attempt failed with.
+	 */
+	public Throwable getCause() {
+		return cause;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	@Override
+	public String toString() {
+		return pdu.getAction() + " " + EntityKey.of(pdu) + " failed after " + attempts + " attempts: " + cause;
+	}
+}
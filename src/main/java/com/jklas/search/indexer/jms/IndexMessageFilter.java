@@ -0,0 +1,132 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.jklas.search.indexer.IndexerAction;
+
+/**
+ * Declares which messages a consumer handles, by entity class, action and
+ * index name. It turns into a JMS message selector, so the broker only
+ * delivers matching messages and the others are never deserialized.
+ * <p>
+ * The producer must stamp routing properties (see
+ * {@link JmsOfflineIndexerProducer#setRoutingProperties(boolean)} and
+ * {@link JmsOfflineIndexerProducer#setIndexName(String)}). Messages
+ * without them don't match a filter that names classes, actions or
+ * indexes. An empty filter matches everything.
+ * <p>
+ * Operations on an entity handled by different consumers, such as its
+ * updates and its deletes, may be indexed out of order.
+ */
+public class IndexMessageFilter {
+
+	private final Set<String> entityClassNames = new LinkedHashSet<String>();
+
+	private final Set<IndexerAction> actions = EnumSet.noneOf(IndexerAction.class);
+
+	private final Set<String> indexNames = new LinkedHashSet<String>();
+
+	public IndexMessageFilter addEntityClass(Class<?> entityClass) {
+		return addEntityClassName(entityClass.getName());
+	}
+
+	public IndexMessageFilter addEntityClassName(String entityClassName) {
+		entityClassNames.add(entityClassName);
+		return this;
+	}
+
+	public IndexMessageFilter addAction(IndexerAction action) {
+		actions.add(action);
+		return this;
+	}
+
+	public IndexMessageFilter addIndexName(String indexName) {
+		indexNames.add(indexName);
+		return this;
+	}
+
+	/**
+	 * Entity class names to accept, so filters can be configured as a
+	 * list of names.
+	 */
+	public void setEntityClassNames(Collection<String> entityClassNames) {
+		this.entityClassNames.clear();
+		this.entityClassNames.addAll(entityClassNames);
+	}
+
+	public void setActions(Collection<IndexerAction> actions) {
+		this.actions.clear();
+		this.actions.addAll(actions);
+	}
+
+	public void setIndexNames(Collection<String> indexNames) {
+		this.indexNames.clear();
+		this.indexNames.addAll(indexNames);
+	}
+
+	public boolean isEmpty() {
+		return entityClassNames.isEmpty() && actions.isEmpty() && indexNames.isEmpty();
+	}
+
+	/**
+	 * The message selector, or null when the filter is empty.
+	 */
+	public String toSelector() {
+		StringBuilder selector = new StringBuilder();
+
+		appendIn(selector, JmsIndexMessageProperties.ENTITY_CLASS, entityClassNames);
+
+		Set<String> actionNames = new LinkedHashSet<String>();
+		for (IndexerAction action : actions) {
+			actionNames.add(action.name());
+		}
+		appendIn(selector, JmsIndexMessageProperties.ACTION, actionNames);
+
+		appendIn(selector, JmsIndexMessageProperties.INDEX_NAME, indexNames);
+
+		return selector.length() == 0 ? null : selector.toString();
+	}
+
+	private static void appendIn(StringBuilder selector, String property, Set<String> values) {
+		if(values.isEmpty()) return;
+
+		if(selector.length() > 0) selector.append(" AND ");
+
+		selector.append(property).append(" IN (");
+		for (Iterator<String> value = values.iterator(); value.hasNext();) {
+			// quotes are escaped by doubling them
+			selector.append('\'').append(value.next().replace("'", "''")).append('\'');
+			if(value.hasNext()) selector.append(", ");
+		}
+		selector.append(')');
+	}
+
+	@Override
+	public String toString() {
+		String selector = toSelector();
+		return selector == null ? "all messages" : selector;
+	}
+}
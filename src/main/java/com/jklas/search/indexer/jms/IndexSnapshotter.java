@@ -0,0 +1,308 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jklas.search.indexer.IndexerAction;
+
+/**
+ * Keeps the latest state of every document a consumer indexed and writes it
+ * periodically to a snapshot file, together with the sequence of the last
+ * operation applied from each publisher.
+ * <p>
+ * A consumer restarted on the snapshot indexes its documents back, then
+ * skips the operations the snapshot already covers. A new node can start
+ * from a copy of another node's snapshot, as long as its subscription
+ * already existed when the snapshot was taken.
+ * <p>
+ * Snapshots are written by a background thread. The consumer only pays
+ * for updating the documents kept in memory, and for a copy of them each
+ * time a snapshot is taken. Operations acknowledged after the last
+ * snapshot are lost if the consumer crashes, unless the broker still holds
+ * them, so the consumer takes a last snapshot when it shuts down.
+ */
+public class IndexSnapshotter {
+
+	private static final int MAGIC = 0x53524348;
+
+	private static final int VERSION = 1;
+
+	private final File file;
+
+	private final long intervalMillis;
+
+	private JmsIndexCodec codec = new SerializationIndexCodec();
+
+	private final Map<EntityKey, JmsIndexPDU> documents = new LinkedHashMap<EntityKey, JmsIndexPDU>();
+
+	private ReplicationTracker tracker = new ReplicationTracker();
+
+	private boolean dirty;
+
+	private Thread writer;
+
+	private volatile boolean stopped;
+
+	private volatile int snapshotCount;
+
+	public IndexSnapshotter(File file, long intervalMillis) {
+		this.file = file;
+		this.intervalMillis = intervalMillis;
+	}
+
+	/**
+	 * Codec the documents are written with, Java serialization by default.
+	 * It must be registered in {@link JmsIndexCodecs} to read the snapshot
+	 * back.
+	 */
+	public void setCodec(JmsIndexCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Reads the snapshot file, if there is one, and restores the sequences
+	 * it covers into the tracker.
+	 *
+	 * @return the documents to index again, as creates
+	 */
+	synchronized List<JmsIndexPDU> restore(ReplicationTracker tracker) throws IOException {
+		this.tracker = tracker;
+
+		if(!file.exists()) return new ArrayList<JmsIndexPDU>();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			DataInputStream in = new DataInputStream(new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())));
+
+			if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not an index snapshot: " + file);
+			}
+
+			String codecName = in.readUTF();
+			JmsIndexCodec snapshotCodec = JmsIndexCodecs.forName(codecName);
+			if(snapshotCodec == null) {
+				throw new IOException("No codec registered as " + codecName + " to read snapshot " + file);
+			}
+
+			Map<String, Long> checkpoint = new LinkedHashMap<String, Long>();
+			int publisherCount = in.readInt();
+			for (int i = 0; i < publisherCount; i++) {
+				checkpoint.put(in.readUTF(), in.readLong());
+			}
+
+			JmsIndexBatchPDU snapshot = (JmsIndexBatchPDU) snapshotCodec.decode(in);
+
+			List<JmsIndexPDU> restored = new ArrayList<JmsIndexPDU>(snapshot.size());
+			documents.clear();
+			for (JmsIndexPDU document : snapshot.getPdus()) {
+				documents.put(EntityKey.of(document), document);
+
+				JmsIndexPDU recreated;
+				if(document.isReference()) {
+					recreated = new JmsIndexPDU(IndexerAction.CREATE, document.getReference());
+				} else {
+					recreated = new JmsIndexPDU(IndexerAction.CREATE, document.getIndexObjectDto());
+				}
+				recreated.setVersion(document.getVersion());
+				restored.add(recreated);
+			}
+
+			tracker.restore(checkpoint);
+			return restored;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Records the operations just applied and acknowledged, in the order
+	 * they were applied, along with the sequences the tracker received.
+	 * Operations that failed or were skipped as stale don't belong here.
+	 */
+	synchronized void applied(List<JmsIndexPDU> pdus) {
+		for (JmsIndexPDU pdu : pdus) {
+			EntityKey key = EntityKey.of(pdu);
+			if(pdu.getAction() == IndexerAction.DELETE) {
+				documents.remove(key);
+			} else {
+				documents.put(key, pdu);
+			}
+		}
+
+		tracker.applied();
+		dirty = true;
+	}
+
+	/**
+	 * Starts taking a snapshot every interval, when something changed.
+	 */
+	synchronized void start() {
+		stopped = false;
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(!stopped) {
+					try {
+						Thread.sleep(intervalMillis);
+						snapshot();
+					} catch (InterruptedException e) {
+						return;
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		});
+		writer.setName("IndexSnapshotter-" + file.getName());
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Stops the background thread and takes a last snapshot.
+	 */
+	void stop() throws IOException {
+		Thread stoppedWriter;
+		synchronized (this) {
+			stopped = true;
+			stoppedWriter = writer;
+			writer = null;
+		}
+
+		if(stoppedWriter != null) {
+			stoppedWriter.interrupt();
+			try {
+				stoppedWriter.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		snapshot();
+	}
+
+	/**
+	 * Writes a snapshot now, unless nothing changed since the last one.
+	 */
+	public void snapshot() throws IOException {
+		List<JmsIndexPDU> copy;
+		Map<String, Long> checkpoint;
+
+		synchronized (this) {
+			if(!dirty) return;
+			copy = new ArrayList<JmsIndexPDU>(documents.values());
+			checkpoint = tracker.getAppliedSequences();
+			dirty = false;
+		}
+
+		try {
+			write(copy, checkpoint);
+		} catch (IOException e) {
+			synchronized (this) {
+				dirty = true;
+			}
+			throw e;
+		}
+		snapshotCount++;
+	}
+
+	private void write(List<JmsIndexPDU> copy, Map<String, Long> checkpoint) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		codec.encode(new JmsIndexBatchPDU(copy), body);
+
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(codec.getName());
+			out.writeInt(checkpoint.size());
+			for (Map.Entry<String, Long> publisher : checkpoint.entrySet()) {
+				out.writeUTF(publisher.getKey());
+				out.writeLong(publisher.getValue());
+			}
+			body.writeTo(out);
+		} finally {
+			out.close();
+		}
+
+		// never leave a half written snapshot behind
+		if(!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+			throw new IOException("Can't replace snapshot " + file);
+		}
+	}
+
+	public synchronized int getDocumentCount() {
+		return documents.size();
+	}
+
+	public int getSnapshotCount() {
+		return snapshotCount;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if(!buffer.hasRemaining()) return -1;
+
+			int read = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, read);
+			return read;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
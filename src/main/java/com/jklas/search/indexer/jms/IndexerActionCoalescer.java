@@ -0,0 +1,76 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import com.jklas.search.indexer.IndexerAction;
+
+/**
+ * Folds two consecutive operations on the same entity into one.
+ */
+public final class IndexerActionCoalescer {
+
+	private IndexerActionCoalescer() {}
+
+	/**
+	 * Returns the single action equivalent to applying <code>previous</code>
+	 * and then <code>next</code> to the same entity, or <code>null</code>
+	 * when both cancel out (the entity is created and then deleted before
+	 * reaching the index).
+	 */
+	public static IndexerAction coalesce(IndexerAction previous, IndexerAction next) {
+		if(previous == IndexerAction.CREATE) {
+			return next == IndexerAction.DELETE ? null : IndexerAction.CREATE;
+		}
+
+		if(next == IndexerAction.DELETE) {
+			return IndexerAction.DELETE;
+		}
+
+		if(previous == IndexerAction.DELETE || previous == IndexerAction.CREATE_OR_UPDATE || next == IndexerAction.CREATE) {
+			// whether the entity is in the index is no longer known
+			return IndexerAction.CREATE_OR_UPDATE;
+		}
+
+		return next;
+	}
+
+	/**
+	 * Coalesces two PDUs for the same entity. The resulting PDU carries the
+	 * latest entity state, and sending it completes the futures of both.
+	 */
+	public static JmsIndexPDU coalesce(JmsIndexPDU previous, JmsIndexPDU next) {
+		IndexerAction action = coalesce(previous.getAction(), next.getAction());
+
+		if(action == null) return null;
+
+		JmsIndexPDU coalesced;
+		if(next.isReference()) {
+			coalesced = new JmsIndexPDU(action, next.getReference());
+		} else {
+			coalesced = new JmsIndexPDU(action, next.getIndexObjectDto());
+		}
+
+		// latency is measured from the oldest change
+		coalesced.setEnqueueTime(previous.getEnqueueTime() != 0 ? previous.getEnqueueTime() : next.getEnqueueTime());
+		coalesced.setVersion(next.getVersion());
+		coalesced.setSendFuture(SendFuture.merge(previous.getSendFuture(), next.getSendFuture()));
+		return coalesced;
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Records how long the messages of a read spend in every stage, from the
+ * call to {@link JmsOfflineIndexer} until the operations are indexed. All
+ * histograms are in microseconds.
+ * <p>
+ * Stages spanning producer and consumer compare wall clocks of different
+ * hosts, so they are only as accurate as the clocks are in sync.
+ */
+class IndexingLatencyTracker {
+
+	static final String QUEUED = "latencyMicros.queued";
+	static final String TRANSIT = "latencyMicros.transit";
+	static final String DECODE = "latencyMicros.decode";
+	static final String INDEX = "latencyMicros.index";
+	static final String END_TO_END = "latencyMicros.endToEndPerMessage";
+
+	/** enqueue to send, spent in the producer */
+	private final Histogram queued;
+
+	/** send to receive, spent in the broker */
+	private final Histogram transit;
+
+	/** receive to decoded */
+	private final Histogram decode;
+
+	/** decoded to indexed, including the wait for the worker pool */
+	private final Histogram index;
+
+	/**
+	 * enqueue to indexed, once per message whatever the operations it
+	 * carries, from the oldest of them: a message only carries that one
+	 * enqueue time
+	 */
+	private final Histogram endToEnd;
+
+	private long[] enqueueTimes = new long[16];
+
+	private int messageCount;
+
+	IndexingLatencyTracker(MetricsRegistry metrics) {
+		this.queued = metrics.histogram(QUEUED);
+		this.transit = metrics.histogram(TRANSIT);
+		this.decode = metrics.histogram(DECODE);
+		this.index = metrics.histogram(INDEX);
+		this.endToEnd = metrics.histogram(END_TO_END);
+	}
+
+	void reset() {
+		messageCount = 0;
+	}
+
+	void received(Message message, long receivedAt) throws JMSException {
+		long enqueueTime = 0;
+		if(message.propertyExists(JmsIndexMessageProperties.ENQUEUE_TIME)) {
+			enqueueTime = message.getLongProperty(JmsIndexMessageProperties.ENQUEUE_TIME);
+		}
+
+		if(message.propertyExists(JmsIndexMessageProperties.SEND_TIME)) {
+			long sendTime = message.getLongProperty(JmsIndexMessageProperties.SEND_TIME);
+
+			transit.update((receivedAt - sendTime) * 1000);
+			if(enqueueTime != 0) {
+				queued.update((sendTime - enqueueTime) * 1000);
+			}
+		}
+
+		if(messageCount == enqueueTimes.length) {
+			long[] grown = new long[enqueueTimes.length * 2];
+			System.arraycopy(enqueueTimes, 0, grown, 0, messageCount);
+			enqueueTimes = grown;
+		}
+		enqueueTimes[messageCount++] = enqueueTime;
+	}
+
+	void decoded(long elapsedNanos) {
+		decode.update(elapsedNanos / 1000);
+	}
+
+	/**
+	 * Records the indexing time and the end-to-end latency of every
+	 * message received since the last reset, one sample per message.
+	 */
+	void indexed(long elapsedNanos) {
+		index.update(elapsedNanos / 1000);
+
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < messageCount; i++) {
+			if(enqueueTimes[i] != 0) {
+				endToEnd.update((now - enqueueTimes[i]) * 1000);
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One thread of an {@link IndexingWorkerPool}. Tasks are applied in the
+ * order they were submitted, which is what keeps operations on the same
+ * entity in order.
+ */
+public class IndexingWorker implements Runnable {
+
+	private static final Task STOP = new Task(null, null, null, null);
+
+	private final String name;
+
+	private final IndexingWorkerPool pool;
+
+	private final IndexBatchApplier applier;
+
+	private final BlockingQueue<Task> tasks = new LinkedBlockingQueue<Task>();
+
+	private final AtomicInteger receivedCount = new AtomicInteger();
+
+	private final AtomicInteger indexedCount = new AtomicInteger();
+
+	IndexingWorker(String name, IndexingWorkerPool pool, IndexBatchApplier applier) {
+		this.name = name;
+		this.pool = pool;
+		this.applier = applier;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while(true) {
+				Task task = tasks.take();
+				if(task == STOP) break;
+
+				try {
+					List<IndexFailure> failed = applier.apply(task.pdus, pool.isBulk(), task.applied);
+					if(!failed.isEmpty()) task.failures.addAll(failed);
+				} finally {
+					indexedCount.addAndGet(task.pdus.size());
+					pool.indexed(task.pdus.size());
+					task.done.countDown();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	void submit(List<JmsIndexPDU> pdus, CountDownLatch done, List<IndexFailure> failures, List<JmsIndexPDU> applied) {
+		receivedCount.addAndGet(pdus.size());
+		tasks.add(new Task(pdus, done, failures, applied));
+	}
+
+	void stop() {
+		tasks.add(STOP);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getReceivedCount() {
+		return receivedCount.get();
+	}
+
+	public int getIndexedCount() {
+		return indexedCount.get();
+	}
+
+	public int getPendingTaskCount() {
+		return tasks.size();
+	}
+
+	private static class Task {
+		private final List<JmsIndexPDU> pdus;
+		private final CountDownLatch done;
+		private final List<IndexFailure> failures;
+		private final List<JmsIndexPDU> applied;
+
+		private Task(List<JmsIndexPDU> pdus, CountDownLatch done, List<IndexFailure> failures, List<JmsIndexPDU> applied) {
+			this.pdus = pdus;
+			this.done = done;
+			this.failures = failures;
+			this.applied = applied;
+		}
+	}
+}
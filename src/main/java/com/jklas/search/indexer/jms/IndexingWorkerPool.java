@@ -0,0 +1,298 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.jklas.search.indexer.IndexerService;
+
+/**
+ * Indexes PDUs on a set of worker threads. PDUs are partitioned by
+ * {@link EntityKey}, so every operation on a given entity is applied by
+ * the same worker and CREATE, UPDATE and DELETE are never reordered.
+ * <p>
+ * The pool can be resized while running, which moves entities to other
+ * workers. Order still holds because callers wait for the PDUs they handed
+ * over before handing over more on the same entities.
+ */
+public class IndexingWorkerPool {
+
+	private final String name;
+
+	private volatile IndexingWorker[] workers;
+
+	private Thread[] threads;
+
+	private final List<Thread> retiredThreads = new ArrayList<Thread>();
+
+	private final ReadWriteLock resizeLock = new ReentrantReadWriteLock();
+
+	private int nextWorkerId = 0;
+
+	private volatile boolean bulk = false;
+
+	private final Object indexedLock = new Object();
+
+	private int indexedCount = 0;
+
+	private final Meter indexedMeter;
+
+	private final IndexBatchApplier applier;
+
+	private final MetricsRegistry metrics;
+
+	public IndexingWorkerPool(String name, IndexerService indexerService, int workerCount) {
+		this(name, indexerService, workerCount, new MetricsRegistry("IndexingWorkerPool", name));
+	}
+
+	/**
+	 * Creates a pool recording indexed operations and indexing latencies in
+	 * the given registry.
+	 */
+	public IndexingWorkerPool(String name, IndexerService indexerService, int workerCount, MetricsRegistry metrics) {
+		this.name = name;
+		this.workers = new IndexingWorker[workerCount];
+		this.threads = new Thread[workerCount];
+		this.indexedMeter = metrics.meter("indexed");
+		this.metrics = metrics;
+
+		this.applier = new IndexBatchApplier(indexerService, metrics);
+
+		for (int i = 0; i < workerCount; i++) {
+			workers[i] = newWorker();
+		}
+	}
+
+	private IndexingWorker newWorker() {
+		return new IndexingWorker(name + "-worker-" + nextWorkerId++, this, applier);
+	}
+
+	public synchronized void start() {
+		for (int i = 0; i < workers.length; i++) {
+			threads[i] = startThread(workers[i]);
+		}
+	}
+
+	private Thread startThread(IndexingWorker worker) {
+		Thread thread = new Thread(worker);
+		thread.setName(worker.getName());
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Adds or retires workers. Retired workers apply what they were handed
+	 * before they stop.
+	 */
+	public synchronized void resize(int workerCount) {
+		if(workerCount < 1) throw new IllegalArgumentException("A pool needs at least one worker, got " + workerCount);
+
+		resizeLock.writeLock().lock();
+		try {
+			IndexingWorker[] resizedWorkers = Arrays.copyOf(workers, workerCount);
+			Thread[] resizedThreads = Arrays.copyOf(threads, workerCount);
+
+			for (int i = workerCount; i < workers.length; i++) {
+				workers[i].stop();
+				if(threads[i] != null) retiredThreads.add(threads[i]);
+			}
+
+			boolean started = threads.length > 0 && threads[0] != null;
+			for (int i = workers.length; i < workerCount; i++) {
+				resizedWorkers[i] = newWorker();
+				if(started) resizedThreads[i] = startThread(resizedWorkers[i]);
+			}
+
+			workers = resizedWorkers;
+			threads = resizedThreads;
+		} finally {
+			resizeLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Indexes the given PDUs and waits until every one of them was applied.
+	 *
+	 * @return the operations that failed for good
+	 */
+	public List<IndexFailure> execute(List<JmsIndexPDU> pdus) throws InterruptedException {
+		return execute(pdus, null);
+	}
+
+	/**
+	 * Indexes the given PDUs and waits until every one of them was applied,
+	 * adding those applied to <code>applied</code> as workers apply them.
+	 * Operations on the same entity are added in the order they were
+	 * applied; failed and stale ones are left out.
+	 *
+	 * @param applied a list workers may add to concurrently, or null
+	 * @return the operations that failed for good
+	 */
+	public List<IndexFailure> execute(List<JmsIndexPDU> pdus, List<JmsIndexPDU> applied) throws InterruptedException {
+		if(pdus.isEmpty()) return Collections.emptyList();
+
+		CountDownLatch done;
+		List<IndexFailure> failures = Collections.synchronizedList(new ArrayList<IndexFailure>(0));
+
+		resizeLock.readLock().lock();
+		try {
+			IndexingWorker[] current = workers;
+			List<List<JmsIndexPDU>> partitions = partition(pdus, current.length);
+
+			int pending = 0;
+			for (List<JmsIndexPDU> partition : partitions) {
+				if(partition != null) pending++;
+			}
+
+			done = new CountDownLatch(pending);
+
+			for (int i = 0; i < current.length; i++) {
+				if(partitions.get(i) != null) {
+					current[i].submit(partitions.get(i), done, failures, applied);
+				}
+			}
+		} finally {
+			resizeLock.readLock().unlock();
+		}
+
+		done.await();
+		return failures;
+	}
+
+	/**
+	 * Versioned PDUs are spread evenly when versions are checked, as they
+	 * no longer need to be applied in order.
+	 */
+	private List<List<JmsIndexPDU>> partition(List<JmsIndexPDU> pdus, int workerCount) {
+		List<List<JmsIndexPDU>> partitions = new ArrayList<List<JmsIndexPDU>>(Collections.<List<JmsIndexPDU>>nCopies(workerCount, null));
+		boolean spread = applier.getAppliedVersions() != null;
+
+		for (int i = 0; i < pdus.size(); i++) {
+			JmsIndexPDU pdu = pdus.get(i);
+			int worker = spread && pdu.getVersion() != 0 ? i % workerCount : EntityKey.of(pdu).partition(workerCount);
+
+			List<JmsIndexPDU> partition = partitions.get(worker);
+			if(partition == null) {
+				partition = new ArrayList<JmsIndexPDU>();
+				partitions.set(worker, partition);
+			}
+			partition.add(pdu);
+		}
+
+		return partitions;
+	}
+
+	public synchronized void shutdown() throws InterruptedException {
+		for (IndexingWorker worker : workers) {
+			worker.stop();
+		}
+
+		for (Thread thread : threads) {
+			if(thread != null) thread.join();
+		}
+
+		for (Thread thread : retiredThreads) {
+			thread.join();
+		}
+		retiredThreads.clear();
+	}
+
+	void indexed(int count) {
+		indexedMeter.mark(count);
+
+		synchronized (indexedLock) {
+			indexedCount += count;
+			indexedLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Blocks until the pool indexed at least <code>count</code> operations.
+	 */
+	public void awaitIndexedCount(int count) throws InterruptedException {
+		synchronized (indexedLock) {
+			while(indexedCount < count) {
+				indexedLock.wait();
+			}
+		}
+	}
+
+	public int getIndexedCount() {
+		synchronized (indexedLock) {
+			return indexedCount;
+		}
+	}
+
+	/**
+	 * The current workers, without those retired by {@link #resize(int)}.
+	 */
+	public List<IndexingWorker> getWorkers() {
+		return Collections.unmodifiableList(Arrays.asList(workers));
+	}
+
+	public int getWorkerCount() {
+		return workers.length;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Whether workers apply their PDUs through the bulk methods of the
+	 * {@link IndexerService}.
+	 */
+	public void setBulk(boolean bulk) {
+		this.bulk = bulk;
+	}
+
+	public boolean isBulk() {
+		return bulk;
+	}
+
+	/**
+	 * How workers retry operations failing with an
+	 * <code>IndexObjectException</code>. By default they don't.
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		applier.setRetryPolicy(retryPolicy);
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return applier.getRetryPolicy();
+	}
+
+	/**
+	 * Lets workers apply versioned PDUs in any order, skipping superseded
+	 * ones, remembering the versions applied to up to
+	 * <code>capacity</code> entities.
+	 *
+	 * @see JmsOfflineIndexerConsumer#setVersionCheck(boolean)
+	 */
+	public void setVersionCheck(int capacity) {
+		applier.setAppliedVersions(JmsOfflineIndexerConsumer.appliedVersions(capacity, metrics));
+	}
+}
@@ -0,0 +1,54 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Carries several {@link JmsIndexPDU} inside a single JMS message, so
+ * the broker round trip is paid once per batch instead of once per
+ * index operation. PDUs are kept in the order they were enqueued.
+ */
+public class JmsIndexBatchPDU implements Serializable {
+
+	private static final long serialVersionUID = -3018453702496254913L;
+
+	private final List<JmsIndexPDU> pdus;
+
+	public JmsIndexBatchPDU(List<JmsIndexPDU> pdus) {
+		this.pdus = new ArrayList<JmsIndexPDU>(pdus);
+	}
+
+	public List<JmsIndexPDU> getPdus() {
+		return Collections.unmodifiableList(pdus);
+	}
+
+	JmsIndexPDU get(int index) {
+		return pdus.get(index);
+	}
+
+	public int size() {
+		return pdus.size();
+	}
+
+}
@@ -0,0 +1,44 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+/**
+ * Turns the payload of an index message ({@link JmsIndexPDU},
+ * {@link JmsIndexBatchPDU}) into bytes and back. The producer writes the
+ * bytes into a <code>BytesMessage</code> and stamps the codec name on it,
+ * so the consumer can pick the same codec from {@link JmsIndexCodecs}.
+ */
+public interface JmsIndexCodec {
+
+	/**
+	 * Name under which the codec is registered in {@link JmsIndexCodecs}.
+	 */
+	String getName();
+
+	void encode(Serializable payload, OutputStream out) throws IOException;
+
+	Serializable decode(InputStream in) throws IOException;
+
+}
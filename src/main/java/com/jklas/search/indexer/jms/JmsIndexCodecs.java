@@ -0,0 +1,52 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the codecs a consumer can decode, keyed by codec name. The
+ * binary and the Java serialization codecs are always registered.
+ */
+public final class JmsIndexCodecs {
+
+	private static final ConcurrentMap<String, JmsIndexCodec> codecs = new ConcurrentHashMap<String, JmsIndexCodec>();
+
+	static {
+		register(new BinaryIndexCodec());
+		register(new SerializationIndexCodec());
+	}
+
+	private JmsIndexCodecs() {}
+
+	public static void register(JmsIndexCodec codec) {
+		codecs.put(codec.getName(), codec);
+	}
+
+	/**
+	 * Returns the codec registered under <code>name</code>, or null if
+	 * there's none.
+	 */
+	public static JmsIndexCodec forName(String name) {
+		return name == null ? null : codecs.get(name);
+	}
+
+}
@@ -0,0 +1,534 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.Adler32;
+
+/**
+ * Append-only journal of serialized PDUs, stored in fixed size memory-mapped
+ * segment files.
+ * <p>
+ * Appends only write to the mapped pages, so they survive a JVM crash
+ * without paying an fsync per operation ({@link #force()} is there for
+ * those who also want to survive an OS crash). The producer reads records
+ * through a cursor and, once the broker accepted them, calls
+ * {@link #checkpoint()} to persist its position. Whatever lies after the
+ * checkpoint is replayed after a restart, and segments left behind by the
+ * checkpoint are recycled for new appends.
+ * <p>
+ * A segment file starts with its sequence, so a recycled segment keeps
+ * its file and mapping: some platforms refuse to rename or delete a file
+ * while it is mapped. Every record is laid out as
+ * <code>[length][segment][checksum][data]</code>. Writing the segment
+ * sequence in each record is what allows recycling a segment without
+ * zeroing it: leftovers from its previous life carry another sequence and
+ * read as the end of the segment.
+ */
+public class JmsIndexJournal {
+
+	private static final int HEADER_SIZE = 12;
+
+	/** the sequence of the segment, plus one so that 0 is a segment never used */
+	private static final int SEGMENT_HEADER_SIZE = 8;
+
+	private static final int NEXT_SEGMENT = -1;
+
+	private static final byte[] NEXT_SEGMENT_RECORD = new byte[0];
+
+	private static final String SEGMENT_SUFFIX = ".journal";
+
+	private static final String CHECKPOINT_FILE = "checkpoint";
+
+	private final File directory;
+
+	private final int segmentSize;
+
+	private int maxSegments = Integer.MAX_VALUE;
+
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+	private final LinkedList<Segment> freeSegments = new LinkedList<Segment>();
+
+	private long nextFileId;
+
+	private final MappedByteBuffer checkpointBuffer;
+
+	private Segment writeSegment;
+	private int writeOffset;
+
+	private Segment readSegment;
+	private int readOffset;
+	/** records read in the read segment */
+	private int readIndex;
+
+	private Segment checkpointSegment;
+	private int checkpointOffset;
+	private int checkpointIndex;
+
+	private int pendingCount;
+	private int unconfirmedCount;
+	private int lostCount;
+
+	private boolean wokenUp;
+
+	private boolean closed;
+
+	private final Adler32 checksum = new Adler32();
+
+	/**
+	 * Opens the journal kept in <code>directory</code>, creating it if needed.
+	 * Records appended and not checkpointed by a previous run are read again.
+	 */
+	public JmsIndexJournal(File directory, int segmentSize) throws IOException {
+		if(segmentSize <= SEGMENT_HEADER_SIZE + 2 * HEADER_SIZE) {
+			throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+		}
+
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create journal directory " + directory);
+		}
+
+		this.checkpointBuffer = map(new File(directory, CHECKPOINT_FILE), 16);
+
+		recover();
+	}
+
+	private void recover() throws IOException {
+		long checkpointSequence = checkpointBuffer.getLong(0);
+		int offset = checkpointBuffer.getInt(8);
+
+		if(checkpointBuffer.getInt(12) != checkpointChecksum(checkpointSequence, offset)) {
+			// torn or missing checkpoint: replay everything rather than lose records
+			checkpointSequence = -1;
+			offset = 0;
+		}
+
+		for (File file : listSegmentFiles()) {
+			nextFileId = Math.max(nextFileId, fileIdOf(file) + 1);
+
+			MappedByteBuffer buffer = map(file, segmentSize);
+			long sequence = buffer.getLong(0) - 1;
+
+			if(sequence < 0 || sequence < checkpointSequence) {
+				freeSegments.add(new Segment(sequence, file, buffer));
+			} else {
+				segments.add(new Segment(sequence, file, buffer));
+			}
+		}
+
+		Collections.sort(segments, new Comparator<Segment>() {
+			@Override
+			public int compare(Segment a, Segment b) {
+				return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+			}
+		});
+
+		if(segments.isEmpty()) {
+			segments.add(newSegment(Math.max(checkpointSequence, 0)));
+			offset = SEGMENT_HEADER_SIZE;
+		} else if(segments.getFirst().sequence != checkpointSequence) {
+			offset = SEGMENT_HEADER_SIZE;
+		}
+
+		checkpointSegment = segments.getFirst();
+		checkpointOffset = offset;
+
+		// walk from the checkpoint to find what is pending and where to append
+		for (Segment segment : segments) {
+			offset = segment == checkpointSegment ? checkpointOffset : SEGMENT_HEADER_SIZE;
+
+			byte[] record;
+			while((record = readRecord(segment, offset)) != null && record != NEXT_SEGMENT_RECORD) {
+				offset += HEADER_SIZE + record.length;
+				segment.recordCount++;
+				pendingCount++;
+			}
+
+			writeSegment = segment;
+			writeOffset = offset;
+		}
+
+		readSegment = checkpointSegment;
+		readOffset = checkpointOffset;
+	}
+
+	/**
+	 * Appends a record, waiting up to <code>timeoutMillis</code> for a segment
+	 * to be recycled if the journal already holds {@link #setMaxSegments(int)}
+	 * segments. Returns false if it timed out.
+	 */
+	public synchronized boolean append(byte[] data, long timeoutMillis) throws IOException, InterruptedException {
+		if(closed) throw new IOException("Journal " + directory + " is closed");
+
+		int recordSize = HEADER_SIZE + data.length;
+
+		if(SEGMENT_HEADER_SIZE + recordSize + HEADER_SIZE > segmentSize) {
+			throw new IOException("Record of " + data.length + " bytes doesn't fit in a journal segment of " + segmentSize + " bytes");
+		}
+
+		long deadline = deadline(timeoutMillis);
+
+		// always leave room for the marker that sends readers to the next segment
+		while(writeOffset + recordSize + HEADER_SIZE > segmentSize) {
+			if(segments.size() < maxSegments) {
+				roll();
+			} else {
+				long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0) return false;
+				wait(remaining);
+			}
+		}
+
+		MappedByteBuffer buffer = writeSegment.buffer;
+
+		checksum.reset();
+		checksum.update(data, 0, data.length);
+
+		buffer.position(writeOffset + HEADER_SIZE);
+		buffer.put(data);
+		buffer.putInt(writeOffset + 4, (int) writeSegment.sequence);
+		buffer.putInt(writeOffset + 8, (int) checksum.getValue());
+		// the length goes last, it's what makes the record visible
+		buffer.putInt(writeOffset, data.length);
+
+		writeOffset += recordSize;
+		writeSegment.recordCount++;
+		pendingCount++;
+
+		notifyAll();
+
+		return true;
+	}
+
+	private void roll() throws IOException {
+		MappedByteBuffer buffer = writeSegment.buffer;
+		buffer.putInt(writeOffset + 4, (int) writeSegment.sequence);
+		buffer.putInt(writeOffset + 8, 0);
+		buffer.putInt(writeOffset, NEXT_SEGMENT);
+
+		writeSegment = newSegment(writeSegment.sequence + 1);
+		writeOffset = SEGMENT_HEADER_SIZE;
+		segments.add(writeSegment);
+	}
+
+	/**
+	 * Reads up to <code>max</code> records after the read cursor, waiting up
+	 * to <code>timeoutMillis</code> for the first one. Records read are
+	 * only confirmed by {@link #checkpoint()}.
+	 */
+	public synchronized List<byte[]> read(int max, long timeoutMillis) throws InterruptedException {
+		long deadline = deadline(timeoutMillis);
+
+		while(closed || (readSegment == writeSegment && readOffset == writeOffset)) {
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0 || wokenUp || closed) {
+				wokenUp = false;
+				return new ArrayList<byte[]>(0);
+			}
+			wait(remaining);
+		}
+
+		List<byte[]> records = new ArrayList<byte[]>(Math.min(max, pendingCount));
+
+		while(records.size() < max && !(readSegment == writeSegment && readOffset == writeOffset)) {
+			byte[] record = readRecord(readSegment, readOffset);
+
+			if(record == null || record == NEXT_SEGMENT_RECORD) {
+				// roll marker, or the end of a segment cut short by a crash or corrupted
+				if(!nextReadSegment()) break;
+				continue;
+			}
+
+			records.add(record);
+
+			readOffset += HEADER_SIZE + record.length;
+			readIndex++;
+			unconfirmedCount++;
+		}
+
+		return records;
+	}
+
+	/**
+	 * Moves the read cursor to the next segment. Records of the read segment
+	 * past the one that can't be read are given up on, as nothing tells
+	 * where they start. If the read segment is also the write segment, it
+	 * is rolled first so that appends go on in the next one.
+	 *
+	 * @return false if there's no next segment to move to
+	 */
+	private boolean nextReadSegment() {
+		int lost = readSegment.recordCount - readIndex;
+		if(lost > 0) {
+			readSegment.recordCount = readIndex;
+			pendingCount -= lost;
+			lostCount += lost;
+		}
+
+		if(readSegment == writeSegment) {
+			try {
+				roll();
+			} catch (IOException e) {
+				// tried again on the next read
+				e.printStackTrace();
+				return false;
+			}
+		}
+
+		int next = segments.indexOf(readSegment) + 1;
+		if(next >= segments.size()) return false;
+
+		readSegment = segments.get(next);
+		readOffset = SEGMENT_HEADER_SIZE;
+		readIndex = 0;
+		return true;
+	}
+
+	/**
+	 * Makes a reader waiting for records return with none right away, or
+	 * the next one if none is waiting.
+	 */
+	public synchronized void wakeUp() {
+		wokenUp = true;
+		notifyAll();
+	}
+
+	/**
+	 * Confirms every record read so far, persisting the read cursor and
+	 * recycling the segments left behind.
+	 */
+	public synchronized void checkpoint() {
+		if(closed) return;
+
+		checkpointSegment = readSegment;
+		checkpointOffset = readOffset;
+		checkpointIndex = readIndex;
+
+		pendingCount -= unconfirmedCount;
+		unconfirmedCount = 0;
+
+		checkpointBuffer.putLong(0, checkpointSegment.sequence);
+		checkpointBuffer.putInt(8, checkpointOffset);
+		checkpointBuffer.putInt(12, checkpointChecksum(checkpointSegment.sequence, checkpointOffset));
+
+		while(segments.getFirst() != checkpointSegment) {
+			freeSegments.add(segments.removeFirst());
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 * Moves the read cursor back to the last checkpoint, so records that
+	 * couldn't be sent are read again.
+	 */
+	public synchronized void rewind() {
+		if(closed) return;
+
+		readSegment = checkpointSegment;
+		readOffset = checkpointOffset;
+		readIndex = checkpointIndex;
+		unconfirmedCount = 0;
+	}
+
+	/**
+	 * Flushes the mapped segments to the storage device.
+	 */
+	public synchronized void force() {
+		for (Segment segment : segments) {
+			segment.buffer.force();
+		}
+		checkpointBuffer.force();
+	}
+
+	/**
+	 * Flushes the journal and lets go of its segments, whose mappings the
+	 * JVM releases once they are garbage collected. Appends fail from then
+	 * on; what wasn't checkpointed is read again by the next journal opened
+	 * on the same directory.
+	 */
+	public synchronized void close() {
+		if(closed) return;
+
+		force();
+		for (Segment segment : freeSegments) {
+			segment.buffer.force();
+		}
+
+		closed = true;
+		segments.clear();
+		freeSegments.clear();
+		writeSegment = null;
+		readSegment = null;
+		checkpointSegment = null;
+
+		// a reader waiting for records gets none
+		notifyAll();
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Records appended and not yet confirmed by a checkpoint.
+	 */
+	public synchronized int getPendingCount() {
+		return pendingCount;
+	}
+
+	/**
+	 * Records given up on because a record before them in the same segment
+	 * couldn't be read.
+	 */
+	public synchronized int getLostCount() {
+		return lostCount;
+	}
+
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Caps the number of live segments. Appends wait for the checkpoint to
+	 * free a segment once the cap is reached.
+	 */
+	public synchronized void setMaxSegments(int maxSegments) {
+		this.maxSegments = maxSegments;
+	}
+
+	/**
+	 * Returns the data of the record at <code>offset</code>,
+	 * {@link #NEXT_SEGMENT_RECORD} for a roll marker, or null if there's no
+	 * valid record there.
+	 */
+	private byte[] readRecord(Segment segment, int offset) {
+		if(offset + HEADER_SIZE > segmentSize) return null;
+
+		ByteBuffer buffer = segment.buffer.duplicate();
+
+		int length = buffer.getInt(offset);
+		if(length == 0 || buffer.getInt(offset + 4) != (int) segment.sequence) return null;
+		if(length == NEXT_SEGMENT) return NEXT_SEGMENT_RECORD;
+		if(length < 0 || offset + HEADER_SIZE + length > segmentSize) return null;
+
+		byte[] data = new byte[length];
+		buffer.position(offset + HEADER_SIZE);
+		buffer.get(data);
+
+		checksum.reset();
+		checksum.update(data, 0, length);
+
+		return buffer.getInt(offset + 8) == (int) checksum.getValue() ? data : null;
+	}
+
+	private Segment newSegment(long sequence) throws IOException {
+		Segment segment;
+		if(freeSegments.isEmpty()) {
+			File file = new File(directory, String.format("%020d%s", nextFileId++, SEGMENT_SUFFIX));
+			segment = new Segment(sequence, file, map(file, segmentSize));
+		} else {
+			Segment recycled = freeSegments.removeFirst();
+			segment = new Segment(sequence, recycled.file, recycled.buffer);
+		}
+
+		segment.buffer.putLong(0, sequence + 1);
+		return segment;
+	}
+
+	private File[] listSegmentFiles() {
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(SEGMENT_SUFFIX);
+			}
+		});
+
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long ia = fileIdOf(a);
+				long ib = fileIdOf(b);
+				return ia < ib ? -1 : (ia == ib ? 0 : 1);
+			}
+		});
+
+		return files;
+	}
+
+	private static long deadline(long timeoutMillis) {
+		long now = System.currentTimeMillis();
+		return timeoutMillis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + timeoutMillis;
+	}
+
+	private static long fileIdOf(File file) {
+		String name = file.getName();
+		return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	private static int checkpointChecksum(long sequence, int offset) {
+		return (int) (sequence ^ (sequence >>> 32)) * 31 + offset + 1;
+	}
+
+	private static MappedByteBuffer map(File file, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(size);
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			// the mapping stays valid after the file is closed
+			raf.close();
+		}
+	}
+
+	private static class Segment {
+		private final long sequence;
+		private final File file;
+		private final MappedByteBuffer buffer;
+		/** records appended, or found after the checkpoint on recovery */
+		private int recordCount;
+
+		private Segment(long sequence, File file, MappedByteBuffer buffer) {
+			this.sequence = sequence;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+/**
+ * Names of the JMS message properties stamped by
+ * {@link JmsOfflineIndexerProducer} and read by
+ * {@link JmsOfflineIndexerConsumer}.
+ */
+public final class JmsIndexMessageProperties {
+
+	/**
+	 * Number of index operations carried by the message (1 for a plain
+	 * {@link JmsIndexPDU}, the batch size for a {@link JmsIndexBatchPDU}).
+	 */
+	public static final String OPERATION_COUNT = "searchOperationCount";
+
+	/**
+	 * Name of the {@link JmsIndexCodec} that encoded the body of a
+	 * <code>BytesMessage</code>.
+	 */
+	public static final String CODEC = "searchCodec";
+
+	/**
+	 * Compression applied to the body of a <code>BytesMessage</code>, absent
+	 * when the body isn't compressed.
+	 */
+	public static final String COMPRESSION = "searchCompression";
+
+	/**
+	 * Size of a compressed body once decompressed.
+	 */
+	public static final String UNCOMPRESSED_SIZE = "searchUncompressedSize";
+
+	/**
+	 * When the oldest operation in the message was handed to the producer,
+	 * in milliseconds since the epoch.
+	 */
+	public static final String ENQUEUE_TIME = "searchEnqueueTime";
+
+	/**
+	 * When the producer sent the message, in milliseconds since the epoch.
+	 */
+	public static final String SEND_TIME = "searchSendTime";
+
+	/**
+	 * The {@link com.jklas.search.indexer.IndexerAction} of the operations
+	 * in the message, when the producer stamps routing properties.
+	 */
+	public static final String ACTION = "searchAction";
+
+	/**
+	 * Class name of the entities in the message, when the producer stamps
+	 * routing properties.
+	 */
+	public static final String ENTITY_CLASS = "searchEntityClass";
+
+	/**
+	 * Name of the index the operations are meant for.
+	 */
+	public static final String INDEX_NAME = "searchIndexName";
+
+	/**
+	 * Identifies the producer that sent the message: its name and when it
+	 * was started.
+	 */
+	public static final String PUBLISHER = "searchPublisher";
+
+	/**
+	 * Number of operations the producer sent up to and including those in
+	 * the message. Heartbeats carry the number sent so far.
+	 */
+	public static final String SEQUENCE = "searchSequence";
+
+	/**
+	 * Class name of the exception that sent a message to the dead letter
+	 * queue.
+	 */
+	public static final String ERROR = "searchError";
+
+	/**
+	 * Message of the exception that sent a message to the dead letter
+	 * queue.
+	 */
+	public static final String ERROR_MESSAGE = "searchErrorMessage";
+
+	/**
+	 * Times a dead lettered operation was attempted.
+	 */
+	public static final String ATTEMPTS = "searchAttempts";
+
+	/**
+	 * Destination a dead lettered message was received from.
+	 */
+	public static final String ORIGIN = "searchOrigin";
+
+	/**
+	 * Name of the consumer that dead lettered the message.
+	 */
+	public static final String FAILED_BY = "searchFailedBy";
+
+	/**
+	 * Standard JMSX property used by ActiveMQ to pin a message group to a
+	 * single consumer.
+	 */
+	public static final String MESSAGE_GROUP = "JMSXGroupID";
+
+	private JmsIndexMessageProperties() {}
+
+}
@@ -31,10 +31,29 @@ public class JmsIndexPDU implements Serializable {
 	private IndexerAction action;
 	
 	private final IndexObjectDto indexObjectDto ;
+
+	private final EntityKey reference;
+
+	private long enqueueTime;
+
+	private long version;
+
+	private transient SendFuture sendFuture;
 		
 	public JmsIndexPDU(IndexerAction action, IndexObjectDto indexObjectDto) {
 		this.action = action;
 		this.indexObjectDto = indexObjectDto;
+		this.reference = null;
+	}
+
+	/**
+	 * Creates a PDU that only refers to the entity. The consumer loads it
+	 * through its {@link EntityLoader}.
+	 */
+	public JmsIndexPDU(IndexerAction action, EntityKey reference) {
+		this.action = action;
+		this.indexObjectDto = null;
+		this.reference = reference;
 	}
 	
 	public IndexerAction getAction() {
@@ -45,5 +64,54 @@ public class JmsIndexPDU implements Serializable {
 		return indexObjectDto;
 	}
 
+	/**
+	 * The referred entity, or null if the PDU carries the entity itself.
+	 */
+	public EntityKey getReference() {
+		return reference;
+	}
+
+	public boolean isReference() {
+		return reference != null;
+	}
+
+	/**
+	 * When the operation was handed to the producer, in milliseconds since
+	 * the epoch, or 0 if unknown.
+	 */
+	public long getEnqueueTime() {
+		return enqueueTime;
+	}
+
+	public void setEnqueueTime(long enqueueTime) {
+		this.enqueueTime = enqueueTime;
+	}
+
+	/**
+	 * Orders the operations on the same entity: a later operation has a
+	 * greater version. 0 when the producer doesn't stamp versions.
+	 *
+	 * @see JmsOfflineIndexer#setVersioning(boolean)
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	/**
+	 * Completed once the producer sent the PDU, or null if nobody waits
+	 * for it. Not sent to the consumer.
+	 */
+	SendFuture getSendFuture() {
+		return sendFuture;
+	}
+
+	void setSendFuture(SendFuture sendFuture) {
+		this.sendFuture = sendFuture;
+	}
+
 	
 }
@@ -25,57 +25,150 @@ import com.jklas.search.exception.IndexObjectException;
 import com.jklas.search.index.dto.IndexObjectDto;
 import com.jklas.search.indexer.IndexerAction;
 import com.jklas.search.indexer.IndexerService;
-import com.jklas.search.util.SearchLibrary;
 
 public class JmsOfflineIndexer implements IndexerService {
 
-	private final JmsOfflineIndexerProducer producer;
+	private final OfflineIndexTransport transport;
+
+	private boolean referenceMode;
+
+	private boolean versioning;
 		
-	public JmsOfflineIndexer(JmsOfflineIndexerProducer producer) {
-		this.producer = producer;
+	/**
+	 * Sends operations through a {@link JmsOfflineIndexerProducer}, a
+	 * {@link JmsOfflineIndexerProducerPool} spreading them over its stripes,
+	 * or an {@link InProcessIndexTransport}.
+	 */
+	public JmsOfflineIndexer(OfflineIndexTransport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Sends only the action, the entity class and the id, leaving it to the
+	 * consumer's {@link EntityLoader} to load the entity. Deletes still
+	 * carry the entity, as it may be gone from the store by the time they
+	 * are received.
+	 */
+	public void setReferenceMode(boolean referenceMode) {
+		this.referenceMode = referenceMode;
+	}
+
+	public boolean isReferenceMode() {
+		return referenceMode;
+	}
+
+	/**
+	 * Stamps every operation with a version that grows with each operation
+	 * handed over, so consumers checking versions can apply them in any
+	 * order and skip those superseded on the same entity.
+	 * <p>
+	 * Versions are taken from the clock of the producing JVM. When several
+	 * JVMs send operations on the same entity, they are ordered only as well
+	 * as those clocks are in sync: a JVM whose clock is behind has its
+	 * operations skipped as superseded by older ones from the others.
+	 *
+	 * @see JmsOfflineIndexerConsumer#setVersionCheck(boolean)
+	 */
+	public void setVersioning(boolean versioning) {
+		this.versioning = versioning;
+	}
+
+	public boolean isVersioning() {
+		return versioning;
+	}
+
+	private JmsIndexPDU pdu(IndexerAction action, IndexObjectDto indexObjectDto) {
+		JmsIndexPDU pdu;
+		if(referenceMode && action != IndexerAction.DELETE) {
+			pdu = new JmsIndexPDU(action, EntityKey.of(indexObjectDto));
+		} else {
+			pdu = new JmsIndexPDU(action, indexObjectDto);
+		}
+
+		if(versioning) pdu.setVersion(VersionClock.next());
+		return pdu;
 	}
 	
+	/**
+	 * Hands an operation to the producer, returning a future completed once
+	 * the producer sent it. The entity may be an {@link IndexObjectDto}.
+	 */
+	public SendFuture submit(IndexerAction action, Object entity) throws IndexObjectException {
+		SendFuture future = new SendFuture(1);
+		submit(action, entity, future);
+		return future;
+	}
+
+	/**
+	 * Hands an operation per entity to the producer, returning a single
+	 * future completed once all of them were sent. If one of them can't be
+	 * enqueued the future fails, and so does this call.
+	 */
+	public SendFuture submitAll(IndexerAction action, List<?> entities) throws IndexObjectException {
+		SendFuture future = new SendFuture(Math.max(1, entities.size()));
+		if(entities.isEmpty()) future.operationSent();
+
+		for (int i = 0; i < entities.size(); i++) {
+			submit(action, entities.get(i), future);
+		}
+
+		return future;
+	}
+
+	private void submit(IndexerAction action, Object entity, SendFuture future) throws IndexObjectException {
+		try {
+			IndexObjectDto indexObjectDto = entity instanceof IndexObjectDto ? (IndexObjectDto) entity : new IndexObjectDto(entity);
+
+			JmsIndexPDU pdu = pdu(action, indexObjectDto);
+			pdu.setSendFuture(future);
+			transport.enqueue(pdu);
+		} catch (IndexObjectException e) {
+			future.operationFailed(e);
+			throw e;
+		}
+	}
+
 	@Override
 	public void create(IndexObjectDto indexObjectDto) throws IndexObjectException {
-		producer.getSendQueue().add(new JmsIndexPDU(IndexerAction.CREATE, indexObjectDto));	
+		transport.enqueue(pdu(IndexerAction.CREATE, indexObjectDto));	
 	}
 
 
 	@Override
 	public void createOrUpdate(IndexObjectDto indexObjectDto) throws IndexObjectException {
-		producer.getSendQueue().add(new JmsIndexPDU(IndexerAction.CREATE_OR_UPDATE, indexObjectDto));		
+		transport.enqueue(pdu(IndexerAction.CREATE_OR_UPDATE, indexObjectDto));		
 	}
 
 
 	@Override
 	public void delete(IndexObjectDto indexObjectDto) throws IndexObjectException {
-		producer.getSendQueue().add(new JmsIndexPDU(IndexerAction.DELETE, indexObjectDto));
+		transport.enqueue(pdu(IndexerAction.DELETE, indexObjectDto));
 	}
 
 
 	@Override
 	public void update(IndexObjectDto indexObjectDto) throws IndexObjectException {
-		producer.getSendQueue().add(new JmsIndexPDU(IndexerAction.UPDATE, indexObjectDto));
+		transport.enqueue(pdu(IndexerAction.UPDATE, indexObjectDto));
 	}
 			
 	@Override
 	public void create(Object entity) throws IndexObjectException {
-		producer.getSendQueue().add(new JmsIndexPDU(IndexerAction.CREATE, new IndexObjectDto(entity)));
+		transport.enqueue(pdu(IndexerAction.CREATE, new IndexObjectDto(entity)));
 	}
 
 	@Override
 	public void createOrUpdate(Object entity) throws IndexObjectException {
-		producer.getSendQueue().add(new JmsIndexPDU(IndexerAction.CREATE_OR_UPDATE, new IndexObjectDto(entity)));
+		transport.enqueue(pdu(IndexerAction.CREATE_OR_UPDATE, new IndexObjectDto(entity)));
 	}
 
 	@Override
 	public void delete(Object entity) throws IndexObjectException {
-		producer.getSendQueue().add(new JmsIndexPDU(IndexerAction.DELETE, new IndexObjectDto(entity)));
+		transport.enqueue(pdu(IndexerAction.DELETE, new IndexObjectDto(entity)));
 	}
 
 	@Override
 	public void update(Object entity) throws IndexObjectException {
-		producer.getSendQueue().add(new JmsIndexPDU(IndexerAction.UPDATE, new IndexObjectDto(entity)));
+		transport.enqueue(pdu(IndexerAction.UPDATE, new IndexObjectDto(entity)));
 	}
 
 	@Override
@@ -101,22 +194,30 @@ public class JmsOfflineIndexer implements IndexerService {
 
 	@Override
 	public void bulkDtoCreate(List<IndexObjectDto> indexObjectDto) throws IndexObjectException {
-		bulkCreate(SearchLibrary.convertDtoListToEntityList(indexObjectDto));
+		for (int i = 0; i < indexObjectDto.size(); i++) {
+			create(indexObjectDto.get(i));
+		}
 	}
 
 	@Override
 	public void bulkDtoCreateOrUpdate(List<IndexObjectDto> indexObjectDto) throws IndexObjectException {
-		bulkCreateOrUpdate(SearchLibrary.convertDtoListToEntityList(indexObjectDto));
+		for (int i = 0; i < indexObjectDto.size(); i++) {
+			createOrUpdate(indexObjectDto.get(i));
+		}
 	}
 
 	@Override
 	public void bulkDtoDelete(List<IndexObjectDto> indexObjectDto) throws IndexObjectException {
-		bulkDelete(SearchLibrary.convertDtoListToEntityList(indexObjectDto));
+		for (int i = 0; i < indexObjectDto.size(); i++) {
+			delete(indexObjectDto.get(i));
+		}
 	}
 
 	@Override
 	public void bulkDtoUpdate(List<IndexObjectDto> indexObjectDto) throws IndexObjectException {
-		bulkUpdate(SearchLibrary.convertDtoListToEntityList(indexObjectDto));
+		for (int i = 0; i < indexObjectDto.size(); i++) {
+			update(indexObjectDto.get(i));
+		}
 	}
 
 	@Override
@@ -19,6 +19,19 @@
  */
 package com.jklas.search.indexer.jms;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+import javax.jms.BytesMessage;
 import javax.jms.Connection;
 import javax.jms.DeliveryMode;
 import javax.jms.Destination;
@@ -26,46 +39,127 @@ import javax.jms.ExceptionListener;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageConsumer;
+import javax.jms.MessageFormatException;
+import javax.jms.MessageListener;
 import javax.jms.MessageProducer;
 import javax.jms.ObjectMessage;
 import javax.jms.Session;
+import javax.jms.Topic;
 
+import org.apache.activemq.ActiveMQConnection;
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.command.ActiveMQMessage;
 
 import com.jklas.search.exception.IndexObjectException;
 import com.jklas.search.indexer.IndexerService;
 
 public class JmsOfflineIndexerConsumer implements ExceptionListener, Runnable {
 
+	static final RetryPolicy DEFAULT_RETRY_POLICY = new RetryPolicy(3, 50, 1000);
+
+	static final String DEFAULT_SUBJECT = "SEARCH.ALL_INDEXES";
+
+	static final int DEFAULT_VERSION_CAPACITY = 1 << 18;
+
+	private final String name;
 	private final IndexerService indexerService;
 	private final boolean indexIncomingObjects;
+	private final IndexBatchApplier applier;
+	private IndexingWorkerPool workerPool;
+	private MessageCompressor decompressor;
+	private EntityLoader entityLoader;
+	private EntityCache entityCache;
+	private EntityReferenceResolver referenceResolver;
+	private long newestMessageTimestamp;
 	
 	private boolean running;
 	private Session session;
 	private Destination destination;
 	private MessageProducer replyProducer;	
-	private String subject = "SEARCH.ALL_INDEXES";	
+	private String subject = DEFAULT_SUBJECT;
+	private String deadLetterSubject;
+	private boolean deadLettering = true;
+	private Destination deadLetterDestination;
+	private RetryPolicy retryPolicy = DEFAULT_RETRY_POLICY;
+	private boolean versionCheck;
+	private int versionCapacity = DEFAULT_VERSION_CAPACITY;
+	private RetryPolicy reconnectPolicy = new RetryPolicy(10, 100, 10000);
+	private volatile int reconnectCount;
+
+	private int[] assignedPartitions;
+	private boolean replicated;
+	private IndexMessageFilter filter;
+	private final ReplicationTracker replicationTracker = new ReplicationTracker();
+	private final CountDownLatch started = new CountDownLatch(1);
+	private IndexSnapshotter snapshotter;
+	private volatile int skippedCount;
 	private boolean transacted;
 	private boolean durable;
 	private String clientId;
 	private int ackMode = Session.AUTO_ACKNOWLEDGE;
+	private boolean optimizeAcknowledge;
+	private MessageDeduplicator deduplicator;
+	private final List<String> acceptedIds = new ArrayList<String>();
 	private ActiveMQConnectionFactory connectionFactory;
-	private int receivedCount;
-	private boolean shutdown = false;
+	private volatile int receivedCount;
+	private volatile boolean shutdown = false;
 	private Connection connection = null;
-	private MessageConsumer consumer = null;
-	private int countToStop;
+	private volatile MessageConsumer consumer = null;
+	private int countToStop = Integer.MAX_VALUE;
+	private int bulkSize = 1;
+	private long bulkTimeoutMillis = 0;
+
+	private final MetricsRegistry metrics;
+	private final Meter receiveMeter;
+	private final Meter receivedMessageMeter;
+	private final Meter receiveFailureMeter;
+	private final Meter deadLetterMeter;
+	private final Meter reconnectMeter;
+	private final Meter duplicateMeter;
+	private final Histogram commitLatency;
+	private final IndexingLatencyTracker latencyTracker;
 	
 	public JmsOfflineIndexerConsumer(String name, ActiveMQConnectionFactory connectionFactory) {
+		this.name = name;
 		this.connectionFactory = connectionFactory;
 		this.indexerService = null;
 		this.indexIncomingObjects = false;
+		this.metrics = new MetricsRegistry("Consumer", name);
+		this.applier = null;
+		this.receiveMeter = metrics.meter("received");
+		this.receivedMessageMeter = metrics.meter("receivedMessages");
+		this.receiveFailureMeter = metrics.meter("receiveFailures");
+		this.deadLetterMeter = metrics.meter("deadLettered");
+		this.reconnectMeter = metrics.meter("reconnects");
+		this.duplicateMeter = metrics.meter("duplicates");
+		this.commitLatency = metrics.histogram("commitLatencyNanos");
+		this.latencyTracker = new IndexingLatencyTracker(metrics);
 	}
 	
 	public JmsOfflineIndexerConsumer(String name, ActiveMQConnectionFactory connectionFactory, IndexerService indexerService) {
+		this(name, connectionFactory, indexerService, new MetricsRegistry("Consumer", name));
+	}
+
+	/**
+	 * Creates a consumer recording its metrics in the given registry, which
+	 * may be shared with other consumers.
+	 */
+	JmsOfflineIndexerConsumer(String name, ActiveMQConnectionFactory connectionFactory, IndexerService indexerService, MetricsRegistry metrics) {
+		this.name = name;
 		this.connectionFactory = connectionFactory;
 		this.indexerService = indexerService;
 		this.indexIncomingObjects = true;
+		this.metrics = metrics;
+		this.applier = new IndexBatchApplier(indexerService, metrics);
+		this.applier.setRetryPolicy(retryPolicy);
+		this.receiveMeter = metrics.meter("received");
+		this.receivedMessageMeter = metrics.meter("receivedMessages");
+		this.receiveFailureMeter = metrics.meter("receiveFailures");
+		this.deadLetterMeter = metrics.meter("deadLettered");
+		this.reconnectMeter = metrics.meter("reconnects");
+		this.duplicateMeter = metrics.meter("duplicates");
+		this.commitLatency = metrics.histogram("commitLatencyNanos");
+		this.latencyTracker = new IndexingLatencyTracker(metrics);
 	}
 
 
@@ -78,33 +172,68 @@ public class JmsOfflineIndexerConsumer implements ExceptionListener, Runnable {
 			shutdown = true;			
 		}
 
+		started.countDown();
+
 		try{
 			while(!shutdown ) {
+				if(!isRunning()) {
+					reconnect();
+					continue;
+				}
+
 				try {
 					read();					
 				} catch (JMSException e) {					
-					shutdown = true;
+					receiveFailureMeter.mark();
 					e.printStackTrace();
+					// whatever wasn't committed or acknowledged is received again
+					lostConnection();
 				}
 			}
 		} finally {
 			try {
-				if(consumer!=null) consumer.close();
-
-				if(session!=null) session.close();
+				if(snapshotter != null) snapshotter.stop();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 
-				if(connection!=null) connection.close();
-			} catch (JMSException ignore) {
-				ignore.printStackTrace();
-			}				
+			disconnect();
 		}
 	}
 
 
 	protected void startup() throws JMSException {
-		running = true;
+		if(entityLoader != null) {
+			referenceResolver = new EntityReferenceResolver(entityLoader, entityCache);
+		}
+
+		if(versionCheck && applier != null) {
+			applier.setAppliedVersions(appliedVersions(versionCapacity, metrics));
+		}
+
+		if(snapshotter != null) {
+			restoreSnapshot();
+		}
+
+		try {
+			connect();
+		} catch (JMSException e) {
+			// the broker may be back in a moment
+			receiveFailureMeter.mark();
+			e.printStackTrace();
+			lostConnection();
+		}
+	}
 
+	private void connect() throws JMSException {
 		this.connection = connectionFactory.createConnection();
+		if (optimizeAcknowledge) {
+			((ActiveMQConnection) connection).setOptimizeAcknowledge(true);
+		}
+		if (replicated && durable && clientId == null) {
+			// the subscription belongs to this node
+			clientId = name;
+		}
 		if (durable && clientId != null && clientId.length() > 0 && !"null".equals(clientId)) {
 			connection.setClientID(clientId);
 		}
@@ -114,21 +243,169 @@ public class JmsOfflineIndexerConsumer implements ExceptionListener, Runnable {
 
 		session = connection.createSession(transacted, ackMode);
 
-		destination = session.createQueue(subject);
+		String consumedSubject = assignedPartitions != null ? PartitionAssignment.compositeSubject(subject, assignedPartitions) : subject;
+		destination = replicated ? session.createTopic(consumedSubject) : session.createQueue(consumedSubject);
 
 		replyProducer = session.createProducer(null);
 		replyProducer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
 
-		consumer = session.createConsumer(destination);
+		deadLetterDestination = deadLettering ? session.createQueue(getDeadLetterSubject()) : null;
+
+		String selector = filter == null ? null : filter.toSelector();
+		if(replicated && durable) {
+			consumer = session.createDurableSubscriber((Topic) destination, name, selector, false);
+		} else {
+			consumer = session.createConsumer(destination, selector);
+		}
+
+		if(replicated) {
+			followHeartbeats();
+		}
+
+		synchronized (this) {
+			running = true;
+		}
+	}
+
+	private void disconnect() {
+		try {
+			if(consumer!=null) consumer.close();
+
+			if(session!=null) session.close();
+		} catch (JMSException ignore) {
+			// the connection may be gone already, closing it is enough
+		}
+
+		try {
+			if(connection!=null) connection.close();
+		} catch (JMSException ignore) {
+			// nothing left to release
+		} finally {
+			consumer = null;
+			session = null;
+			connection = null;
+		}
+	}
+
+	/**
+	 * Connects again as the reconnect {@link RetryPolicy} allows, and shuts
+	 * the consumer down once it gives up.
+	 */
+	private void reconnect() {
+		disconnect();
+
+		for (int attempt = 1; !shutdown; attempt++) {
+			if(!reconnectPolicy.canRetry(attempt)) {
+				shutdown = true;
+				return;
+			}
+
+			pause(reconnectPolicy.backoffMillis(attempt));
+			if(shutdown) return;
+
+			try {
+				connect();
+				reconnectCount++;
+				reconnectMeter.mark();
+				return;
+			} catch (JMSException e) {
+				receiveFailureMeter.mark();
+				disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Waits unless shut down meanwhile.
+	 */
+	private synchronized void pause(long millis) {
+		long deadline = System.currentTimeMillis() + millis;
+		try {
+			for (long remaining = millis; remaining > 0 && !shutdown; remaining = deadline - System.currentTimeMillis()) {
+				wait(remaining);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			shutdown = true;
+		}
+	}
+
+	/**
+	 * Indexes the documents of the snapshot again, before receiving the
+	 * operations that came after it.
+	 */
+	private void restoreSnapshot() throws JMSException {
+		List<JmsIndexPDU> restored;
+		try {
+			restored = snapshotter.restore(replicationTracker);
+		} catch (IOException e) {
+			JMSException jmsException = new JMSException("Can't restore snapshot " + snapshotter.getFile() + ": " + e.getMessage());
+			jmsException.setLinkedException(e);
+			throw jmsException;
+		}
+
+		if(referenceResolver != null) {
+			restored = resolve(restored);
+		}
+		if(indexIncomingObjects && !restored.isEmpty()) {
+			applier.apply(restored, true);
+		}
+
+		snapshotter.start();
 	}
 
-	private void log(String x) {
-		//		System.out.println(x);
+	/**
+	 * Listens to the publishers' heartbeats on a session of its own, as the
+	 * main one is busy receiving.
+	 */
+	private void followHeartbeats() throws JMSException {
+		Session heartbeatSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		MessageConsumer heartbeats = heartbeatSession.createConsumer(heartbeatSession.createTopic(ReplicationTracker.heartbeatSubject(subject)));
+		heartbeats.setMessageListener(new MessageListener() {
+			@Override
+			public void onMessage(Message heartbeat) {
+				try {
+					replicationTracker.heartbeat(heartbeat);
+				} catch (JMSException ignore) {
+					// a malformed heartbeat, the next one will do
+				}
+			}
+		});
+
+		metrics.gauge("replicationLag", new Gauge() {
+			@Override
+			public long getValue() {
+				return replicationTracker.getLag();
+			}
+		});
+		metrics.gauge("replicationLagMillis", new Gauge() {
+			@Override
+			public long getValue() {
+				return replicationTracker.getLagMillis();
+			}
+		});
 	}
 
+	/**
+	 * Called by the connection once it failed. The consumer connects again
+	 * as the reconnect {@link RetryPolicy} allows.
+	 */
+	public void onException(JMSException ex) {
+		receiveFailureMeter.mark();
+		lostConnection();
+
+		// unblocks the receiving thread, which then reconnects
+		MessageConsumer current = consumer;
+		if(current != null) {
+			try {
+				current.close();
+			} catch (JMSException ignore) {
+				// the connection is gone anyway
+			}
+		}
+	}
 
-	public synchronized void onException(JMSException ex) {
-		log("JMS Exception occured.  Shutting down client.");
+	private synchronized void lostConnection() {
 		running = false;
 	}
 
@@ -144,35 +421,325 @@ public class JmsOfflineIndexerConsumer implements ExceptionListener, Runnable {
 
 		Message message = consumer.receive();
 
-		this.receivedCount ++;
+		if(message == null) {
+			// the consumer was closed by shutdown()
+			return;
+		}
 
-		if(indexIncomingObjects) {			
-			if (message instanceof ObjectMessage) {
-				ObjectMessage objMsg = (ObjectMessage)message;
-				
-				JmsIndexPDU pdu = (JmsIndexPDU )objMsg.getObject();
-				
-				try {
-					pdu.getAction().execute(indexerService, pdu.getIndexObjectDto());
-				} catch (IndexObjectException e) {
-					log(e);
-				}
-			}       
+		newestMessageTimestamp = 0;
+		latencyTracker.reset();
+		acceptedIds.clear();
+
+		List<JmsIndexPDU> pdus = new ArrayList<JmsIndexPDU>(accept(message));
+
+		if(bulkSize > 1) {
+			message = gather(pdus, message);
+		}
+
+		long indexStart = System.nanoTime();
+
+		if(referenceResolver != null) {
+			pdus = resolve(pdus);
+		}
+
+		List<IndexFailure> failures = Collections.emptyList();
+		// what the snapshot records, as it was applied
+		List<JmsIndexPDU> applied = snapshotter == null ? null : Collections.synchronizedList(new ArrayList<JmsIndexPDU>(pdus.size()));
+
+		if(workerPool != null) {
+			try {
+				failures = workerPool.execute(pdus, applied);
+			} catch (InterruptedException e) {
+				// leave the message unacknowledged so the broker redelivers it
+				Thread.currentThread().interrupt();
+				shutdown = true;
+				return;
+			}
+		} else if(indexIncomingObjects) {
+			failures = applier.apply(pdus, bulkSize > 1, applied);
 		}
-		
+
+		// sent within the same transaction as the acknowledgement
+		deadLetter(failures);
+
+		long start = System.nanoTime();
+		latencyTracker.indexed(start - indexStart);
 
 		if (transacted) {
 			session.commit();
 		} else if (ackMode == Session.CLIENT_ACKNOWLEDGE) {
 			message.acknowledge();
 		}
+
+		commitLatency.update(System.nanoTime() - start);
+
+		for (int i = 0; i < acceptedIds.size(); i++) {
+			deduplicator.record(acceptedIds.get(i));
+		}
+
+		if(snapshotter != null) {
+			snapshotter.applied(applied);
+		} else if(replicated) {
+			replicationTracker.applied();
+		}
+	}
+
+	private void deadLetter(List<IndexFailure> failures) throws JMSException {
+		if(deadLetterDestination == null) return;
+
+		for (IndexFailure failure : failures) {
+			JmsIndexPDU pdu = failure.getPdu();
+
+			Message message = session.createObjectMessage(pdu);
+			message.setIntProperty(JmsIndexMessageProperties.OPERATION_COUNT, 1);
+			message.setStringProperty(JmsIndexMessageProperties.ACTION, pdu.getAction().name());
+			message.setStringProperty(JmsIndexMessageProperties.ENTITY_CLASS, EntityKey.of(pdu).getEntityClassName());
+			message.setIntProperty(JmsIndexMessageProperties.ATTEMPTS, failure.getAttempts());
+
+			sendToDeadLetterQueue(message, failure.getCause());
+		}
+	}
+
+	/**
+	 * Moves a message that can't be read to the dead letter queue as it
+	 * is, so that it doesn't stop the consumer.
+	 */
+	private void quarantine(Message message, Exception cause) throws JMSException {
+		receiveFailureMeter.mark();
+
+		if(deadLetterDestination == null) return;
+
+		Message copy;
+		if(message instanceof BytesMessage) {
+			// the properties of a bytes message can't be written without its body
+			copy = copyOf((BytesMessage) message);
+		} else if(message instanceof ActiveMQMessage) {
+			ActiveMQMessage activeMQCopy = (ActiveMQMessage) ((ActiveMQMessage) message).copy();
+			activeMQCopy.setReadOnlyProperties(false);
+			copy = activeMQCopy;
+		} else {
+			return;
+		}
+
+		sendToDeadLetterQueue(copy, cause);
+	}
+
+	private BytesMessage copyOf(BytesMessage message) throws JMSException {
+		message.reset();
+		byte[] body = new byte[(int) message.getBodyLength()];
+		message.readBytes(body);
+
+		BytesMessage copy = session.createBytesMessage();
+		copy.writeBytes(body);
+
+		for (Enumeration<?> names = message.getPropertyNames(); names.hasMoreElements();) {
+			String propertyName = (String) names.nextElement();
+			if(!propertyName.startsWith("JMSX") || propertyName.equals(JmsIndexMessageProperties.MESSAGE_GROUP)) {
+				copy.setObjectProperty(propertyName, message.getObjectProperty(propertyName));
+			}
+		}
+
+		return copy;
+	}
+
+	private void sendToDeadLetterQueue(Message message, Throwable cause) throws JMSException {
+		message.setStringProperty(JmsIndexMessageProperties.ERROR, cause.getClass().getName());
+		if(cause.getMessage() != null) {
+			message.setStringProperty(JmsIndexMessageProperties.ERROR_MESSAGE, cause.getMessage());
+		}
+		message.setStringProperty(JmsIndexMessageProperties.ORIGIN, destination.toString());
+		message.setStringProperty(JmsIndexMessageProperties.FAILED_BY, name);
+
+		replyProducer.send(deadLetterDestination, message, DeliveryMode.PERSISTENT, Message.DEFAULT_PRIORITY, 0);
+		deadLetterMeter.mark();
+	}
+
+	private List<JmsIndexPDU> resolve(List<JmsIndexPDU> pdus) throws JMSException {
+		try {
+			return referenceResolver.resolve(pdus, newestMessageTimestamp);
+		} catch (IndexObjectException e) {
+			JMSException jmsException = new JMSException("Can't load referenced entities: " + e.getMessage());
+			jmsException.setLinkedException(e);
+			throw jmsException;
+		}
+	}
+
+	/**
+	 * Keeps receiving until {@link #bulkSize} messages were read or
+	 * {@link #bulkTimeoutMillis} elapsed, and returns the last message
+	 * received so the whole bulk can be acknowledged at once.
+	 */
+	private Message gather(List<JmsIndexPDU> pdus, Message first) throws JMSException {
+		Message last = first;
+		long deadline = System.currentTimeMillis() + bulkTimeoutMillis;
+
+		for (int gathered = 1; gathered < bulkSize && receivedCount < countToStop; gathered++) {
+			long remaining = deadline - System.currentTimeMillis();
+
+			Message next = remaining > 0 ? consumer.receive(remaining) : consumer.receiveNoWait();
+			if(next == null) break;
+
+			pdus.addAll(accept(next));
+			last = next;
+		}
+
+		return last;
+	}
+
+	private List<JmsIndexPDU> accept(Message message) throws JMSException {
+		int operationCount = 1;
+		if(message.propertyExists(JmsIndexMessageProperties.OPERATION_COUNT)) {
+			operationCount = message.getIntProperty(JmsIndexMessageProperties.OPERATION_COUNT);
+		}
+
+		this.receivedCount += operationCount;
+		receiveMeter.mark(operationCount);
+		receivedMessageMeter.mark();
+
+		newestMessageTimestamp = Math.max(newestMessageTimestamp, message.getJMSTimestamp());
+		if(deduplicator != null) {
+			String id = MessageDeduplicator.idOf(message);
+			if(deduplicator.isDuplicate(id, message.getJMSRedelivered())) {
+				duplicateMeter.mark(operationCount);
+				return Collections.emptyList();
+			}
+			acceptedIds.add(id);
+		}
+		if(snapshotter != null && replicationTracker.isApplied(message)) {
+			// already in the snapshot
+			skippedCount += operationCount;
+			return Collections.emptyList();
+		}
+		if(replicated || snapshotter != null) {
+			replicationTracker.received(message);
+		}
+		latencyTracker.received(message, System.currentTimeMillis());
+
+		if(!indexIncomingObjects) {
+			return Collections.emptyList();
+		}
+
+		long decodeStart = System.nanoTime();
+		Serializable payload;
+
+		try {
+			if(message instanceof ObjectMessage) {
+				payload = readObject((ObjectMessage)message);
+			} else if(message instanceof BytesMessage) {
+				payload = decode((BytesMessage)message);
+			} else {
+				return Collections.emptyList();
+			}
+		} catch (MessageFormatException e) {
+			quarantine(message, e);
+			return Collections.emptyList();
+		}
+
+		latencyTracker.decoded(System.nanoTime() - decodeStart);
+
+		if(payload instanceof JmsIndexBatchPDU) {
+			return ((JmsIndexBatchPDU)payload).getPdus();
+		} else if(payload instanceof JmsIndexPDU) {
+			return Collections.singletonList((JmsIndexPDU)payload);
+		} else {
+			quarantine(message, new MessageFormatException("Not an index operation: " + (payload == null ? null : payload.getClass().getName())));
+			return Collections.emptyList();
+		}
+	}
+
+	private static Serializable readObject(ObjectMessage message) throws MessageFormatException {
+		try {
+			return message.getObject();
+		} catch (JMSException e) {
+			// unknown classes and broken streams, nothing a retry would fix
+			MessageFormatException formatException = new MessageFormatException("Can't deserialize message: " + e.getMessage());
+			formatException.setLinkedException(e);
+			throw formatException;
+		}
+	}
+
+	private Serializable decode(BytesMessage message) throws JMSException {
+		String codecName = message.getStringProperty(JmsIndexMessageProperties.CODEC);
+		JmsIndexCodec codec = JmsIndexCodecs.forName(codecName);
+
+		if(codec == null) {
+			throw new MessageFormatException("No codec registered as " + codecName);
+		}
+
+		byte[] body = new byte[(int) message.getBodyLength()];
+		message.readBytes(body);
+
+		String compression = message.getStringProperty(JmsIndexMessageProperties.COMPRESSION);
+		if(compression != null) {
+			body = decompress(body, compression, message.getIntProperty(JmsIndexMessageProperties.UNCOMPRESSED_SIZE));
+		}
+
+		try {
+			return codec.decode(new ByteArrayInputStream(body));
+		} catch (IOException e) {
+			JMSException jmsException = new MessageFormatException("Can't decode message with codec " + codecName);
+			jmsException.setLinkedException(e);
+			throw jmsException;
+		}
+	}
+
+	private byte[] decompress(byte[] body, String compression, int uncompressedSize) throws JMSException {
+		if(!MessageCompressor.DEFLATE.equals(compression)) {
+			throw new MessageFormatException("Unknown compression " + compression);
+		}
+
+		if(decompressor == null) {
+			decompressor = new MessageCompressor(Deflater.DEFAULT_COMPRESSION);
+		}
+
+		try {
+			return decompressor.decompress(body, uncompressedSize);
+		} catch (DataFormatException e) {
+			JMSException jmsException = new MessageFormatException("Can't inflate message body");
+			jmsException.setLinkedException(e);
+			throw jmsException;
+		}
+	}
+
+	/**
+	 * Decompression statistics, or null if no compressed message was
+	 * received yet.
+	 */
+	public MessageCompressor getDecompressor() {
+		return decompressor;
+	}
+
+	/**
+	 * Loads the entities of reference PDUs (see
+	 * {@link JmsOfflineIndexer#setReferenceMode(boolean)}). All references
+	 * received together, in a message or a bulk, are loaded in one call per
+	 * entity class. Must be set before the consumer is started.
+	 */
+	public void setEntityLoader(EntityLoader entityLoader) {
+		this.entityLoader = entityLoader;
+	}
+
+	/**
+	 * Caches the entities loaded by the {@link EntityLoader}. It may be
+	 * shared by several consumers.
+	 */
+	public void setEntityCache(EntityCache entityCache) {
+		this.entityCache = entityCache;
 	}
 
-	private void log(IndexObjectException e) {
-		// TODO Auto-generated method stub
-		
+	/**
+	 * References whose entity the {@link EntityLoader} didn't find, which
+	 * were skipped.
+	 */
+	public int getUnresolvedReferenceCount() {
+		return referenceResolver == null ? 0 : referenceResolver.getUnresolvedCount();
 	}
 
+	/**
+	 * <code>DUPS_OK_ACKNOWLEDGE</code> acknowledges lazily, in batches, and
+	 * a failure redelivers whatever wasn't acknowledged yet: use it with a
+	 * {@link MessageDeduplicator}.
+	 */
 	public void setAckMode(String ackMode) {
 		if ("CLIENT_ACKNOWLEDGE".equals(ackMode)) {
 			this.ackMode = Session.CLIENT_ACKNOWLEDGE;
@@ -200,16 +767,304 @@ public class JmsOfflineIndexerConsumer implements ExceptionListener, Runnable {
 		this.subject = subject;
 	}
 
+	/**
+	 * Reads these partitions of a partitioned subject (see
+	 * {@link JmsOfflineIndexerProducer#setPartitionCount(int)}) instead of
+	 * the subject queue itself.
+	 */
+	public void setAssignedPartitions(int... assignedPartitions) {
+		this.assignedPartitions = assignedPartitions;
+	}
+
+	public int[] getAssignedPartitions() {
+		return assignedPartitions;
+	}
+
 	public void setTransacted(boolean transacted) {
 		this.transacted = transacted;
 	}
 
+	/**
+	 * Receives only the messages matching the filter. Must be set before the
+	 * consumer is started.
+	 */
+	public void setFilter(IndexMessageFilter filter) {
+		this.filter = filter;
+	}
+
+	public IndexMessageFilter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Subscribes to the topic of a replicated producer (see
+	 * {@link JmsOfflineIndexerProducer#setReplicated(boolean)}), so that
+	 * this node indexes every operation. With {@link #setDurable(boolean)}
+	 * the subscription is named after the consumer and keeps the operations
+	 * published while the node is down; the client id defaults to the
+	 * consumer name too. Must be set before the consumer is started.
+	 */
+	public void setReplicated(boolean replicated) {
+		this.replicated = replicated;
+	}
+
+	public boolean isReplicated() {
+		return replicated;
+	}
+
+	/**
+	 * How long a replica keeps following a publisher it no longer hears
+	 * from, ten minutes by default. A publisher is a run of a producer, so
+	 * restarted producers leave one behind; the one replaced by a later
+	 * run of the same producer is dropped once its operations are applied.
+	 */
+	public void setPublisherExpiryMillis(long publisherExpiryMillis) {
+		replicationTracker.setExpiryMillis(publisherExpiryMillis);
+	}
+
+	/**
+	 * Operations published by the replicated producers that this replica
+	 * has not applied yet.
+	 */
+	public long getReplicationLag() {
+		return replicationTracker.getLag();
+	}
+
+	/**
+	 * How long ago the last operation applied by this replica was sent, or
+	 * zero when the replica is up to date.
+	 */
+	public long getReplicationLagMillis() {
+		return replicationTracker.getLagMillis();
+	}
+
+	/**
+	 * Restores the index from the snapshot at startup and keeps taking
+	 * snapshots while running. Operations received again after a restart
+	 * and already covered by the snapshot are skipped. Must be set before
+	 * the consumer is started.
+	 */
+	public void setSnapshotter(IndexSnapshotter snapshotter) {
+		this.snapshotter = snapshotter;
+	}
+
+	public IndexSnapshotter getSnapshotter() {
+		return snapshotter;
+	}
+
+	/**
+	 * Operations skipped because the snapshot already covered them.
+	 */
+	public int getSkippedCount() {
+		return skippedCount;
+	}
+
+	/**
+	 * Skips messages applied before, as recorded by the deduplicator once
+	 * they are acknowledged. It may be shared by several consumers of the
+	 * same queue. No message is skipped by default. It catches broker
+	 * redeliveries, not operations replayed by a restarted producer (see
+	 * {@link MessageDeduplicator}).
+	 */
+	public void setDeduplicator(MessageDeduplicator deduplicator) {
+		this.deduplicator = deduplicator;
+	}
+
+	public MessageDeduplicator getDeduplicator() {
+		return deduplicator;
+	}
+
+	/**
+	 * Operations in duplicate messages skipped by the deduplicator.
+	 */
+	public int getDuplicateCount() {
+		return (int) duplicateMeter.getCount();
+	}
+
+	/**
+	 * Lets ActiveMQ acknowledge <code>AUTO_ACKNOWLEDGE</code> sessions
+	 * lazily, in batches, as it does for <code>DUPS_OK_ACKNOWLEDGE</code>.
+	 * Needs an ActiveMQ connection.
+	 */
+	public void setOptimizeAcknowledge(boolean optimizeAcknowledge) {
+		this.optimizeAcknowledge = optimizeAcknowledge;
+	}
+
+	/**
+	 * Waits until the consumer has subscribed, or failed to.
+	 *
+	 * @return false if it didn't start within the timeout
+	 */
+	public boolean awaitStartup(long timeoutMillis) throws InterruptedException {
+		return started.await(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
 	public int getReceivedCount() {		
 		return receivedCount;
 	}
 
+	/**
+	 * Receive rates, commit latency, indexing latency per action and
+	 * failure counts, including <code>IndexObjectException</code>s the
+	 * consumer swallowed. Histograms named <code>latencyMicros.*</code>
+	 * break down the time from the call to {@link JmsOfflineIndexer} until
+	 * indexed into the queued, transit, decode and index stages, plus the
+	 * end-to-end total; {@link MetricsRegistry#exportHistograms(Appendable)}
+	 * writes their percentiles. When a worker pool indexes, its latencies are
+	 * recorded in the pool's registry instead.
+	 */
+	public MetricsRegistry getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Hands received PDUs to a pool of workers instead of indexing them on
+	 * the receiving thread. The message is committed or acknowledged once
+	 * the pool finished indexing all of its PDUs.
+	 */
+	public void setWorkerPool(IndexingWorkerPool workerPool) {
+		this.workerPool = workerPool;
+	}
+
+	/**
+	 * How operations failing with an <code>IndexObjectException</code> are
+	 * retried before they go to the dead letter queue. Runtime exceptions
+	 * go there right away. By default an operation is attempted 3 times,
+	 * 50ms apart and then 100ms. A worker pool retries as set on the pool.
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+		if(applier != null) applier.setRetryPolicy(retryPolicy);
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Applies operations stamped with a version in any order, skipping
+	 * those older than the version last applied to their entity (see
+	 * {@link JmsOfflineIndexer#setVersioning(boolean)}). A worker pool
+	 * checks versions as set on the pool.
+	 */
+	public void setVersionCheck(boolean versionCheck) {
+		this.versionCheck = versionCheck;
+	}
+
+	public boolean isVersionCheck() {
+		return versionCheck;
+	}
+
+	/**
+	 * Entities whose last applied version is remembered, 262144 by default.
+	 * An operation on an entity forgotten since is applied whatever its
+	 * version.
+	 */
+	public void setVersionCapacity(int versionCapacity) {
+		this.versionCapacity = versionCapacity;
+	}
+
+	static AppliedVersions appliedVersions(int capacity, MetricsRegistry metrics) {
+		final AppliedVersions appliedVersions = new AppliedVersions(capacity);
+		metrics.gauge("appliedVersions", new Gauge() {
+			@Override
+			public long getValue() {
+				return appliedVersions.size();
+			}
+		});
+		return appliedVersions;
+	}
+
+	/**
+	 * How the consumer connects again once the connection failed. It waits
+	 * the backoff before every attempt and shuts down when out of
+	 * attempts; {@link RetryPolicy#NONE} shuts it down right away. By
+	 * default it tries 10 times, backing off from 100ms up to 10s.
+	 */
+	public void setReconnectPolicy(RetryPolicy reconnectPolicy) {
+		this.reconnectPolicy = reconnectPolicy;
+	}
+
+	public RetryPolicy getReconnectPolicy() {
+		return reconnectPolicy;
+	}
+
+	/**
+	 * Times the consumer connected again after losing its connection.
+	 */
+	public int getReconnectCount() {
+		return reconnectCount;
+	}
+
+	/**
+	 * Queue receiving the operations that failed for good and the messages
+	 * that can't be read. Operations are sent as an <code>ObjectMessage</code>
+	 * holding the PDU; unreadable messages are sent as received. Both carry
+	 * the error and where they came from (see
+	 * {@link JmsIndexMessageProperties#ERROR}). Defaults to the subject
+	 * followed by <code>.DLQ</code>.
+	 */
+	public void setDeadLetterSubject(String deadLetterSubject) {
+		this.deadLetterSubject = deadLetterSubject;
+	}
+
+	public String getDeadLetterSubject() {
+		return deadLetterSubject != null ? deadLetterSubject : subject + ".DLQ";
+	}
+
+	/**
+	 * Whether failed operations and unreadable messages go to the dead
+	 * letter queue. Without it they are dropped, counted as index and
+	 * receive failures.
+	 */
+	public void setDeadLettering(boolean deadLettering) {
+		this.deadLettering = deadLettering;
+	}
+
+	public int getDeadLetteredCount() {
+		return (int) deadLetterMeter.getCount();
+	}
+
+	/**
+	 * Stops the consumer, unblocking it if it is waiting for a message.
+	 */
+	public void shutdown() {
+		shutdown = true;
+
+		synchronized (this) {
+			// wakes it up if it is waiting to reconnect
+			notifyAll();
+		}
+
+		MessageConsumer current = consumer;
+		if(current != null) {
+			try {
+				current.close();
+			} catch (JMSException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
 
 	public void stopWhenReceivedCountReaches(int maxMessagesToRead) {
 		this.countToStop = maxMessagesToRead;
 	}
+
+	/**
+	 * Number of messages gathered before their PDUs are applied through
+	 * the bulk methods of the {@link IndexerService} and committed or
+	 * acknowledged together. A size of 1 (the default) applies every
+	 * message on its own.
+	 */
+	public void setBulkSize(int bulkSize) {
+		this.bulkSize = bulkSize;
+	}
+
+	/**
+	 * Maximum time spent gathering a bulk once its first message arrived.
+	 */
+	public void setBulkTimeoutMillis(long bulkTimeoutMillis) {
+		this.bulkTimeoutMillis = bulkTimeoutMillis;
+	}
 }
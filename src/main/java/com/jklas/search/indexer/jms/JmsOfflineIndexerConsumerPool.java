@@ -0,0 +1,526 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+
+import com.jklas.search.indexer.IndexerService;
+
+/**
+ * Runs several {@link JmsOfflineIndexerConsumer} receivers, each one with
+ * its own session, feeding a shared {@link IndexingWorkerPool}.
+ * <p>
+ * Inside the pool, operations are partitioned by entity so they are never
+ * reordered. Across receivers, ordering only holds when the producer stamps
+ * message groups (see
+ * {@link JmsOfflineIndexerProducer#setMessageGroupCount(int)}), because the
+ * broker then delivers every message of a group to the same receiver, or
+ * when versions are checked. Without either of them, {@link #start()}
+ * refuses to run more than one receiver.
+ * <p>
+ * With a {@link ScalingPolicy}, a supervisor follows how many messages are
+ * waiting and adds or retires receivers and workers within the policy's
+ * bounds. Receivers only scale when their order is kept as above, otherwise
+ * the pool keeps a single receiver and scales its workers. The lag is the
+ * queue size reported by the ActiveMQ statistics plugin; brokers without it
+ * only let the pool count the operations it received and didn't index yet.
+ */
+public class JmsOfflineIndexerConsumerPool implements Runnable {
+
+	private final String name;
+	private final ActiveMQConnectionFactory connectionFactory;
+	private final IndexerService indexerService;
+
+	private int receiverCount = 1;
+	private int workerCount = Runtime.getRuntime().availableProcessors();
+
+	private String subject;
+	private int[] assignedPartitions;
+	private IndexMessageFilter filter;
+	private RetryPolicy retryPolicy = JmsOfflineIndexerConsumer.DEFAULT_RETRY_POLICY;
+	private RetryPolicy reconnectPolicy;
+	private String deadLetterSubject;
+	private boolean transacted;
+	private String ackMode;
+	private int bulkSize = 1;
+	private long bulkTimeoutMillis = 0;
+	private EntityLoader entityLoader;
+	private EntityCache entityCache;
+	private MessageDeduplicator deduplicator;
+	private boolean optimizeAcknowledge;
+	private ScalingPolicy scalingPolicy;
+	private boolean versionCheck;
+	private boolean messageGroups;
+	private int versionCapacity = JmsOfflineIndexerConsumer.DEFAULT_VERSION_CAPACITY;
+	private long statisticsTimeoutMillis = 1000;
+
+	private int countToStop = -1;
+
+	private final CountDownLatch stopSignal = new CountDownLatch(1);
+
+	private final List<JmsOfflineIndexerConsumer> receivers = new ArrayList<JmsOfflineIndexerConsumer>();
+
+	/**
+	 * Every receiver started, retired ones included.
+	 */
+	private final Map<JmsOfflineIndexerConsumer, Thread> receiverThreads = new LinkedHashMap<JmsOfflineIndexerConsumer, Thread>();
+
+	private int nextReceiverId = 0;
+
+	private boolean stopping = false;
+
+	private volatile IndexingWorkerPool workerPool;
+
+	private volatile ConsumerPoolSupervisor supervisor;
+
+	private final List<BrokerQueueStatistics> queueStatistics = new ArrayList<BrokerQueueStatistics>();
+
+	private final MetricsRegistry metrics;
+
+	public JmsOfflineIndexerConsumerPool(String name, ActiveMQConnectionFactory connectionFactory, IndexerService indexerService) {
+		this.name = name;
+		this.connectionFactory = connectionFactory;
+		this.indexerService = indexerService;
+
+		this.metrics = new MetricsRegistry("ConsumerPool", name);
+	}
+
+	/**
+	 * Checks the configuration on the caller's thread, then runs the pool
+	 * on a thread of its own, returned so that it can be joined.
+	 *
+	 * @throws IllegalStateException if several receivers could reorder the
+	 * operations on an entity
+	 */
+	public Thread start() {
+		checkOrdering();
+
+		Thread thread = new Thread(this);
+		thread.setName(name);
+		thread.start();
+		return thread;
+	}
+
+	@Override
+	public void run() {
+		checkOrdering();
+
+		int initialReceivers = receiverCount;
+		int initialWorkers = workerCount;
+		if(scalingPolicy != null) {
+			initialReceivers = isOrdered() ? ScalingPolicy.bounded(receiverCount, scalingPolicy.getMinReceivers(), scalingPolicy.getMaxReceivers()) : 1;
+			initialWorkers = ScalingPolicy.bounded(workerCount, scalingPolicy.getMinWorkers(), scalingPolicy.getMaxWorkers());
+		}
+
+		workerPool = new IndexingWorkerPool(name, indexerService, initialWorkers, metrics);
+		workerPool.setBulk(bulkSize > 1);
+		workerPool.setRetryPolicy(retryPolicy);
+		if(versionCheck) workerPool.setVersionCheck(versionCapacity);
+		workerPool.start();
+
+		synchronized (receivers) {
+			for (int i = 0; i < initialReceivers; i++) {
+				addReceiver();
+			}
+		}
+
+		if(scalingPolicy != null) {
+			startSupervisor();
+		}
+
+		try {
+			if(countToStop >= 0) {
+				workerPool.awaitIndexedCount(countToStop);
+			} else {
+				stopSignal.await();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if(supervisor != null) {
+				supervisor.stop();
+			}
+
+			List<Thread> threads;
+			synchronized (receivers) {
+				stopping = true;
+				for (JmsOfflineIndexerConsumer receiver : receivers) {
+					receiver.shutdown();
+				}
+				threads = new ArrayList<Thread>(receiverThreads.values());
+			}
+
+			try {
+				for (Thread thread : threads) {
+					thread.join();
+				}
+				workerPool.shutdown();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			for (BrokerQueueStatistics statistics : queueStatistics) {
+				statistics.close();
+			}
+		}
+	}
+
+	private void startSupervisor() {
+		String consumedSubject = subject != null ? subject : JmsOfflineIndexerConsumer.DEFAULT_SUBJECT;
+		if(assignedPartitions == null) {
+			queueStatistics.add(new BrokerQueueStatistics(connectionFactory, consumedSubject, statisticsTimeoutMillis));
+		} else {
+			for (int partition : assignedPartitions) {
+				queueStatistics.add(new BrokerQueueStatistics(connectionFactory, PartitionAssignment.partitionSubject(consumedSubject, partition), statisticsTimeoutMillis));
+			}
+		}
+
+		metrics.gauge("receivers", new Gauge() {
+			@Override
+			public long getValue() {
+				return getActiveReceiverCount();
+			}
+		});
+		metrics.gauge("workers", new Gauge() {
+			@Override
+			public long getValue() {
+				return getWorkerCount();
+			}
+		});
+
+		supervisor = new ConsumerPoolSupervisor(this, scalingPolicy, metrics);
+		supervisor.start();
+	}
+
+	private void addReceiver() {
+		String receiverName = name + "-receiver-" + nextReceiverId++;
+
+		JmsOfflineIndexerConsumer receiver = createReceiver(receiverName);
+		receivers.add(receiver);
+
+		Thread thread = new Thread(receiver);
+		thread.setName(receiverName);
+		receiverThreads.put(receiver, thread);
+		thread.start();
+	}
+
+	/**
+	 * Starts or retires receivers and workers. Retired receivers finish the
+	 * messages they are indexing, whatever else they prefetched goes back
+	 * to the broker.
+	 */
+	void resize(int receiverCount, int workerCount) {
+		synchronized (receivers) {
+			if(stopping) return;
+
+			while(receivers.size() < receiverCount) {
+				addReceiver();
+			}
+
+			while(receivers.size() > receiverCount) {
+				receivers.remove(receivers.size() - 1).shutdown();
+			}
+		}
+
+		workerPool.resize(workerCount);
+	}
+
+	/**
+	 * Messages waiting on the consumed queues, or the operations received
+	 * and not indexed yet when the broker doesn't tell or the pool doesn't
+	 * scale.
+	 */
+	long estimateLag() {
+		if(supervisor == null) return pendingCount();
+
+		long queued = 0;
+		for (BrokerQueueStatistics statistics : queueStatistics) {
+			long size = statistics.queueSize();
+			if(size < 0) return pendingCount();
+
+			queued += size;
+		}
+		return queued;
+	}
+
+	private long pendingCount() {
+		return Math.max(0, getReceivedCount() - getIndexedCount());
+	}
+
+	private void checkOrdering() {
+		if(receiverCount > 1 && !isOrdered()) {
+			throw new IllegalStateException("Pool " + name + " can't keep operations in order with " + receiverCount + " receivers unless the producer sends message groups or versions are checked");
+		}
+	}
+
+	/**
+	 * Whether several receivers keep the operations on every entity in
+	 * order.
+	 */
+	boolean isOrdered() {
+		return messageGroups || versionCheck;
+	}
+
+	private JmsOfflineIndexerConsumer createReceiver(String receiverName) {
+		JmsOfflineIndexerConsumer receiver = new JmsOfflineIndexerConsumer(receiverName, connectionFactory, indexerService, metrics);
+
+		if(subject != null) receiver.setSubject(subject);
+		if(assignedPartitions != null) receiver.setAssignedPartitions(assignedPartitions);
+		receiver.setFilter(filter);
+		if(reconnectPolicy != null) receiver.setReconnectPolicy(reconnectPolicy);
+		if(deadLetterSubject != null) receiver.setDeadLetterSubject(deadLetterSubject);
+		if(ackMode != null) receiver.setAckMode(ackMode);
+		receiver.setTransacted(transacted);
+		receiver.setBulkSize(bulkSize);
+		receiver.setBulkTimeoutMillis(bulkTimeoutMillis);
+		receiver.setEntityLoader(entityLoader);
+		receiver.setEntityCache(entityCache);
+		receiver.setDeduplicator(deduplicator);
+		receiver.setOptimizeAcknowledge(optimizeAcknowledge);
+		receiver.setWorkerPool(workerPool);
+		receiver.stopWhenReceivedCountReaches(Integer.MAX_VALUE);
+
+		return receiver;
+	}
+
+	/**
+	 * Stops every receiver and worker once the messages being processed are
+	 * indexed.
+	 */
+	public void shutdown() {
+		stopSignal.countDown();
+	}
+
+	public void stopWhenIndexedCountReaches(int count) {
+		this.countToStop = count;
+	}
+
+	public int getReceivedCount() {
+		int receivedCount = 0;
+		synchronized (receivers) {
+			for (JmsOfflineIndexerConsumer receiver : receiverThreads.keySet()) {
+				receivedCount += receiver.getReceivedCount();
+			}
+		}
+		return receivedCount;
+	}
+
+	/**
+	 * Receivers running, without those retired by the supervisor.
+	 */
+	public int getActiveReceiverCount() {
+		synchronized (receivers) {
+			return receivers.size();
+		}
+	}
+
+	public int getWorkerCount() {
+		return workerPool == null ? 0 : workerPool.getWorkerCount();
+	}
+
+	/**
+	 * The current lag, asking the broker when the pool scales. This may
+	 * block for the statistics timeout.
+	 *
+	 * @see #setScalingPolicy(ScalingPolicy)
+	 */
+	public long getLag() {
+		return estimateLag();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Metrics of the whole pool: its receivers and workers all record into
+	 * this registry. They show up once the pool is running.
+	 */
+	public MetricsRegistry getMetrics() {
+		return metrics;
+	}
+
+	public int getIndexedCount() {
+		return workerPool == null ? 0 : workerPool.getIndexedCount();
+	}
+
+	/**
+	 * Per-worker received and indexed counts.
+	 */
+	public List<IndexingWorker> getWorkers() {
+		if(workerPool == null) return Collections.emptyList();
+		return workerPool.getWorkers();
+	}
+
+	/**
+	 * Receivers started with the pool. More than one requires message
+	 * groups or version checks. With a {@link ScalingPolicy}, the
+	 * count is kept within its bounds.
+	 */
+	public void setReceiverCount(int receiverCount) {
+		this.receiverCount = receiverCount;
+	}
+
+	/**
+	 * Tells the pool that the producer stamps message groups, so that it
+	 * may run several receivers.
+	 *
+	 * @see JmsOfflineIndexerProducer#setMessageGroupCount(int)
+	 */
+	public void setMessageGroups(boolean messageGroups) {
+		this.messageGroups = messageGroups;
+	}
+
+	public void setWorkerCount(int workerCount) {
+		this.workerCount = workerCount;
+	}
+
+	public void setSubject(String subject) {
+		this.subject = subject;
+	}
+
+	/**
+	 * Partitions read by every receiver of the pool.
+	 *
+	 * @see JmsOfflineIndexerConsumer#setAssignedPartitions(int...)
+	 */
+	public void setAssignedPartitions(int... assignedPartitions) {
+		this.assignedPartitions = assignedPartitions;
+	}
+
+	/**
+	 * Filter applied by every receiver of the pool.
+	 *
+	 * @see JmsOfflineIndexerConsumer#setFilter(IndexMessageFilter)
+	 */
+	public void setFilter(IndexMessageFilter filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * How the workers retry failing operations.
+	 *
+	 * @see JmsOfflineIndexerConsumer#setRetryPolicy(RetryPolicy)
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * @see JmsOfflineIndexerConsumer#setReconnectPolicy(RetryPolicy)
+	 */
+	public void setReconnectPolicy(RetryPolicy reconnectPolicy) {
+		this.reconnectPolicy = reconnectPolicy;
+	}
+
+	/**
+	 * @see JmsOfflineIndexerConsumer#setDeadLetterSubject(String)
+	 */
+	public void setDeadLetterSubject(String deadLetterSubject) {
+		this.deadLetterSubject = deadLetterSubject;
+	}
+
+	public void setTransacted(boolean transacted) {
+		this.transacted = transacted;
+	}
+
+	public void setAckMode(String ackMode) {
+		this.ackMode = ackMode;
+	}
+
+	public void setBulkSize(int bulkSize) {
+		this.bulkSize = bulkSize;
+	}
+
+	public void setBulkTimeoutMillis(long bulkTimeoutMillis) {
+		this.bulkTimeoutMillis = bulkTimeoutMillis;
+	}
+
+	public void setEntityLoader(EntityLoader entityLoader) {
+		this.entityLoader = entityLoader;
+	}
+
+	/**
+	 * Cache shared by all the receivers of the pool.
+	 */
+	public void setEntityCache(EntityCache entityCache) {
+		this.entityCache = entityCache;
+	}
+
+	/**
+	 * Deduplicator shared by all the receivers of the pool, as a message
+	 * may be redelivered to another receiver.
+	 *
+	 * @see JmsOfflineIndexerConsumer#setDeduplicator(MessageDeduplicator)
+	 */
+	public void setDeduplicator(MessageDeduplicator deduplicator) {
+		this.deduplicator = deduplicator;
+	}
+
+	/**
+	 * @see JmsOfflineIndexerConsumer#setOptimizeAcknowledge(boolean)
+	 */
+	public void setOptimizeAcknowledge(boolean optimizeAcknowledge) {
+		this.optimizeAcknowledge = optimizeAcknowledge;
+	}
+
+	/**
+	 * Lets the workers apply versioned operations in any order, skipping
+	 * superseded ones.
+	 *
+	 * @see JmsOfflineIndexerConsumer#setVersionCheck(boolean)
+	 */
+	public void setVersionCheck(boolean versionCheck) {
+		this.versionCheck = versionCheck;
+	}
+
+	/**
+	 * @see JmsOfflineIndexerConsumer#setVersionCapacity(int)
+	 */
+	public void setVersionCapacity(int versionCapacity) {
+		this.versionCapacity = versionCapacity;
+	}
+
+	/**
+	 * Lets the pool grow and shrink with its lag. It doesn't by default.
+	 */
+	public void setScalingPolicy(ScalingPolicy scalingPolicy) {
+		this.scalingPolicy = scalingPolicy;
+	}
+
+	public ScalingPolicy getScalingPolicy() {
+		return scalingPolicy;
+	}
+
+	/**
+	 * How long the supervisor waits for the broker to report a queue size
+	 * before counting the lag on its own.
+	 */
+	public void setStatisticsTimeoutMillis(long statisticsTimeoutMillis) {
+		this.statisticsTimeoutMillis = statisticsTimeoutMillis;
+	}
+}
@@ -19,26 +19,99 @@
  */
 package com.jklas.search.indexer.jms;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.jms.BytesMessage;
 import javax.jms.Connection;
 import javax.jms.DeliveryMode;
 import javax.jms.Destination;
 import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageFormatException;
 import javax.jms.MessageProducer;
-import javax.jms.ObjectMessage;
 import javax.jms.Session;
 
 import org.apache.activemq.ActiveMQConnectionFactory;
 
-public class JmsOfflineIndexerProducer implements Runnable {
+import com.jklas.search.exception.IndexObjectException;
 
-	private LinkedBlockingQueue<Serializable> sendQueue = new LinkedBlockingQueue<Serializable>();
+public class JmsOfflineIndexerProducer implements OfflineIndexTransport, Runnable {
+
+	/** wakes up the producer thread when it is asked to stop once drained */
+	private enum Marker { DRAIN }
+
+	private static final long JOURNAL_POLL_MILLIS = 500;
+
+	/** larger encode buffers are let go after the message that needed them */
+	private static final int MAX_RETAINED_BUFFER_SIZE = 1 << 20;
+
+	private final LinkedBlockingQueue<Serializable> sendQueue;
+
+	private BackpressurePolicy backpressurePolicy = BackpressurePolicy.BLOCK;
+
+	/**
+	 * With {@link BackpressurePolicy#COALESCE}, the PDU queued last for
+	 * each entity, so a full queue is coalesced without scanning it.
+	 */
+	private final Map<EntityKey, JmsIndexPDU> queuedByEntity = new HashMap<EntityKey, JmsIndexPDU>();
+
+	/**
+	 * Queued PDUs merged with later operations, and what they were merged
+	 * into. The producer thread sends the latter when it takes the former.
+	 * Guarded, like {@link #queuedByEntity}, by the lock on the latter.
+	 */
+	private final Map<JmsIndexPDU, JmsIndexPDU> coalescedInPlace = new IdentityHashMap<JmsIndexPDU, JmsIndexPDU>();
+
+	private long enqueueTimeoutMillis = Long.MAX_VALUE;
+
+	private int highWatermark = Integer.MAX_VALUE;
+
+	private int lowWatermark = 0;
+
+	private SendQueueListener sendQueueListener;
+
+	private JmsIndexJournal journal;
+
+	private JmsIndexCodec codec;
+
+	private final JmsIndexCodec serializationCodec = new SerializationIndexCodec();
+
+	private MessageCompressor compressor;
+
+	private CoalescingBuffer coalescingBuffer;
+
+	private int compressionThreshold;
+
+	private final AtomicBoolean aboveHighWatermark = new AtomicBoolean();
+
+	private final AtomicInteger peakQueueDepth = new AtomicInteger();
+
+	private final AtomicInteger droppedCount = new AtomicInteger();
+
+	private final AtomicInteger coalescedCount = new AtomicInteger();
+
+	private final AtomicInteger rejectedCount = new AtomicInteger();
 
 	private Destination destination;
-	private boolean verbose = true;
 	private long timeToLive;
 	private String subject = "SEARCH.ALL_INDEXES";
 	private boolean transacted;
@@ -49,17 +122,155 @@ public class JmsOfflineIndexerProducer implements Runnable {
 	private final ActiveMQConnectionFactory connectionFactory;
 	private Session session;
 	private MessageProducer producer;
-	private boolean shutdown = false;
+	private volatile boolean shutdown = false;
 
 	private Connection connection;
 
-	private int countToStop;
+	private int countToStop = Integer.MAX_VALUE;
+
+	private volatile boolean draining = false;
+
+	private volatile int sentCount = 0;
+
+	private volatile int sentMessageCount = 0;
+
+	private RetryPolicy reconnectPolicy = new RetryPolicy(10, 100, 10000);
+
+	private volatile int reconnectCount;
+
+	private final MetricsRegistry metrics;
+
+	private final Meter enqueueMeter;
+
+	private final Meter sendMeter;
 
-	private int sentCount = 0;
+	private final Meter sendFailureMeter;
+
+	private final Meter reconnectMeter;
+
+	private final Meter unreadableRecordMeter;
+
+	private final Histogram sendLatency;
+
+	private final Histogram commitLatency;
+
+	private int batchSize = 1;
+
+	private long batchLingerMillis = 0;
+
+	private int messageGroupCount = 0;
+
+	private int partitionCount = 0;
+
+	private Partitioner partitioner = StandardPartitioner.ENTITY_ID;
+
+	private Destination[] partitions;
+
+	/** message group of each partition of the entity id, built on startup */
+	private String[] messageGroups;
+
+	private boolean routingProperties;
+
+	private String indexName;
+
+	private boolean replicated;
+
+	private long heartbeatIntervalMillis = 1000;
+
+	private Timer heartbeatTimer;
+
+	private boolean heartbeatsStopped;
+
+	/** operations sent so far, in flight included, stamped on every message */
+	private long sequence;
+
+	/** sequences restart with the producer, so each run is a publisher of its own */
+	private String publisherId;
+
+	private volatile long publishedSequence;
+
+	private int maxInFlightMessages = 0;
+
+	/** sent but not yet committed, only when sending asynchronously */
+	private final List<Serializable> inFlight = new ArrayList<Serializable>();
+
+	private int inFlightOperationCount;
+
+	/*
+	 * Reused by the producer thread from one message to the next, so that
+	 * sending doesn't allocate more than the JMS message itself.
+	 */
+	private final List<Serializable> drained = new ArrayList<Serializable>();
+
+	private final List<JmsIndexPDU> batch = new ArrayList<JmsIndexPDU>();
+
+	private EncodeBuffer encodeBuffer = new EncodeBuffer();
+
+	/** the journal records being sent, by the object read from each */
+	private final Map<Serializable, JournalRecord> journalRecords = new IdentityHashMap<Serializable, JournalRecord>();
 
 	public JmsOfflineIndexerProducer(String name, ActiveMQConnectionFactory connectionFactory) {
+		this(name, connectionFactory, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates a producer whose send queue holds at most
+	 * <code>queueCapacity</code> entries. What happens when it is full is
+	 * decided by the {@link BackpressurePolicy}.
+	 */
+	public JmsOfflineIndexerProducer(String name, ActiveMQConnectionFactory connectionFactory, int queueCapacity) {
 		this.producerName = name;
 		this.connectionFactory = connectionFactory;
+		this.sendQueue = new LinkedBlockingQueue<Serializable>(queueCapacity);
+
+		this.metrics = new MetricsRegistry("Producer", name);
+		this.enqueueMeter = metrics.meter("enqueued");
+		this.sendMeter = metrics.meter("sent");
+		this.sendFailureMeter = metrics.meter("sendFailures");
+		this.reconnectMeter = metrics.meter("reconnects");
+		this.unreadableRecordMeter = metrics.meter("unreadableRecords");
+		this.sendLatency = metrics.histogram("sendLatencyNanos");
+		this.commitLatency = metrics.histogram("commitLatencyNanos");
+		registerGauges();
+	}
+
+	private void registerGauges() {
+		metrics.gauge("queueDepth", new Gauge() {
+			@Override
+			public long getValue() {
+				return queueDepth();
+			}
+		});
+		metrics.gauge("peakQueueDepth", new Gauge() {
+			@Override
+			public long getValue() {
+				return peakQueueDepth.get();
+			}
+		});
+		metrics.gauge("sentMessages", new Gauge() {
+			@Override
+			public long getValue() {
+				return sentMessageCount;
+			}
+		});
+		metrics.gauge("dropped", new Gauge() {
+			@Override
+			public long getValue() {
+				return droppedCount.get();
+			}
+		});
+		metrics.gauge("coalesced", new Gauge() {
+			@Override
+			public long getValue() {
+				return coalescedCount.get();
+			}
+		});
+		metrics.gauge("rejected", new Gauge() {
+			@Override
+			public long getValue() {
+				return rejectedCount.get();
+			}
+		});
 	}
 
 	@Override
@@ -68,50 +279,613 @@ public class JmsOfflineIndexerProducer implements Runnable {
 			try {
 				startup();
 			} catch (JMSException e) {
+				// the broker may be back in a moment
+				sendFailureMeter.mark();
 				e.printStackTrace();
-				shutdown = true;
+				reconnect();
 			}
 
 			while(!shutdown) {
 				try {
 
-					if(sentCount >= countToStop ) {
+					if(sentCount + inFlightOperationCount >= countToStop ) {
 						shutdown = true;					
+					} else if(draining && queueDepth() == 0) {
+						shutdown = true;
 					} else {
-						acceptAndSend();						
+						if(journal != null) {
+							acceptAndSendFromJournal();
+						} else {
+							acceptAndSend();
+						}
 					}
 
 				} catch (InterruptedException e) {
 
+				} catch (RuntimeException e) {
+					if(!(e.getCause() instanceof JMSException)) throw e;
+
+					e.printStackTrace();
+					// what was in the journal is sent again once connected
+					reconnect();
 				}
 			}
 		} finally {
-			try {					
-				if(producer!=null) producer.close();
-				if(session!=null) session.close();
-				if(connection!=null) connection.close();
-			} catch (JMSException ignore) {
-				ignore.printStackTrace();
+			if(heartbeatTimer != null) stopHeartbeats();
+
+			try {
+				if(!inFlight.isEmpty()) commitInFlight();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
 			}
+
+			disconnect();
+
+			if(journal != null) journal.close();
 		}
 
 	}
 
+	/**
+	 * Connects again as the reconnect {@link RetryPolicy} allows, and shuts
+	 * the producer down once it gives up.
+	 */
+	private void reconnect() {
+		disconnect();
+
+		for (int attempt = 1; !shutdown; attempt++) {
+			if(!reconnectPolicy.canRetry(attempt)) {
+				shutdown = true;
+				return;
+			}
+
+			pause(reconnectPolicy.backoffMillis(attempt));
+			if(shutdown) return;
+
+			try {
+				connect();
+				reconnectCount++;
+				reconnectMeter.mark();
+				return;
+			} catch (JMSException e) {
+				sendFailureMeter.mark();
+				disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Waits unless shut down meanwhile.
+	 */
+	private synchronized void pause(long millis) {
+		long deadline = System.currentTimeMillis() + millis;
+		try {
+			for (long remaining = millis; remaining > 0 && !shutdown; remaining = deadline - System.currentTimeMillis()) {
+				wait(remaining);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			shutdown = true;
+		}
+	}
+
 	private void acceptAndSend() throws InterruptedException {
-		Serializable objectToSend = sendQueue.take();
-		send(objectToSend);
+		Serializable objectToSend = coalescingBuffer == null ? sendQueue.take() : takeCoalesced();
+
+		if(objectToSend == Marker.DRAIN) return;
+
+		if(batchSize <= 1) {
+			dequeued();
+			send(claim(objectToSend));
+		} else {
+			List<Serializable> drainedBatch = drainBatch(objectToSend);
+			dequeued();
+			for (int i = 0; i < drainedBatch.size(); i++) {
+				drainedBatch.set(i, claim(drainedBatch.get(i)));
+			}
+			sendBatched(drainedBatch);
+		}
+
+		// nothing else to send for now, so have the broker accept what is in flight
+		if(!inFlight.isEmpty() && sendQueue.isEmpty()) {
+			commitInFlight();
+		}
+	}
+
+	/**
+	 * What to send for an object taken off the send queue, which is a later
+	 * PDU if it was coalesced in place.
+	 */
+	private Serializable claim(Serializable taken) {
+		if(backpressurePolicy != BackpressurePolicy.COALESCE || !(taken instanceof JmsIndexPDU)) return taken;
+
+		JmsIndexPDU pdu = (JmsIndexPDU) taken;
+		EntityKey key = EntityKey.of(pdu);
+
+		synchronized (queuedByEntity) {
+			if(queuedByEntity.get(key) == pdu) {
+				queuedByEntity.remove(key);
+			}
+
+			JmsIndexPDU coalesced = coalescedInPlace.remove(pdu);
+			return coalesced == null ? pdu : coalesced;
+		}
+	}
+
+	private Serializable takeCoalesced() throws InterruptedException {
+		Serializable objectToSend = null;
+
+		while(objectToSend == null) {
+			coalescingBuffer.flushInto(sendQueue);
+			objectToSend = sendQueue.poll(coalescingBuffer.millisUntilFlush(), TimeUnit.MILLISECONDS);
+		}
+
+		return objectToSend;
+	}
+
+	private void acceptAndSendFromJournal() throws InterruptedException {
+		int maxRecords = batchSize <= 1 ? 1 : Math.min(batchSize, countToStop - sentCount - inFlightOperationCount);
+
+		// don't block for good, so that stopWhenDrained() is noticed
+		List<byte[]> records = journal.read(maxRecords, JOURNAL_POLL_MILLIS);
+		if(records.isEmpty()) return;
+
+		long deadline = System.currentTimeMillis() + batchLingerMillis;
+		while(records.size() < maxRecords) {
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0) break;
+
+			List<byte[]> more = journal.read(maxRecords - records.size(), remaining);
+			if(more.isEmpty()) break;
+			records.addAll(more);
+		}
+
+		List<Serializable> objectsToSend = new ArrayList<Serializable>(records.size());
+		for (byte[] record : records) {
+			Serializable objectToSend = decodeRecord(record);
+			if(objectToSend == null) {
+				// skipped, the checkpoint moves past it instead of replaying it forever
+				unreadableRecordMeter.mark();
+			} else {
+				objectsToSend.add(objectToSend);
+			}
+		}
+
+		dequeued();
+
+		int sentCountBefore = sentCount;
+		int sentMessageCountBefore = sentMessageCount;
+		long sequenceBefore = sequence;
+
+		try {
+			sendBatched(objectsToSend);
+			commitInFlight();
+		} catch (RuntimeException e) {
+			// send them again from the last checkpoint, under the same sequences
+			journal.rewind();
+			sentCount = sentCountBefore;
+			sentMessageCount = sentMessageCountBefore;
+			sequence = sequenceBefore;
+			publishedSequence = sequenceBefore;
+			throw e;
+		} finally {
+			journalRecords.clear();
+		}
+
+		journal.checkpoint();
+	}
+
+	/**
+	 * Queues an object for sending, applying the {@link BackpressurePolicy}
+	 * when the send queue is full.
+	 * <p>
+	 * When the producer has a journal, the object goes to the journal
+	 * instead. A full journal makes the caller wait up to the enqueue
+	 * timeout for the producer to free a segment.
+	 * <p>
+	 * With a coalescing window, PDUs wait in the window before reaching the
+	 * send queue.
+	 * <p>
+	 * The {@link SendFuture} of a PDU completes when the producer sent it or
+	 * fails when the send does, except with a journal, where it completes
+	 * once the PDU is in the journal.
+	 */
+	public void enqueue(Serializable objectToSend) throws IndexObjectException {
+		if(objectToSend instanceof JmsIndexPDU) {
+			((JmsIndexPDU) objectToSend).setEnqueueTime(System.currentTimeMillis());
+		}
+
+		if(journal != null) {
+			appendToJournal(objectToSend);
+		} else if(coalescingBuffer != null && objectToSend instanceof JmsIndexPDU) {
+			enqueueInWindow((JmsIndexPDU) objectToSend);
+		} else if(backpressurePolicy == BackpressurePolicy.COALESCE && objectToSend instanceof JmsIndexPDU) {
+			enqueueCoalescing((JmsIndexPDU) objectToSend);
+		} else if(!sendQueue.offer(objectToSend)) {
+			switch (backpressurePolicy) {
+			case FAIL:
+				rejectedCount.incrementAndGet();
+				throw new IndexObjectException("Send queue of producer " + producerName + " is full (" + sendQueue.size() + " entries)");
+			case DROP_OLDEST:
+				enqueueDroppingOldest(objectToSend);
+				break;
+			default:
+				enqueueBlocking(objectToSend);
+			}
+		}
+
+		enqueued();
+	}
+
+	@Override
+	public void enqueue(JmsIndexPDU pdu) throws IndexObjectException {
+		enqueue((Serializable) pdu);
+	}
+
+	private void appendToJournal(Serializable objectToSend) throws IndexObjectException {
+		try {
+			if(!journal.append(encodeRecord(objectToSend), enqueueTimeoutMillis)) {
+				rejectedCount.incrementAndGet();
+				throw new IndexObjectException("Timed out after " + enqueueTimeoutMillis + "ms waiting for room in the journal of producer " + producerName);
+			}
+			// safe from here on
+			sent(objectToSend);
+		} catch (IOException e) {
+			rejectedCount.incrementAndGet();
+			throw new IndexObjectException("Can't write to the journal of producer " + producerName + ": " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			rejectedCount.incrementAndGet();
+			throw new IndexObjectException("Interrupted while waiting for room in the journal of producer " + producerName);
+		}
+	}
+
+	private void enqueueInWindow(JmsIndexPDU pdu) throws IndexObjectException {
+		long timeoutMillis = backpressurePolicy == BackpressurePolicy.FAIL ? 0 : enqueueTimeoutMillis;
+		boolean dropOldest = backpressurePolicy == BackpressurePolicy.DROP_OLDEST;
+
+		int saved;
+		try {
+			saved = coalescingBuffer.add(pdu, timeoutMillis, dropOldest);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			rejectedCount.incrementAndGet();
+			throw new IndexObjectException("Interrupted while waiting for room in the coalescing window of producer " + producerName);
+		}
+
+		if(saved < 0) {
+			rejectedCount.incrementAndGet();
+			throw new IndexObjectException("Coalescing window of producer " + producerName + " is full (" + coalescingBuffer.size() + " entities)");
+		}
+
+		coalescedCount.addAndGet(saved);
+	}
+
+	/**
+	 * A journal record holds the name of the codec, the enqueue time, which
+	 * codecs don't keep, and the object as the codec encodes it. Without a
+	 * codec, the object is serialized.
+	 */
+	private byte[] encodeRecord(Serializable object) throws IOException {
+		JmsIndexCodec recordCodec = codec == null ? serializationCodec : codec;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(recordCodec.getName());
+		out.writeLong(object instanceof JmsIndexPDU ? ((JmsIndexPDU) object).getEnqueueTime() : 0);
+		recordCodec.encode(object, out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * The object in a journal record, or null if it can't be read back. The
+	 * record is kept until sent, so that a message carrying the object alone
+	 * takes its encoded bytes as they are.
+	 */
+	private Serializable decodeRecord(byte[] record) {
+		try {
+			ByteArrayInputStream bytes = new ByteArrayInputStream(record);
+			DataInputStream in = new DataInputStream(bytes);
+			String codecName = in.readUTF();
+			long enqueueTime = in.readLong();
+
+			JmsIndexCodec recordCodec = codec != null && codec.getName().equals(codecName) ? codec : JmsIndexCodecs.forName(codecName);
+			if(recordCodec == null) {
+				throw new IOException("No codec registered as " + codecName);
+			}
+
+			int offset = record.length - bytes.available();
+			Serializable object = recordCodec.decode(bytes);
+			if(object instanceof JmsIndexPDU) {
+				((JmsIndexPDU) object).setEnqueueTime(enqueueTime);
+			}
+
+			journalRecords.put(object, new JournalRecord(codecName, record, offset));
+			return object;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private void enqueueBlocking(Serializable objectToSend) throws IndexObjectException {
+		try {
+			if(!sendQueue.offer(objectToSend, enqueueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				rejectedCount.incrementAndGet();
+				throw new IndexObjectException("Timed out after " + enqueueTimeoutMillis + "ms waiting for room in the send queue of producer " + producerName);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			rejectedCount.incrementAndGet();
+			throw new IndexObjectException("Interrupted while waiting for room in the send queue of producer " + producerName);
+		}
+	}
+
+	private void enqueueDroppingOldest(Serializable objectToSend) {
+		while(!sendQueue.offer(objectToSend)) {
+			Serializable dropped = sendQueue.poll();
+			if(dropped != null) {
+				droppedCount.incrementAndGet();
+				failed(dropped, new IndexObjectException("Dropped from the full send queue of producer " + producerName));
+			}
+		}
+	}
+
+	/**
+	 * Queues the PDU or, when the queue is full, merges it into the last one
+	 * queued for the same entity. Blocks if there is nothing to merge with.
+	 */
+	private void enqueueCoalescing(JmsIndexPDU pdu) throws IndexObjectException {
+		EntityKey key = EntityKey.of(pdu);
+
+		synchronized (queuedByEntity) {
+			if(sendQueue.offer(pdu)) {
+				queuedByEntity.put(key, pdu);
+				return;
+			}
+
+			JmsIndexPDU queued = queuedByEntity.get(key);
+			if(queued != null && coalesceInto(queued, key, pdu)) return;
+		}
+
+		// left out of the index, as the producer thread may take it before it's in
+		enqueueBlocking(pdu);
+	}
+
+	/**
+	 * Merges the PDU into a queued one, keeping its place in the queue.
+	 * Returns false if the producer thread took the queued PDU meanwhile.
+	 */
+	private boolean coalesceInto(JmsIndexPDU queued, EntityKey key, JmsIndexPDU pdu) {
+		JmsIndexPDU previous = coalescedInPlace.get(queued);
+		if(previous == null) previous = queued;
+		JmsIndexPDU coalesced = IndexerActionCoalescer.coalesce(previous, pdu);
+
+		if(coalesced != null) {
+			coalescedInPlace.put(queued, coalesced);
+			coalescedCount.incrementAndGet();
+			return true;
+		}
+
+		// neither of them is sent, which takes it off the queue
+		if(!sendQueue.remove(queued)) {
+			// later operations must not overtake this one
+			queuedByEntity.remove(key);
+			return false;
+		}
+
+		queuedByEntity.remove(key);
+		coalescedInPlace.remove(queued);
+		coalescedCount.addAndGet(2);
+		SendFuture.sent(previous);
+		SendFuture.sent(pdu);
+		return true;
+	}
+
+	private int queueDepth() {
+		int depth = sendQueue.size();
+		if(journal != null) depth += journal.getPendingCount();
+		if(coalescingBuffer != null) depth += coalescingBuffer.size();
+		return depth;
+	}
+
+	private void enqueued() {
+		enqueueMeter.mark();
+
+		int depth = queueDepth();
+
+		int peak = peakQueueDepth.get();
+		while(depth > peak && !peakQueueDepth.compareAndSet(peak, depth)) {
+			peak = peakQueueDepth.get();
+		}
+
+		if(depth >= highWatermark && aboveHighWatermark.compareAndSet(false, true)) {
+			SendQueueListener listener = sendQueueListener;
+			if(listener != null) listener.highWatermarkReached(depth);
+		}
+	}
+
+	private void dequeued() {
+		if(!aboveHighWatermark.get()) return;
+
+		int depth = queueDepth();
+
+		if(depth <= lowWatermark && aboveHighWatermark.compareAndSet(true, false)) {
+			SendQueueListener listener = sendQueueListener;
+			if(listener != null) listener.lowWatermarkReached(depth);
+		}
+	}
+
+	private List<Serializable> drainBatch(Serializable first) throws InterruptedException {
+		int maxBatchSize = Math.min(batchSize, countToStop - sentCount - inFlightOperationCount);
+
+		drained.clear();
+		drained.add(first);
+		sendQueue.drainTo(drained, maxBatchSize - drained.size());
+
+		long deadline = System.currentTimeMillis() + batchLingerMillis;
+
+		while(drained.size() < maxBatchSize) {
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0) break;
+
+			Serializable next = sendQueue.poll(remaining, TimeUnit.MILLISECONDS);
+			if(next == null) break;
+
+			drained.add(next);
+			sendQueue.drainTo(drained, maxBatchSize - drained.size());
+		}
+
+		return drained;
+	}
+
+	private void sendBatched(List<Serializable> objectsToSend) {
+		batch.clear();
+
+		for (int i = 0; i < objectsToSend.size(); i++) {
+			Serializable objectToSend = objectsToSend.get(i);
+			if(objectToSend == Marker.DRAIN) {
+				continue;
+			} else if(objectToSend instanceof JmsIndexPDU) {
+				batch.add((JmsIndexPDU)objectToSend);
+			} else {
+				// anything that isn't a PDU travels on its own, keeping queue order
+				flushBatch(batch);
+				send(objectToSend);
+			}
+		}
+
+		flushBatch(batch);
+	}
+
+	private void flushBatch(List<JmsIndexPDU> batch) {
+		if(batch.isEmpty()) return;
+
+		if(messageGroupCount > 0 || partitionCount > 1) {
+			// a message goes to a single partition and group, so split the batch
+			for (List<JmsIndexPDU> route : splitByRoute(batch)) {
+				sendHomogeneous(route);
+			}
+		} else {
+			sendHomogeneous(batch);
+		}
+
+		batch.clear();
+	}
+
+	/**
+	 * With routing properties, every message must carry a single entity
+	 * class and action. Runs of them are sent in order, so the operations
+	 * on an entity are not reordered.
+	 */
+	private void sendHomogeneous(List<JmsIndexPDU> batch) {
+		if(!routingProperties) {
+			sendBatch(batch);
+			return;
+		}
+
+		int runStart = 0;
+		for (int i = 1; i <= batch.size(); i++) {
+			if(i == batch.size() || !sameRouting(batch.get(runStart), batch.get(i))) {
+				sendBatch(batch.subList(runStart, i));
+				runStart = i;
+			}
+		}
+	}
+
+	private static boolean sameRouting(JmsIndexPDU a, JmsIndexPDU b) {
+		if(a.getAction() != b.getAction()) return false;
+
+		String aClass = EntityKey.of(a).getEntityClassName();
+		String bClass = EntityKey.of(b).getEntityClassName();
+		return aClass == null ? bClass == null : aClass.equals(bClass);
+	}
+
+	private void sendBatch(List<JmsIndexPDU> batch) {
+		if(batch.size() == 1) {
+			send(batch.get(0));
+		} else {
+			send(new JmsIndexBatchPDU(batch));
+		}
+	}
+
+	private Collection<List<JmsIndexPDU>> splitByRoute(List<JmsIndexPDU> batch) {
+		Map<Integer, List<JmsIndexPDU>> routes = new LinkedHashMap<Integer, List<JmsIndexPDU>>();
+
+		for (JmsIndexPDU pdu : batch) {
+			EntityKey key = EntityKey.of(pdu);
+
+			int route = partitionOf(key);
+			if(messageGroupCount > 0) {
+				route = route * messageGroupCount + key.partition(messageGroupCount);
+			}
+
+			List<JmsIndexPDU> routePdus = routes.get(route);
+			if(routePdus == null) {
+				routePdus = new ArrayList<JmsIndexPDU>();
+				routes.put(route, routePdus);
+			}
+			routePdus.add(pdu);
+		}
+
+		return routes.values();
+	}
+
+	private int partitionOf(EntityKey key) {
+		return partitionCount > 1 ? partitioner.partition(key, partitionCount) : 0;
+	}
+
+	/**
+	 * The partition a message goes to. Anything that isn't a PDU goes to the
+	 * first one.
+	 */
+	private Destination partitionFor(Serializable objectToSend) {
+		JmsIndexPDU pdu = firstPdu(objectToSend);
+		return partitions[pdu == null ? 0 : partitionOf(EntityKey.of(pdu))];
+	}
+
+	private JmsIndexPDU firstPdu(Serializable objectToSend) {
+		if(objectToSend instanceof JmsIndexPDU) {
+			return (JmsIndexPDU) objectToSend;
+		}
+		if(objectToSend instanceof JmsIndexBatchPDU) {
+			return ((JmsIndexBatchPDU) objectToSend).get(0);
+		}
+		return null;
 	}
 
 	public void startup() throws JMSException {
 		this.connection = null;
-		
+		this.publisherId = producerName + "@" + System.currentTimeMillis();
+
+		if(messageGroupCount > 0) {
+			this.messageGroups = new String[messageGroupCount];
+			for (int i = 0; i < messageGroupCount; i++) {
+				messageGroups[i] = subject + "." + i;
+			}
+		}
+
+		connect();
+	}
+
+	private void connect() throws JMSException {
 		this.connection = connectionFactory.createConnection();
 		this.connection.start();
 
-		this.session = connection.createSession(transacted, Session.AUTO_ACKNOWLEDGE);
-		this.destination = session.createQueue(subject);
+		// asynchronous sends are only confirmed by a commit
+		this.session = connection.createSession(transacted || maxInFlightMessages > 0, Session.AUTO_ACKNOWLEDGE);
+		if(partitionCount > 0) {
+			this.partitions = new Destination[partitionCount];
+			for (int i = 0; i < partitionCount; i++) {
+				partitions[i] = createDestination(PartitionAssignment.partitionSubject(subject, i));
+			}
+			this.destination = null;
+		} else {
+			this.destination = createDestination(subject);
+		}
 
-		// Create the producer.
+		// Create the producer, with no destination when partitioned
 		this.producer = session.createProducer(destination);
 		
 		if (persistent) {
@@ -123,62 +897,713 @@ public class JmsOfflineIndexerProducer implements Runnable {
 		if (timeToLive != 0) {
 			producer.setTimeToLive(timeToLive);
 		}
-		
+
+		if (replicated) {
+			startHeartbeats();
+		}
 	}
 
-	private void log(String msg) {
-//		System.out.println(msg);
+	private void disconnect() {
+		if(heartbeatTimer != null) stopHeartbeats();
+
+		try {
+			if(producer!=null) producer.close();
+			if(session!=null) session.close();
+		} catch (JMSException ignore) {
+			// the connection may be gone already, closing it is enough
+		}
+
+		try {
+			if(connection!=null) connection.close();
+		} catch (JMSException ignore) {
+			// nothing left to release
+		} finally {
+			producer = null;
+			session = null;
+			connection = null;
+		}
+	}
+
+	private Destination createDestination(String name) throws JMSException {
+		return replicated ? session.createTopic(name) : session.createQueue(name);
+	}
+
+	/**
+	 * Tells the replicas the latest sequence sent, so they know how far
+	 * behind they are even when nothing is being sent.
+	 */
+	private void startHeartbeats() throws JMSException {
+		final Session heartbeatSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		final MessageProducer heartbeatProducer = heartbeatSession.createProducer(heartbeatSession.createTopic(ReplicationTracker.heartbeatSubject(subject)));
+		heartbeatProducer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+
+		final Timer timer = new Timer(producerName + "-heartbeat", true);
+		heartbeatsStopped = false;
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				synchronized (timer) {
+					if(heartbeatsStopped) return;
+
+					try {
+						Message heartbeat = heartbeatSession.createMessage();
+						heartbeat.setStringProperty(JmsIndexMessageProperties.PUBLISHER, publisherId);
+						heartbeat.setLongProperty(JmsIndexMessageProperties.SEQUENCE, publishedSequence);
+						heartbeatProducer.send(heartbeat);
+					} catch (JMSException e) {
+						// the connection is gone
+						cancel();
+					}
+				}
+			}
+		}, 0, heartbeatIntervalMillis);
+
+		heartbeatTimer = timer;
+	}
+
+	/**
+	 * Stops the heartbeats, waiting for one being sent so that it doesn't
+	 * race with closing the connection.
+	 */
+	private void stopHeartbeats() {
+		heartbeatTimer.cancel();
+		synchronized (heartbeatTimer) {
+			heartbeatsStopped = true;
+		}
+		heartbeatTimer = null;
 	}
 
 	public void send(Serializable objectToSend) {
+		int operationCount = operationCountOf(objectToSend);
+
 		try {
 
-			ObjectMessage message;
-			message = session.createObjectMessage(objectToSend);
+			Message message = createMessage(objectToSend);
+			message.setIntProperty(JmsIndexMessageProperties.OPERATION_COUNT, operationCount);
+			message.setStringProperty(JmsIndexMessageProperties.PUBLISHER, publisherId);
+			message.setLongProperty(JmsIndexMessageProperties.SEQUENCE, sequence + operationCount);
+
+			long enqueueTime = oldestEnqueueTime(objectToSend);
+			if(enqueueTime != 0) {
+				message.setLongProperty(JmsIndexMessageProperties.ENQUEUE_TIME, enqueueTime);
+			}
+
+			if(messageGroupCount > 0) {
+				JmsIndexPDU pdu = firstPdu(objectToSend);
+				if(pdu != null) {
+					message.setStringProperty(JmsIndexMessageProperties.MESSAGE_GROUP, messageGroups[EntityKey.of(pdu).partition(messageGroupCount)]);
+				}
+			}
 
-			if (verbose) {
-				String msg = message.getObject().toString();
-				if (msg.length() > 50) {
-					msg = msg.substring(0, 50) + "...";
+			if(routingProperties) {
+				JmsIndexPDU pdu = firstPdu(objectToSend);
+				if(pdu != null) {
+					message.setStringProperty(JmsIndexMessageProperties.ACTION, pdu.getAction().name());
+					message.setStringProperty(JmsIndexMessageProperties.ENTITY_CLASS, EntityKey.of(pdu).getEntityClassName());
 				}
-				log("["+producerName+"]: " + msg);
 			}
 
-			producer.send(message);
+			if(indexName != null) {
+				message.setStringProperty(JmsIndexMessageProperties.INDEX_NAME, indexName);
+			}
 
-			this.sentCount ++;
+			long start = System.nanoTime();
 
+			message.setLongProperty(JmsIndexMessageProperties.SEND_TIME, System.currentTimeMillis());
+			if(partitions == null) {
+				producer.send(message);
+			} else {
+				producer.send(partitionFor(objectToSend), message);
+			}
 
-			if (transacted) {
+			if (maxInFlightMessages <= 0 && transacted) {
 				session.commit();
 			}
 
+			sendLatency.update(System.nanoTime() - start);
+
+			this.sequence += operationCount;
+
+		} catch (JMSException e) {
+			sendFailureMeter.mark();
+			failed(objectToSend, e);
+			if(maxInFlightMessages > 0) rollbackInFlight(e);
+			throw new RuntimeException("JMS Exception, nesting...",e);
+		}
+
+		if(maxInFlightMessages > 0) {
+			// counted once committed
+			inFlight.add(objectToSend);
+			inFlightOperationCount += operationCount;
+			if(inFlight.size() >= maxInFlightMessages) commitInFlight();
+		} else {
+			confirmed(operationCount);
+			sent(objectToSend);
+		}
+	}
+
+	private void confirmed(int operationCount) {
+		sendMeter.mark(operationCount);
+
+		this.sentCount += operationCount;
+		this.sentMessageCount ++;
 
+		this.publishedSequence = sequence;
+	}
+
+	private void commitInFlight() {
+		if(inFlight.isEmpty()) return;
+
+		try {
+			long start = System.nanoTime();
+			session.commit();
+			commitLatency.update(System.nanoTime() - start);
 		} catch (JMSException e) {
+			sendFailureMeter.mark();
+			rollbackInFlight(e);
 			throw new RuntimeException("JMS Exception, nesting...",e);
 		}
+
+		for (Serializable objectSent : inFlight) {
+			confirmed(operationCountOf(objectSent));
+			sent(objectSent);
+		}
+		inFlight.clear();
+		inFlightOperationCount = 0;
+	}
+
+	private void rollbackInFlight(Throwable cause) {
+		try {
+			session.rollback();
+		} catch (JMSException ignore) {
+			// the broker drops the transaction anyway
+		}
+
+		for (Serializable objectSent : inFlight) {
+			failed(objectSent, cause);
+		}
+		inFlight.clear();
+		inFlightOperationCount = 0;
+
+		// the next messages take the sequences of those rolled back
+		this.sequence = publishedSequence;
+	}
+
+	private static int operationCountOf(Serializable objectToSend) {
+		return objectToSend instanceof JmsIndexBatchPDU ? ((JmsIndexBatchPDU)objectToSend).size() : 1;
+	}
+
+	private static void sent(Serializable objectSent) {
+		if(objectSent instanceof JmsIndexPDU) {
+			SendFuture.sent((JmsIndexPDU) objectSent);
+		} else if(objectSent instanceof JmsIndexBatchPDU) {
+			JmsIndexBatchPDU batchSent = (JmsIndexBatchPDU) objectSent;
+			for (int i = 0; i < batchSent.size(); i++) {
+				SendFuture.sent(batchSent.get(i));
+			}
+		}
+	}
+
+	private static void failed(Serializable objectToSend, Throwable cause) {
+		if(objectToSend instanceof JmsIndexPDU) {
+			SendFuture.failed((JmsIndexPDU) objectToSend, cause);
+		} else if(objectToSend instanceof JmsIndexBatchPDU) {
+			for (JmsIndexPDU pdu : ((JmsIndexBatchPDU) objectToSend).getPdus()) {
+				SendFuture.failed(pdu, cause);
+			}
+		}
+	}
+
+	private static long oldestEnqueueTime(Serializable objectToSend) {
+		if(objectToSend instanceof JmsIndexPDU) {
+			return ((JmsIndexPDU) objectToSend).getEnqueueTime();
+		}
+
+		long oldest = 0;
+		if(objectToSend instanceof JmsIndexBatchPDU) {
+			JmsIndexBatchPDU batchToSend = (JmsIndexBatchPDU) objectToSend;
+			for (int i = 0; i < batchToSend.size(); i++) {
+				long enqueueTime = batchToSend.get(i).getEnqueueTime();
+				if(enqueueTime != 0 && (oldest == 0 || enqueueTime < oldest)) {
+					oldest = enqueueTime;
+				}
+			}
+		}
+		return oldest;
+	}
+
+	private Message createMessage(Serializable objectToSend) throws JMSException {
+		JournalRecord record = journalRecords.isEmpty() ? null : journalRecords.get(objectToSend);
+		if(record != null) {
+			// encoded once, when it was journaled
+			return createBytesMessage(record.codecName, record.bytes, record.offset, record.bytes.length - record.offset);
+		}
+
+		JmsIndexCodec bodyCodec = codec;
+
+		if(bodyCodec == null) {
+			if(compressor == null) {
+				return session.createObjectMessage(objectToSend);
+			}
+			// compression needs the body as bytes
+			bodyCodec = serializationCodec;
+		}
+
+		EncodeBuffer body = encodeBuffer;
+		body.reset();
+		try {
+			bodyCodec.encode(objectToSend, body);
+		} catch (IOException e) {
+			JMSException jmsException = new MessageFormatException("Can't encode " + objectToSend + " with codec " + bodyCodec.getName());
+			jmsException.setLinkedException(e);
+			throw jmsException;
+		}
+
+		BytesMessage message = createBytesMessage(bodyCodec.getName(), body.bytes(), 0, body.size());
+
+		if(body.bytes().length > MAX_RETAINED_BUFFER_SIZE) {
+			encodeBuffer = new EncodeBuffer();
+		}
+		return message;
+	}
+
+	private BytesMessage createBytesMessage(String codecName, byte[] bytes, int offset, int length) throws JMSException {
+		BytesMessage message = session.createBytesMessage();
+		message.setStringProperty(JmsIndexMessageProperties.CODEC, codecName);
+
+		if(compressor != null && length >= compressionThreshold) {
+			int compressedLength = compressor.deflate(bytes, offset, length);
+
+			if(compressedLength >= 0) {
+				message.setStringProperty(JmsIndexMessageProperties.COMPRESSION, MessageCompressor.DEFLATE);
+				message.setIntProperty(JmsIndexMessageProperties.UNCOMPRESSED_SIZE, length);
+				bytes = compressor.getBuffer();
+				offset = 0;
+				length = compressedLength;
+			}
+		}
+
+		// the message copies the bytes
+		message.writeBytes(bytes, offset, length);
+		return message;
+	}
+
+	/**
+	 * Exposes its buffer, so that the encoded bytes are written to the
+	 * message without being copied first.
+	 */
+	private static class EncodeBuffer extends ByteArrayOutputStream {
+
+		EncodeBuffer() {
+			super(1024);
+		}
+
+		byte[] bytes() {
+			return buf;
+		}
+	}
+
+	private static class JournalRecord {
+		final String codecName;
+		final byte[] bytes;
+		/** where the encoded object starts */
+		final int offset;
+
+		JournalRecord(String codecName, byte[] bytes, int offset) {
+			this.codecName = codecName;
+			this.bytes = bytes;
+			this.offset = offset;
+		}
 	}
 
 	public void setShutdown(boolean shutdown) {
 		this.shutdown = shutdown;
+
+		synchronized (this) {
+			// wakes it up if it is waiting to reconnect
+			notifyAll();
+		}
+	}
+
+	/**
+	 * How the producer connects again once a send failed. It waits the
+	 * backoff before every attempt and shuts down when out of attempts;
+	 * {@link RetryPolicy#NONE} shuts it down right away. By default it tries
+	 * 10 times, backing off from 100ms up to 10s.
+	 * <p>
+	 * With a journal, what wasn't confirmed by the broker is sent again from
+	 * the last checkpoint. Without one, the operations of the failed message
+	 * are lost and their {@link SendFuture}s fail.
+	 */
+	public void setReconnectPolicy(RetryPolicy reconnectPolicy) {
+		this.reconnectPolicy = reconnectPolicy;
+	}
+
+	public RetryPolicy getReconnectPolicy() {
+		return reconnectPolicy;
 	}
 
+	/**
+	 * Times the producer connected again after a send failed.
+	 */
+	public int getReconnectCount() {
+		return reconnectCount;
+	}
+
+	/**
+	 * Direct access to the send queue. Adding to it bypasses the
+	 * {@link BackpressurePolicy}; use {@link #enqueue(Serializable)} instead.
+	 */
 	public Queue<Serializable> getSendQueue() {
 		return sendQueue;
 	}
 
+	/**
+	 * Stops the producer once it sent <code>count</code> operations. By
+	 * default it keeps running until shut down.
+	 */
 	public void stopWhenSentCountReaches(int count) {
 		this.countToStop = count;
 	}
 
+	/**
+	 * Stops the producer once everything enqueued so far, including what
+	 * waits in the journal or the coalescing window, has been sent.
+	 */
+	public void stopWhenDrained() {
+		draining = true;
+		// wake up the producer thread if it is waiting for something to send
+		if(journal != null) {
+			journal.wakeUp();
+		} else {
+			sendQueue.offer(Marker.DRAIN);
+		}
+	}
+
 	public int getUnsentMessageCount() {		
-		return sendQueue.size();
+		return queueDepth();
 	}
 
 	public int getSentCount() {
 		return sentCount;
 	}
+
+	public int getSentMessageCount() {
+		return sentMessageCount;
+	}
+
+	/**
+	 * Enqueue and send rates, send latency, queue depth and failure counts.
+	 * Call {@link MetricsRegistry#registerMBeans()} to publish them in JMX.
+	 */
+	public MetricsRegistry getMetrics() {
+		return metrics;
+	}
+
+	public int getQueueCapacity() {
+		return sendQueue.size() + sendQueue.remainingCapacity();
+	}
+
+	public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+		this.backpressurePolicy = backpressurePolicy;
+	}
+
+	public BackpressurePolicy getBackpressurePolicy() {
+		return backpressurePolicy;
+	}
+
+	/**
+	 * How long a caller blocks waiting for room in a full send queue before
+	 * failing. Blocks forever by default.
+	 */
+	public void setEnqueueTimeoutMillis(long enqueueTimeoutMillis) {
+		this.enqueueTimeoutMillis = enqueueTimeoutMillis;
+	}
+
+	public long getEnqueueTimeoutMillis() {
+		return enqueueTimeoutMillis;
+	}
+
+	public void setHighWatermark(int highWatermark) {
+		this.highWatermark = highWatermark;
+	}
+
+	public int getHighWatermark() {
+		return highWatermark;
+	}
+
+	public void setLowWatermark(int lowWatermark) {
+		this.lowWatermark = lowWatermark;
+	}
+
+	public int getLowWatermark() {
+		return lowWatermark;
+	}
+
+	/**
+	 * Makes {@link #enqueue(Serializable)} write to a local journal, which
+	 * the producer thread then sends from. Operations not yet accepted by
+	 * the broker survive broker outages and JVM crashes, and are sent when
+	 * a producer is started again on a journal in the same directory. The
+	 * producer closes the journal when it stops.
+	 * <p>
+	 * Operations are journaled encoded with the codec, and a message
+	 * carrying a single one sends those bytes as they are. Without a codec,
+	 * they are serialized and sent in a <code>BytesMessage</code>.
+	 */
+	public void setJournal(JmsIndexJournal journal) {
+		this.journal = journal;
+	}
+
+	public JmsIndexJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Journal records skipped because they couldn't be read back, for
+	 * instance after the class of a PDU changed.
+	 */
+	public int getUnreadableRecordCount() {
+		return (int) unreadableRecordMeter.getCount();
+	}
+
+	/**
+	 * Encodes messages with the given codec into a <code>BytesMessage</code>
+	 * instead of sending an <code>ObjectMessage</code>. The codec must be
+	 * registered in {@link JmsIndexCodecs} on the consumer side.
+	 */
+	public void setCodec(JmsIndexCodec codec) {
+		this.codec = codec;
+	}
+
+	public JmsIndexCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Deflates message bodies of at least <code>thresholdBytes</code>,
+	 * flagging them so the consumer inflates them back. Bodies that don't
+	 * shrink are sent as they are. Without a codec, compressed messages are
+	 * encoded with Java serialization into a <code>BytesMessage</code>.
+	 *
+	 * @param level a <code>java.util.zip.Deflater</code> compression level
+	 */
+	public void setCompression(int thresholdBytes, int level) {
+		this.compressionThreshold = thresholdBytes;
+		this.compressor = new MessageCompressor(level);
+	}
+
+	/**
+	 * Compression statistics, or null if compression is off.
+	 */
+	public MessageCompressor getCompressor() {
+		return compressor;
+	}
+
+	/**
+	 * Holds PDUs for up to <code>windowMillis</code> before queueing them,
+	 * so that several operations on the same entity within the window are
+	 * sent as one: the last write wins, and a create followed by a delete
+	 * sends nothing. The window holds at most as many entities as the send
+	 * queue capacity. Zero (the default) disables it.
+	 * <p>
+	 * Ignored when the producer has a journal, which keeps every operation.
+	 * Must be set before the producer is used.
+	 */
+	public void setCoalescingWindowMillis(long windowMillis) {
+		this.coalescingBuffer = windowMillis > 0 ? new CoalescingBuffer(windowMillis, getQueueCapacity()) : null;
+	}
+
+	public long getCoalescingWindowMillis() {
+		return coalescingBuffer == null ? 0 : coalescingBuffer.getWindowMillis();
+	}
+
+	public void setSendQueueListener(SendQueueListener sendQueueListener) {
+		this.sendQueueListener = sendQueueListener;
+	}
+
+	/**
+	 * Whether the send queue reached the high watermark and has not yet
+	 * drained down to the low watermark.
+	 */
+	public boolean isAboveHighWatermark() {
+		return aboveHighWatermark.get();
+	}
+
+	/**
+	 * Deepest the send queue has been since the producer was created.
+	 */
+	public int getPeakQueueDepth() {
+		return peakQueueDepth.get();
+	}
+
+	/**
+	 * Entries discarded by {@link BackpressurePolicy#DROP_OLDEST}.
+	 */
+	public int getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Operations saved by coalescing, either in the coalescing window or by
+	 * {@link BackpressurePolicy#COALESCE}. A create cancelled by a delete
+	 * saves both.
+	 */
+	public int getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	/**
+	 * Enqueues that failed because the send queue was full.
+	 */
+	public int getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * Maximum number of {@link JmsIndexPDU} packed into a single message.
+	 * A size of 1 (the default) sends every PDU on its own.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * How long the producer waits for more PDUs to fill a batch before
+	 * sending what it already has.
+	 */
+	public void setBatchLingerMillis(long batchLingerMillis) {
+		this.batchLingerMillis = batchLingerMillis;
+	}
+
+	public long getBatchLingerMillis() {
+		return batchLingerMillis;
+	}
+
+	/**
+	 * Spreads entities over this many ActiveMQ message groups. The broker
+	 * delivers all the messages of a group to the same consumer, so several
+	 * consumers on the queue still see every entity's operations in order.
+	 * Zero (the default) disables message groups.
+	 */
+	public void setMessageGroupCount(int messageGroupCount) {
+		this.messageGroupCount = messageGroupCount;
+	}
+
+	public int getMessageGroupCount() {
+		return messageGroupCount;
+	}
+
+	/**
+	 * Sends to this many queues, named after the subject followed by the
+	 * partition number (see {@link PartitionAssignment}), picking the
+	 * partition of each entity with the {@link Partitioner}. Zero (the
+	 * default) sends everything to the subject queue. Must be set before the
+	 * producer is started.
+	 */
+	public void setPartitionCount(int partitionCount) {
+		this.partitionCount = partitionCount;
+	}
+
+	public int getPartitionCount() {
+		return partitionCount;
+	}
+
+	/**
+	 * Stamps the action and the entity class of the operations on every
+	 * message, so that consumers can pick the messages they handle with an
+	 * {@link IndexMessageFilter}. Batches are split so that each message
+	 * carries a single entity class and action.
+	 */
+	public void setRoutingProperties(boolean routingProperties) {
+		this.routingProperties = routingProperties;
+	}
+
+	public boolean isRoutingProperties() {
+		return routingProperties;
+	}
+
+	/**
+	 * Name of the index the operations are meant for, stamped on every
+	 * message when set.
+	 */
+	public void setIndexName(String indexName) {
+		this.indexName = indexName;
+	}
+
+	public String getIndexName() {
+		return indexName;
+	}
+
+	/**
+	 * Publishes to a topic instead of a queue, so that every replica
+	 * subscribed to it (see
+	 * {@link JmsOfflineIndexerConsumer#setReplicated(boolean)}) receives all
+	 * the operations. Heartbeats tell the replicas how far behind they are.
+	 * Must be set before the producer is started.
+	 */
+	public void setReplicated(boolean replicated) {
+		this.replicated = replicated;
+	}
+
+	public boolean isReplicated() {
+		return replicated;
+	}
+
+	/**
+	 * How often a replicated producer sends heartbeats, once a second by
+	 * default.
+	 */
+	public void setHeartbeatIntervalMillis(long heartbeatIntervalMillis) {
+		this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+	}
+
+	public long getHeartbeatIntervalMillis() {
+		return heartbeatIntervalMillis;
+	}
+
+	/**
+	 * {@link StandardPartitioner#ENTITY_ID} by default.
+	 */
+	public void setPartitioner(Partitioner partitioner) {
+		this.partitioner = partitioner;
+	}
+
+	public Partitioner getPartitioner() {
+		return partitioner;
+	}
 	
+	/**
+	 * Commits the session after every message sent. Must be set before the
+	 * producer is started.
+	 */
+	public void setTransacted(boolean transacted) {
+		this.transacted = transacted;
+	}
+
+	public boolean isTransacted() {
+		return transacted;
+	}
+
+	/**
+	 * Sends asynchronously, committing once this many messages are in
+	 * flight or the send queue runs empty. The broker doesn't confirm
+	 * asynchronous sends one by one, so the {@link SendFuture}s of the
+	 * messages complete on commit. Zero (the default) sends synchronously.
+	 * Must be set before the producer is started.
+	 */
+	public void setMaxInFlightMessages(int maxInFlightMessages) {
+		this.maxInFlightMessages = maxInFlightMessages;
+	}
+
+	public int getMaxInFlightMessages() {
+		return maxInFlightMessages;
+	}
+
 	public void setPersistent(boolean persistent) {
 		this.persistent = persistent;
 	}
@@ -0,0 +1,140 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+
+import com.jklas.search.exception.IndexObjectException;
+
+/**
+ * Runs several {@link JmsOfflineIndexerProducer} stripes, each one with its
+ * own thread and session, so that encoding and sending are spread over
+ * them.
+ * <p>
+ * {@link JmsOfflineIndexer} routes every operation to a stripe by entity,
+ * so the operations on an entity are sent in order by the same stripe.
+ * Configure the stripes through {@link #getStripes()} before running the
+ * pool.
+ */
+public class JmsOfflineIndexerProducerPool implements OfflineIndexTransport, Runnable {
+
+	private final String name;
+
+	private final List<JmsOfflineIndexerProducer> stripes;
+
+	public JmsOfflineIndexerProducerPool(String name, ActiveMQConnectionFactory connectionFactory, int stripeCount) {
+		this(name, connectionFactory, stripeCount, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates a pool whose stripes hold at most <code>queueCapacity</code>
+	 * entries each.
+	 */
+	public JmsOfflineIndexerProducerPool(String name, ActiveMQConnectionFactory connectionFactory, int stripeCount, int queueCapacity) {
+		this.name = name;
+
+		List<JmsOfflineIndexerProducer> stripes = new ArrayList<JmsOfflineIndexerProducer>(stripeCount);
+		for (int i = 0; i < stripeCount; i++) {
+			stripes.add(new JmsOfflineIndexerProducer(name + "-stripe-" + i, connectionFactory, queueCapacity));
+		}
+		this.stripes = Collections.unmodifiableList(stripes);
+	}
+
+	/**
+	 * Runs every stripe until all of them stopped.
+	 */
+	@Override
+	public void run() {
+		List<Thread> stripeThreads = new ArrayList<Thread>(stripes.size());
+
+		for (int i = 0; i < stripes.size(); i++) {
+			Thread thread = new Thread(stripes.get(i));
+			thread.setName(name + "-stripe-" + i);
+			stripeThreads.add(thread);
+			thread.start();
+		}
+
+		try {
+			for (Thread thread : stripeThreads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Enqueues the PDU on the stripe that sends the operations on its
+	 * entity.
+	 */
+	@Override
+	public void enqueue(JmsIndexPDU pdu) throws IndexObjectException {
+		stripeFor(pdu).enqueue(pdu);
+	}
+
+	/**
+	 * The stripe that sends the operations on the PDU's entity.
+	 */
+	JmsOfflineIndexerProducer stripeFor(JmsIndexPDU pdu) {
+		if(stripes.size() == 1) return stripes.get(0);
+		return stripes.get(EntityKey.of(pdu).partition(stripes.size()));
+	}
+
+	/**
+	 * Stops every stripe once everything enqueued so far has been sent.
+	 */
+	public void stopWhenDrained() {
+		for (JmsOfflineIndexerProducer stripe : stripes) {
+			stripe.stopWhenDrained();
+		}
+	}
+
+	public List<JmsOfflineIndexerProducer> getStripes() {
+		return stripes;
+	}
+
+	public int getSentCount() {
+		int sentCount = 0;
+		for (JmsOfflineIndexerProducer stripe : stripes) {
+			sentCount += stripe.getSentCount();
+		}
+		return sentCount;
+	}
+
+	public int getSentMessageCount() {
+		int sentMessageCount = 0;
+		for (JmsOfflineIndexerProducer stripe : stripes) {
+			sentMessageCount += stripe.getSentMessageCount();
+		}
+		return sentMessageCount;
+	}
+
+	public int getUnsentMessageCount() {
+		int unsentCount = 0;
+		for (JmsOfflineIndexerProducer stripe : stripes) {
+			unsentCount += stripe.getUnsentMessageCount();
+		}
+		return unsentCount;
+	}
+}
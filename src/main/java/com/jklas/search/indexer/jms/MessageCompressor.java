@@ -0,0 +1,200 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of message bodies, with running statistics. An
+ * instance keeps its <code>Deflater</code> and <code>Inflater</code> for
+ * reuse, so it must only be used by one thread.
+ */
+public class MessageCompressor {
+
+	/**
+	 * Value of {@link JmsIndexMessageProperties#COMPRESSION} for deflated
+	 * bodies.
+	 */
+	public static final String DEFLATE = "deflate";
+
+	private final Deflater deflater;
+
+	private final Inflater inflater = new Inflater();
+
+	private byte[] buffer = new byte[4096];
+
+	private volatile long compressedMessageCount;
+	private volatile long uncompressedBytes;
+	private volatile long compressedBytes;
+	private volatile long compressionNanos;
+
+	private volatile long lastUncompressedSize;
+	private volatile long lastCompressedSize;
+	private volatile long lastCompressionNanos;
+
+	public MessageCompressor(int level) {
+		this.deflater = new Deflater(level);
+	}
+
+	/**
+	 * Deflates <code>length</code> bytes of <code>data</code>. Returns null
+	 * if the result isn't smaller than the input.
+	 */
+	public byte[] compress(byte[] data, int length) {
+		int compressedLength = deflate(data, length);
+		if(compressedLength < 0) return null;
+
+		byte[] compressed = new byte[compressedLength];
+		System.arraycopy(buffer, 0, compressed, 0, compressedLength);
+		return compressed;
+	}
+
+	/**
+	 * Deflates into the compressor's own buffer, which holds the result
+	 * until the next call. Returns the compressed length, or -1 if the
+	 * result isn't smaller than the input.
+	 */
+	int deflate(byte[] data, int length) {
+		return deflate(data, 0, length);
+	}
+
+	int deflate(byte[] data, int offset, int length) {
+		long start = System.nanoTime();
+
+		deflater.reset();
+		deflater.setInput(data, offset, length);
+		deflater.finish();
+
+		int compressedLength = 0;
+		while(!deflater.finished()) {
+			if(compressedLength == buffer.length) {
+				if(compressedLength >= length) return -1;
+				buffer = grow(buffer, compressedLength);
+			}
+			compressedLength += deflater.deflate(buffer, compressedLength, buffer.length - compressedLength);
+		}
+
+		if(compressedLength >= length) return -1;
+
+		long elapsed = System.nanoTime() - start;
+
+		compressedMessageCount++;
+		uncompressedBytes += length;
+		compressedBytes += compressedLength;
+		compressionNanos += elapsed;
+
+		lastUncompressedSize = length;
+		lastCompressedSize = compressedLength;
+		lastCompressionNanos = elapsed;
+
+		return compressedLength;
+	}
+
+	byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Inflates a body compressed by {@link #compress(byte[], int)}.
+	 */
+	public byte[] decompress(byte[] data, int uncompressedSize) throws DataFormatException {
+		long start = System.nanoTime();
+
+		inflater.reset();
+		inflater.setInput(data);
+
+		byte[] uncompressed = new byte[uncompressedSize];
+		int length = 0;
+
+		while(!inflater.finished()) {
+			if(length == uncompressed.length) {
+				throw new DataFormatException("Body inflates to more than the " + uncompressedSize + " bytes announced");
+			}
+			int inflated = inflater.inflate(uncompressed, length, uncompressed.length - length);
+			if(inflated == 0 && inflater.needsInput()) {
+				throw new DataFormatException("Truncated compressed body");
+			}
+			length += inflated;
+		}
+
+		long elapsed = System.nanoTime() - start;
+
+		compressedMessageCount++;
+		uncompressedBytes += length;
+		compressedBytes += data.length;
+		compressionNanos += elapsed;
+
+		lastUncompressedSize = length;
+		lastCompressedSize = data.length;
+		lastCompressionNanos = elapsed;
+
+		return uncompressed;
+	}
+
+	private static byte[] grow(byte[] buffer, int used) {
+		byte[] grown = new byte[buffer.length * 2];
+		System.arraycopy(buffer, 0, grown, 0, used);
+		return grown;
+	}
+
+	/**
+	 * Messages compressed (or decompressed) so far.
+	 */
+	public long getCompressedMessageCount() {
+		return compressedMessageCount;
+	}
+
+	public long getUncompressedBytes() {
+		return uncompressedBytes;
+	}
+
+	public long getCompressedBytes() {
+		return compressedBytes;
+	}
+
+	/**
+	 * Total time spent compressing (or decompressing), in nanoseconds.
+	 */
+	public long getCompressionNanos() {
+		return compressionNanos;
+	}
+
+	/**
+	 * Compressed size over uncompressed size, over all messages.
+	 */
+	public double getCompressionRatio() {
+		long uncompressed = uncompressedBytes;
+		return uncompressed == 0 ? 1.0 : (double) compressedBytes / uncompressed;
+	}
+
+	/**
+	 * Compressed size over uncompressed size of the last message.
+	 */
+	public double getLastCompressionRatio() {
+		long uncompressed = lastUncompressedSize;
+		return uncompressed == 0 ? 1.0 : (double) lastCompressedSize / uncompressed;
+	}
+
+	public long getLastCompressionNanos() {
+		return lastCompressionNanos;
+	}
+}
@@ -0,0 +1,206 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Remembers the messages a consumer applied, so that the copies the broker
+ * delivers again are skipped. This is what makes
+ * <code>DUPS_OK_ACKNOWLEDGE</code> and lazy acknowledgements safe to use.
+ * <p>
+ * Every id goes into a small exact LRU set and into a Bloom filter. The
+ * filter remembers many more ids in little memory, and rotates between two
+ * generations: the current one is cleared and becomes the previous one
+ * once it holds <code>capacity</code> ids or is older than the window.
+ * <p>
+ * An id in the exact set is always a duplicate. An id only the filter knows
+ * is taken for one when the broker flags the message as redelivered, as a
+ * false positive would otherwise drop a message never applied; about one
+ * in a thousand redelivered messages that were never applied is dropped
+ * this way.
+ * <p>
+ * The ids are only kept in memory, so they are lost when the consumer
+ * restarts. Nor are they stable across producer restarts: operations that
+ * a restarted producer sends again from its journal carry new ids and are
+ * applied twice. Stamping versions (see
+ * {@link JmsOfflineIndexer#setVersioning(boolean)} and
+ * {@link JmsOfflineIndexerConsumer#setVersionCheck(boolean)}) makes
+ * applying them twice harmless.
+ */
+public class MessageDeduplicator {
+
+	public static final int DEFAULT_CAPACITY = 1 << 20;
+
+	public static final int DEFAULT_EXACT_CAPACITY = 8192;
+
+	public static final long DEFAULT_WINDOW_MILLIS = 10 * 60 * 1000;
+
+	private static final double FALSE_POSITIVE_RATE = 0.001;
+
+	private final Map<String, Boolean> recent;
+
+	private final int capacity;
+
+	private final long windowMillis;
+
+	private BloomFilter current;
+
+	private BloomFilter previous;
+
+	public MessageDeduplicator() {
+		this(DEFAULT_CAPACITY, DEFAULT_EXACT_CAPACITY, DEFAULT_WINDOW_MILLIS);
+	}
+
+	public MessageDeduplicator(int capacity, final int exactCapacity, long windowMillis) {
+		if(capacity < 1 || exactCapacity < 1) throw new IllegalArgumentException("Capacities must be positive, got " + capacity + " and " + exactCapacity);
+
+		this.capacity = capacity;
+		this.windowMillis = windowMillis;
+		this.current = new BloomFilter(capacity, FALSE_POSITIVE_RATE);
+		this.previous = new BloomFilter(capacity, FALSE_POSITIVE_RATE);
+
+		this.recent = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > exactCapacity;
+			}
+		};
+	}
+
+	/**
+	 * The producer's publisher and sequence, or the JMS message id. The
+	 * publisher is a single run of a producer, and the sequence counts the
+	 * operations it sent, so messages sent again by the same run get the
+	 * same id as long as they hold the same operations.
+	 */
+	static String idOf(Message message) throws JMSException {
+		String publisher = message.getStringProperty(JmsIndexMessageProperties.PUBLISHER);
+		if(publisher != null && message.propertyExists(JmsIndexMessageProperties.SEQUENCE)) {
+			return publisher + ':' + message.getLongProperty(JmsIndexMessageProperties.SEQUENCE);
+		}
+		return message.getJMSMessageID();
+	}
+
+	/**
+	 * Whether the message with this id was applied already.
+	 */
+	public synchronized boolean isDuplicate(String id, boolean redelivered) {
+		if(recent.get(id) != null) return true;
+		if(!redelivered) return false;
+
+		long hash = hash(id);
+		return current.mightContain(hash) || previous.mightContain(hash);
+	}
+
+	/**
+	 * The message with this id was applied.
+	 */
+	public synchronized void record(String id) {
+		recent.put(id, Boolean.TRUE);
+
+		if(current.count >= capacity || System.currentTimeMillis() - current.created >= windowMillis) {
+			BloomFilter recycled = previous;
+			previous = current;
+			recycled.clear();
+			current = recycled;
+		}
+		current.add(hash(id));
+	}
+
+	/**
+	 * Ids in the exact set.
+	 */
+	public synchronized int getExactSize() {
+		return recent.size();
+	}
+
+	private static long hash(String id) {
+		// 64-bit FNV-1a
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < id.length(); i++) {
+			hash ^= id.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static long mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return value;
+	}
+
+	private static final class BloomFilter {
+
+		private final long[] words;
+
+		private final long bitCount;
+
+		private final int hashCount;
+
+		private int count;
+
+		private long created = System.currentTimeMillis();
+
+		private BloomFilter(int capacity, double falsePositiveRate) {
+			double bits = -capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+			this.words = new long[(int) Math.ceil(bits / 64)];
+			this.bitCount = words.length * 64L;
+			this.hashCount = Math.max(1, (int) Math.round(bitCount / (double) capacity * Math.log(2)));
+		}
+
+		private void add(long hash) {
+			long h1 = mix(hash);
+			long h2 = mix(h1) | 1;
+			for (int i = 0; i < hashCount; i++) {
+				long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+				words[(int) (bit >>> 6)] |= 1L << bit;
+			}
+			count++;
+		}
+
+		private boolean mightContain(long hash) {
+			long h1 = mix(hash);
+			long h2 = mix(h1) | 1;
+			for (int i = 0; i < hashCount; i++) {
+				long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+				if((words[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+			}
+			return true;
+		}
+
+		private void clear() {
+			Arrays.fill(words, 0);
+			count = 0;
+			created = System.currentTimeMillis();
+		}
+	}
+}
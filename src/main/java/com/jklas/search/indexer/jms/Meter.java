@@ -0,0 +1,99 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts events and measures their rate. Marking is lock-free; the one
+ * minute rate is an exponentially weighted moving average updated every
+ * five seconds by whichever thread notices the interval is over.
+ */
+public class Meter implements MeterMBean {
+
+	private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+	private static final double TICK_SECONDS = 5.0;
+
+	private static final double ALPHA = 1 - Math.exp(-TICK_SECONDS / 60.0);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong uncounted = new AtomicLong();
+
+	private final long startNanos = System.nanoTime();
+
+	private final AtomicLong lastTickNanos = new AtomicLong(startNanos);
+
+	private volatile double oneMinuteRate = -1;
+
+	public void mark() {
+		mark(1);
+	}
+
+	public void mark(long events) {
+		tickIfNeeded();
+		count.addAndGet(events);
+		uncounted.addAndGet(events);
+	}
+
+	private void tickIfNeeded() {
+		long lastTick = lastTickNanos.get();
+		long age = System.nanoTime() - lastTick;
+
+		if(age < TICK_NANOS) return;
+
+		long ticks = age / TICK_NANOS;
+		if(!lastTickNanos.compareAndSet(lastTick, lastTick + ticks * TICK_NANOS)) return;
+
+		for (long i = 0; i < ticks; i++) {
+			double instantRate = uncounted.getAndSet(0) / TICK_SECONDS;
+
+			if(oneMinuteRate < 0) {
+				oneMinuteRate = instantRate;
+			} else {
+				oneMinuteRate += ALPHA * (instantRate - oneMinuteRate);
+			}
+		}
+	}
+
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+
+	@Override
+	public double getMeanRate() {
+		long elapsed = System.nanoTime() - startNanos;
+		return elapsed <= 0 ? 0 : count.get() / (elapsed / 1e9);
+	}
+
+	@Override
+	public double getOneMinuteRate() {
+		tickIfNeeded();
+		return oneMinuteRate < 0 ? 0 : oneMinuteRate;
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + ", mean rate=" + getMeanRate() + "/s";
+	}
+}
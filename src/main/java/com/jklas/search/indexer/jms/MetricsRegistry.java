@@ -0,0 +1,155 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Named {@link Meter}s, {@link Histogram}s and {@link Gauge}s of a
+ * producer or consumer, which can be published as JMX MBeans under
+ * <code>com.jklas.search.indexer.jms:type=&lt;type&gt;,name=&lt;name&gt;,metric=&lt;metric&gt;</code>.
+ * <p>
+ * Metrics are looked up once and kept by their owner, so recording them
+ * never goes through the registry.
+ */
+public class MetricsRegistry {
+
+	public static final String DOMAIN = "com.jklas.search.indexer.jms";
+
+	private final String type;
+
+	private final String name;
+
+	private final ConcurrentMap<String, Object> metrics = new ConcurrentHashMap<String, Object>();
+
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+	public MetricsRegistry(String type, String name) {
+		this.type = type;
+		this.name = name;
+	}
+
+	public Meter meter(String metricName) {
+		return (Meter) register(metricName, new Meter());
+	}
+
+	public Histogram histogram(String metricName) {
+		return (Histogram) register(metricName, new Histogram());
+	}
+
+	public Gauge gauge(String metricName, Gauge gauge) {
+		return (Gauge) register(metricName, gauge);
+	}
+
+	private Object register(String metricName, Object metric) {
+		Object existing = metrics.putIfAbsent(metricName, metric);
+		if(existing == null) return metric;
+
+		if(existing.getClass() != metric.getClass() && !(existing instanceof Gauge && metric instanceof Gauge)) {
+			throw new IllegalArgumentException("Metric " + metricName + " is already registered as a " + existing.getClass().getSimpleName());
+		}
+		return existing;
+	}
+
+	/**
+	 * Every metric by name, sorted.
+	 */
+	public SortedMap<String, Object> getMetrics() {
+		return Collections.unmodifiableSortedMap(new TreeMap<String, Object>(metrics));
+	}
+
+	/**
+	 * Writes one CSV line per histogram, sorted by name, with its count,
+	 * p50, p99, p999 and max, after a header line.
+	 */
+	public void exportHistograms(Appendable out) throws IOException {
+		out.append("metric,count,p50,p99,p999,max\n");
+
+		for (Map.Entry<String, Object> metric : getMetrics().entrySet()) {
+			if(!(metric.getValue() instanceof Histogram)) continue;
+
+			Histogram histogram = (Histogram) metric.getValue();
+			out.append(metric.getKey()).append(',')
+				.append(String.valueOf(histogram.getCount())).append(',')
+				.append(String.valueOf(histogram.getMedian())).append(',')
+				.append(String.valueOf(histogram.get99thPercentile())).append(',')
+				.append(String.valueOf(histogram.get999thPercentile())).append(',')
+				.append(String.valueOf(histogram.getMax())).append('\n');
+		}
+	}
+
+	/**
+	 * Publishes every metric in the platform MBean server. Metrics added
+	 * afterwards are not published until this is called again.
+	 */
+	public synchronized void registerMBeans() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		for (Map.Entry<String, Object> metric : metrics.entrySet()) {
+			ObjectName objectName = objectName(metric.getKey());
+
+			if(!server.isRegistered(objectName)) {
+				server.registerMBean(metric.getValue(), objectName);
+				registered.add(objectName);
+			}
+		}
+	}
+
+	public synchronized void unregisterMBeans() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		for (ObjectName objectName : registered) {
+			if(server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+		}
+		registered.clear();
+	}
+
+	ObjectName objectName(String metricName) throws JMException {
+		return new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name) + ",metric=" + metricName);
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String toString() {
+		return type + " " + name + " " + getMetrics();
+	}
+}
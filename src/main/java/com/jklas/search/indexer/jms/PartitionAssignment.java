@@ -0,0 +1,103 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Names partitioned destinations and works out which partitions a consumer
+ * reads, so that assignments can come from configuration.
+ */
+public final class PartitionAssignment {
+
+	private PartitionAssignment() {}
+
+	/**
+	 * The queue a partition is sent to: the subject followed by the
+	 * partition number, as in <code>SEARCH.ALL_INDEXES.3</code>.
+	 */
+	public static String partitionSubject(String subject, int partition) {
+		return subject + "." + partition;
+	}
+
+	/**
+	 * An ActiveMQ composite destination covering the given partitions.
+	 */
+	public static String compositeSubject(String subject, int[] partitions) {
+		StringBuilder composite = new StringBuilder();
+		for (int i = 0; i < partitions.length; i++) {
+			if(i > 0) composite.append(',');
+			composite.append(partitionSubject(subject, partitions[i]));
+		}
+		return composite.toString();
+	}
+
+	/**
+	 * Parses a list of partitions and ranges such as <code>0,2,4-7</code>.
+	 */
+	public static int[] parse(String assignment) {
+		List<Integer> partitions = new ArrayList<Integer>();
+
+		for (String part : assignment.split(",")) {
+			part = part.trim();
+			if(part.length() == 0) continue;
+
+			int dash = part.indexOf('-');
+			try {
+				if(dash < 0) {
+					partitions.add(Integer.parseInt(part));
+				} else {
+					int from = Integer.parseInt(part.substring(0, dash).trim());
+					int to = Integer.parseInt(part.substring(dash + 1).trim());
+					for (int partition = from; partition <= to; partition++) {
+						partitions.add(partition);
+					}
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid partition assignment: " + assignment);
+			}
+		}
+
+		return toArray(partitions);
+	}
+
+	/**
+	 * The partitions of member <code>memberIndex</code> out of
+	 * <code>memberCount</code> consumers sharing
+	 * <code>partitionCount</code> partitions round robin. Every partition
+	 * goes to exactly one member.
+	 */
+	public static int[] roundRobin(int memberIndex, int memberCount, int partitionCount) {
+		List<Integer> partitions = new ArrayList<Integer>();
+		for (int partition = memberIndex; partition < partitionCount; partition += memberCount) {
+			partitions.add(partition);
+		}
+		return toArray(partitions);
+	}
+
+	private static int[] toArray(List<Integer> partitions) {
+		int[] array = new int[partitions.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = partitions.get(i);
+		}
+		return array;
+	}
+}
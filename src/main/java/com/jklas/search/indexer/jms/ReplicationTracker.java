@@ -0,0 +1,248 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Follows how far a replica is behind each publisher, comparing the
+ * sequence of the last operation it applied with the latest sequence the
+ * publisher announced, in a message or a heartbeat. The applied sequences
+ * are also the checkpoint of an {@link IndexSnapshotter}.
+ * <p>
+ * A publisher is a run of a producer, named
+ * <code>producerName@startMillis</code>. Once a later run of the same
+ * producer shows up, the earlier one no longer counts towards the lag and
+ * is forgotten when everything it announced was applied. A publisher not
+ * heard of within the expiry is forgotten too.
+ */
+class ReplicationTracker {
+
+	static final long DEFAULT_EXPIRY_MILLIS = 10 * 60 * 1000;
+
+	private static class Publisher {
+		final String producerName;
+		final long startMillis;
+
+		long published;
+		long applied;
+		long received;
+		long appliedSendTime;
+		long receivedSendTime;
+		long lastSeen;
+		/** a later run of the producer showed up */
+		boolean superseded;
+
+		Publisher(String id) {
+			int at = id.lastIndexOf('@');
+			long start = 0;
+			if(at >= 0) {
+				try {
+					start = Long.parseLong(id.substring(at + 1));
+				} catch (NumberFormatException e) {
+					at = -1;
+				}
+			}
+			this.producerName = at < 0 ? id : id.substring(0, at);
+			this.startMillis = start;
+		}
+	}
+
+	private final Map<String, Publisher> publishers = new HashMap<String, Publisher>();
+
+	private long expiryMillis = DEFAULT_EXPIRY_MILLIS;
+
+	/**
+	 * The topic publishers send their heartbeats to.
+	 */
+	static String heartbeatSubject(String subject) {
+		return subject + ".HEARTBEAT";
+	}
+
+	/**
+	 * A heartbeat announced the publisher's latest sequence.
+	 */
+	synchronized void heartbeat(Message heartbeat) throws JMSException {
+		Publisher publisher = publisher(heartbeat);
+		if(publisher == null) return;
+
+		publisher.lastSeen = System.currentTimeMillis();
+		publisher.published = Math.max(publisher.published, heartbeat.getLongProperty(JmsIndexMessageProperties.SEQUENCE));
+	}
+
+	/**
+	 * The message was received, its operations will be applied on the next
+	 * call to {@link #applied()}.
+	 */
+	synchronized void received(Message message) throws JMSException {
+		Publisher publisher = publisher(message);
+		if(publisher == null) return;
+
+		long sequence = message.getLongProperty(JmsIndexMessageProperties.SEQUENCE);
+		publisher.lastSeen = System.currentTimeMillis();
+		publisher.published = Math.max(publisher.published, sequence);
+
+		if(sequence > publisher.received) {
+			publisher.received = sequence;
+			if(message.propertyExists(JmsIndexMessageProperties.SEND_TIME)) {
+				publisher.receivedSendTime = message.getLongProperty(JmsIndexMessageProperties.SEND_TIME);
+			}
+		}
+	}
+
+	/**
+	 * Everything received so far was applied to the index.
+	 */
+	synchronized void applied() {
+		for (Publisher publisher : publishers.values()) {
+			publisher.applied = publisher.received;
+			publisher.appliedSendTime = publisher.receivedSendTime;
+		}
+		prune();
+	}
+
+	/**
+	 * Whether the message carries operations applied before, according to
+	 * the sequences restored from a snapshot or applied since.
+	 */
+	synchronized boolean isApplied(Message message) throws JMSException {
+		String name = message.getStringProperty(JmsIndexMessageProperties.PUBLISHER);
+		if(name == null || !message.propertyExists(JmsIndexMessageProperties.SEQUENCE)) return false;
+
+		Publisher publisher = publishers.get(name);
+		return publisher != null && message.getLongProperty(JmsIndexMessageProperties.SEQUENCE) <= publisher.applied;
+	}
+
+	/**
+	 * The sequence of the last operation applied from every publisher still
+	 * followed.
+	 */
+	synchronized Map<String, Long> getAppliedSequences() {
+		prune();
+
+		Map<String, Long> applied = new HashMap<String, Long>();
+		for (Map.Entry<String, Publisher> publisher : publishers.entrySet()) {
+			applied.put(publisher.getKey(), publisher.getValue().applied);
+		}
+		return applied;
+	}
+
+	/**
+	 * Starts from the sequences a snapshot covers.
+	 */
+	synchronized void restore(Map<String, Long> appliedSequences) {
+		for (Map.Entry<String, Long> applied : appliedSequences.entrySet()) {
+			Publisher publisher = add(applied.getKey());
+			publisher.published = publisher.received = publisher.applied = applied.getValue();
+		}
+	}
+
+	private Publisher publisher(Message message) throws JMSException {
+		String name = message.getStringProperty(JmsIndexMessageProperties.PUBLISHER);
+		if(name == null || !message.propertyExists(JmsIndexMessageProperties.SEQUENCE)) return null;
+
+		Publisher publisher = publishers.get(name);
+		if(publisher == null) {
+			publisher = add(name);
+		}
+		return publisher;
+	}
+
+	private Publisher add(String name) {
+		Publisher added = new Publisher(name);
+		added.lastSeen = System.currentTimeMillis();
+
+		for (Publisher publisher : publishers.values()) {
+			if(publisher.producerName.equals(added.producerName)) {
+				if(publisher.startMillis < added.startMillis) {
+					publisher.superseded = true;
+				} else if(publisher.startMillis > added.startMillis) {
+					added.superseded = true;
+				}
+			}
+		}
+
+		publishers.put(name, added);
+		return added;
+	}
+
+	/**
+	 * Forgets the publishers not heard of within the expiry, and those
+	 * superseded once everything they announced was applied.
+	 */
+	private void prune() {
+		long now = System.currentTimeMillis();
+
+		for (Iterator<Publisher> i = publishers.values().iterator(); i.hasNext();) {
+			Publisher publisher = i.next();
+			if(now - publisher.lastSeen > expiryMillis || (publisher.superseded && publisher.applied >= publisher.published)) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * How long a publisher may go without a message or a heartbeat before
+	 * it is forgotten, ten minutes by default.
+	 */
+	synchronized void setExpiryMillis(long expiryMillis) {
+		this.expiryMillis = expiryMillis;
+	}
+
+	/**
+	 * Operations announced by the publishers and not yet applied.
+	 */
+	synchronized long getLag() {
+		prune();
+
+		long lag = 0;
+		for (Publisher publisher : publishers.values()) {
+			if(publisher.superseded) continue;
+
+			lag += Math.max(0, publisher.published - publisher.applied);
+		}
+		return lag;
+	}
+
+	/**
+	 * How long ago the last applied operation was sent by the publisher
+	 * that is furthest behind, or zero when no publisher is.
+	 */
+	synchronized long getLagMillis() {
+		prune();
+
+		long now = System.currentTimeMillis();
+
+		long lagMillis = 0;
+		for (Publisher publisher : publishers.values()) {
+			if(publisher.superseded) continue;
+
+			if(publisher.published > publisher.applied && publisher.appliedSendTime != 0) {
+				lagMillis = Math.max(lagMillis, now - publisher.appliedSendTime);
+			}
+		}
+		return lagMillis;
+	}
+}
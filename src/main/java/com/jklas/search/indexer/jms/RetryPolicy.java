@@ -0,0 +1,83 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+/**
+ * How many times something is attempted and how long to wait in between.
+ * The wait doubles after every attempt, from the initial backoff up to the
+ * maximum one.
+ */
+public class RetryPolicy {
+
+	/**
+	 * A single attempt.
+	 */
+	public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+	private final int maxAttempts;
+
+	private final long initialBackoffMillis;
+
+	private final long maxBackoffMillis;
+
+	public RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+		if(maxAttempts < 1) throw new IllegalArgumentException("At least one attempt is needed, got " + maxAttempts);
+
+		this.maxAttempts = maxAttempts;
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = Math.max(initialBackoffMillis, maxBackoffMillis);
+	}
+
+	/**
+	 * Whether another attempt is allowed after <code>attempts</code> failed
+	 * ones.
+	 */
+	public boolean canRetry(int attempts) {
+		return attempts < maxAttempts;
+	}
+
+	/**
+	 * How long to wait after the given failed attempt, counting from 1.
+	 */
+	public long backoffMillis(int attempt) {
+		long backoff = initialBackoffMillis;
+		for (int i = 1; i < attempt && backoff < maxBackoffMillis; i++) {
+			backoff *= 2;
+		}
+		return Math.min(backoff, maxBackoffMillis);
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public long getInitialBackoffMillis() {
+		return initialBackoffMillis;
+	}
+
+	public long getMaxBackoffMillis() {
+		return maxBackoffMillis;
+	}
+
+	@Override
+	public String toString() {
+		return maxAttempts + " attempts, backoff " + initialBackoffMillis + "ms to " + maxBackoffMillis + "ms";
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi-producer multi-consumer queue.
+ * <p>
+ * Every slot has a sequence telling whether it is free for the producer
+ * claiming position <code>p</code> (sequence <code>p</code>) or holds the
+ * element for the consumer claiming it (sequence <code>p + 1</code>).
+ * Producers and consumers claim positions with a CAS on the tail and the
+ * head, then publish the slot by advancing its sequence.
+ */
+final class RingBuffer<E> {
+
+	private final int mask;
+
+	private final AtomicReferenceArray<E> elements;
+
+	private final AtomicLongArray sequences;
+
+	private final AtomicLong head = new AtomicLong();
+
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * @param capacity rounded up to a power of two
+	 */
+	RingBuffer(int capacity) {
+		if(capacity < 1 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+
+		int size = Integer.highestOneBit(capacity);
+		if(size < capacity) size <<= 1;
+
+		this.mask = size - 1;
+		this.elements = new AtomicReferenceArray<E>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * @return false if the buffer is full
+	 */
+	boolean offer(E element) {
+		long position = tail.get();
+		int index;
+
+		while(true) {
+			index = (int) (position & mask);
+			long available = sequences.get(index) - position;
+
+			if(available == 0) {
+				if(tail.compareAndSet(position, position + 1)) break;
+				position = tail.get();
+			} else if(available < 0) {
+				// the slot still holds the element of the previous lap
+				return false;
+			} else {
+				position = tail.get();
+			}
+		}
+
+		elements.set(index, element);
+		sequences.set(index, position + 1);
+		return true;
+	}
+
+	/**
+	 * @return null if the buffer is empty
+	 */
+	E poll() {
+		long position = head.get();
+		int index;
+
+		while(true) {
+			index = (int) (position & mask);
+			long available = sequences.get(index) - (position + 1);
+
+			if(available == 0) {
+				if(head.compareAndSet(position, position + 1)) break;
+				position = head.get();
+			} else if(available < 0) {
+				return null;
+			} else {
+				position = head.get();
+			}
+		}
+
+		E element = elements.get(index);
+		elements.set(index, null);
+		sequences.set(index, position + mask + 1);
+		return element;
+	}
+
+	/**
+	 * Moves up to <code>max</code> elements into the list.
+	 *
+	 * @return how many were moved
+	 */
+	int drainTo(List<? super E> list, int max) {
+		int drained = 0;
+		while(drained < max) {
+			E element = poll();
+			if(element == null) break;
+			list.add(element);
+			drained++;
+		}
+		return drained;
+	}
+
+	int size() {
+		long size = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(size, capacity()));
+	}
+
+	boolean isEmpty() {
+		return size() == 0;
+	}
+
+	int capacity() {
+		return mask + 1;
+	}
+}
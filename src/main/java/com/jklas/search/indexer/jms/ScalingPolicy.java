@@ -0,0 +1,125 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+/**
+ * Bounds within which a {@link JmsOfflineIndexerConsumerPool} grows and
+ * shrinks its receivers and workers, following its lag: one receiver and
+ * one worker for every <code>lagPerThread</code> messages waiting.
+ * <p>
+ * The pool grows as soon as the lag calls for it, and shrinks once the lag
+ * stayed low for <code>scaleDownDelayMillis</code>, so that a short lull
+ * in a bulk load doesn't shed the threads catching up with it.
+ */
+public class ScalingPolicy {
+
+	public static final long DEFAULT_SAMPLE_INTERVAL_MILLIS = 1000;
+
+	public static final long DEFAULT_SCALE_DOWN_DELAY_MILLIS = 30000;
+
+	private final int minReceivers;
+
+	private final int maxReceivers;
+
+	private final int minWorkers;
+
+	private final int maxWorkers;
+
+	private final long lagPerThread;
+
+	private final long sampleIntervalMillis;
+
+	private final long scaleDownDelayMillis;
+
+	public ScalingPolicy(int minReceivers, int maxReceivers, int minWorkers, int maxWorkers, long lagPerThread) {
+		this(minReceivers, maxReceivers, minWorkers, maxWorkers, lagPerThread, DEFAULT_SAMPLE_INTERVAL_MILLIS, DEFAULT_SCALE_DOWN_DELAY_MILLIS);
+	}
+
+	public ScalingPolicy(int minReceivers, int maxReceivers, int minWorkers, int maxWorkers, long lagPerThread,
+			long sampleIntervalMillis, long scaleDownDelayMillis) {
+		if(minReceivers < 1 || maxReceivers < minReceivers) throw new IllegalArgumentException("Invalid receiver bounds " + minReceivers + " to " + maxReceivers);
+		if(minWorkers < 1 || maxWorkers < minWorkers) throw new IllegalArgumentException("Invalid worker bounds " + minWorkers + " to " + maxWorkers);
+		if(lagPerThread < 1) throw new IllegalArgumentException("Lag per thread must be positive, got " + lagPerThread);
+		if(sampleIntervalMillis < 1) throw new IllegalArgumentException("Sample interval must be positive, got " + sampleIntervalMillis);
+
+		this.minReceivers = minReceivers;
+		this.maxReceivers = maxReceivers;
+		this.minWorkers = minWorkers;
+		this.maxWorkers = maxWorkers;
+		this.lagPerThread = lagPerThread;
+		this.sampleIntervalMillis = sampleIntervalMillis;
+		this.scaleDownDelayMillis = scaleDownDelayMillis;
+	}
+
+	/**
+	 * Receivers needed to keep up with the given lag.
+	 */
+	public int receiversFor(long lag) {
+		return bounded(threadsFor(lag), minReceivers, maxReceivers);
+	}
+
+	/**
+	 * Workers needed to keep up with the given lag.
+	 */
+	public int workersFor(long lag) {
+		return bounded(threadsFor(lag), minWorkers, maxWorkers);
+	}
+
+	private long threadsFor(long lag) {
+		return lag <= 0 ? 0 : (lag - 1) / lagPerThread + 1;
+	}
+
+	static int bounded(long count, int min, int max) {
+		return (int) Math.max(min, Math.min(max, count));
+	}
+
+	public int getMinReceivers() {
+		return minReceivers;
+	}
+
+	public int getMaxReceivers() {
+		return maxReceivers;
+	}
+
+	public int getMinWorkers() {
+		return minWorkers;
+	}
+
+	public int getMaxWorkers() {
+		return maxWorkers;
+	}
+
+	public long getLagPerThread() {
+		return lagPerThread;
+	}
+
+	public long getSampleIntervalMillis() {
+		return sampleIntervalMillis;
+	}
+
+	public long getScaleDownDelayMillis() {
+		return scaleDownDelayMillis;
+	}
+
+	@Override
+	public String toString() {
+		return minReceivers + " to " + maxReceivers + " receivers, " + minWorkers + " to " + maxWorkers + " workers, one per " + lagPerThread + " lagging";
+	}
+}
@@ -0,0 +1,181 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Completes once every operation it was created for has been sent by the
+ * producer, or as soon as one of them fails. It can't be cancelled.
+ */
+public class SendFuture implements Future<Void> {
+
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private final AtomicInteger pendingOperations;
+
+	private final SendFuture[] dependents;
+
+	private volatile Throwable failure;
+
+	private List<SendCallback> callbacks = new ArrayList<SendCallback>(1);
+
+	SendFuture(int operations) {
+		this.pendingOperations = new AtomicInteger(operations);
+		this.dependents = null;
+	}
+
+	private SendFuture(SendFuture... dependents) {
+		this.pendingOperations = new AtomicInteger(1);
+		this.dependents = dependents;
+	}
+
+	/**
+	 * The future of a PDU merged from two others, which completes one
+	 * operation of each of theirs.
+	 */
+	static SendFuture merge(SendFuture previous, SendFuture next) {
+		if(previous == null) return next;
+		if(next == null) return previous;
+		return new SendFuture(previous, next);
+	}
+
+	/**
+	 * Completes one operation of the PDU's future, if it has one.
+	 */
+	static void sent(JmsIndexPDU pdu) {
+		SendFuture future = pdu.getSendFuture();
+		if(future != null) future.operationSent();
+	}
+
+	static void failed(JmsIndexPDU pdu, Throwable cause) {
+		SendFuture future = pdu.getSendFuture();
+		if(future != null) future.operationFailed(cause);
+	}
+
+	/**
+	 * One of the operations was sent, or made unnecessary by coalescing.
+	 */
+	void operationSent() {
+		if(pendingOperations.decrementAndGet() != 0) return;
+
+		if(dependents != null) {
+			for (SendFuture dependent : dependents) {
+				dependent.operationSent();
+			}
+		}
+		finish(null);
+	}
+
+	void operationFailed(Throwable cause) {
+		if(dependents != null) {
+			for (SendFuture dependent : dependents) {
+				dependent.operationFailed(cause);
+			}
+		}
+		finish(cause);
+	}
+
+	private void finish(Throwable cause) {
+		List<SendCallback> toNotify;
+		synchronized (this) {
+			if(isDone()) return;
+			failure = cause;
+			done.countDown();
+			toNotify = callbacks;
+			callbacks = null;
+		}
+
+		for (SendCallback callback : toNotify) {
+			notify(callback);
+		}
+	}
+
+	/**
+	 * Calls back once the future completes, right away if it already has.
+	 */
+	public void addCallback(SendCallback callback) {
+		synchronized (this) {
+			if(!isDone()) {
+				callbacks.add(callback);
+				return;
+			}
+		}
+		notify(callback);
+	}
+
+	private void notify(SendCallback callback) {
+		Throwable cause = failure;
+		if(cause == null) {
+			callback.sent();
+		} else {
+			callback.failed(cause);
+		}
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Whether it completed because an operation could not be sent.
+	 */
+	public boolean isFailed() {
+		return isDone() && failure != null;
+	}
+
+	@Override
+	public Void get() throws InterruptedException, ExecutionException {
+		done.await();
+		return result();
+	}
+
+	@Override
+	public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if(!done.await(timeout, unit)) {
+			throw new TimeoutException("Operations not sent yet: " + pendingOperations.get());
+		}
+		return result();
+	}
+
+	private Void result() throws ExecutionException {
+		Throwable cause = failure;
+		if(cause != null) throw new ExecutionException(cause);
+		return null;
+	}
+}
@@ -0,0 +1,62 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+/**
+ * Plain Java serialization. Slow and verbose, but it handles any
+ * serializable payload, so it's the fallback when the binary codec can't be
+ * used.
+ */
+public class SerializationIndexCodec implements JmsIndexCodec {
+
+	public static final String NAME = "java";
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void encode(Serializable payload, OutputStream out) throws IOException {
+		ObjectOutputStream objectOut = new ObjectOutputStream(out);
+		objectOut.writeObject(payload);
+		objectOut.flush();
+	}
+
+	@Override
+	public Serializable decode(InputStream in) throws IOException {
+		ObjectInputStream objectIn = new ObjectInputStream(in);
+		try {
+			return (Serializable) objectIn.readObject();
+		} catch (ClassNotFoundException e) {
+			IOException ioe = new IOException("Can't decode payload: " + e.getMessage());
+			ioe.initCause(e);
+			throw ioe;
+		}
+	}
+
+}
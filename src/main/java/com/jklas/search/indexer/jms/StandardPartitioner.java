@@ -0,0 +1,52 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+/**
+ * The {@link Partitioner}s that come with the indexer.
+ */
+public enum StandardPartitioner implements Partitioner {
+
+	/**
+	 * Spreads entities by the hash of their id.
+	 */
+	ENTITY_ID {
+		@Override
+		public int partition(EntityKey entity, int partitionCount) {
+			return partitionOf(entity.getId(), partitionCount);
+		}
+	},
+
+	/**
+	 * Sends all the entities of a class to the same partition, so that
+	 * consumers can be dedicated to some classes.
+	 */
+	ENTITY_CLASS {
+		@Override
+		public int partition(EntityKey entity, int partitionCount) {
+			return partitionOf(entity.getEntityClassName(), partitionCount);
+		}
+	};
+
+	private static int partitionOf(Object value, int partitionCount) {
+		int hash = value == null ? 0 : value.hashCode();
+		return (hash & Integer.MAX_VALUE) % partitionCount;
+	}
+}
@@ -0,0 +1,50 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer.jms;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out versions that only grow, within the JVM and across its
+ * restarts: the time in milliseconds, shifted to leave room for a counter
+ * of the versions handed out within the same millisecond.
+ * <p>
+ * Nothing orders versions across JVMs but their clocks: unless they are
+ * kept in sync, say with NTP, an operation from a JVM whose clock is
+ * behind loses to an older one from another JVM.
+ */
+final class VersionClock {
+
+	private static final int COUNTER_BITS = 16;
+
+	private static final AtomicLong last = new AtomicLong();
+
+	private VersionClock() {}
+
+	static long next() {
+		long now = System.currentTimeMillis() << COUNTER_BITS;
+
+		while(true) {
+			long previous = last.get();
+			long next = Math.max(previous + 1, now);
+			if(last.compareAndSet(previous, next)) return next;
+		}
+	}
+}
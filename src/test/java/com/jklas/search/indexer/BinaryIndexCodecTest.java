@@ -0,0 +1,156 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.jklas.search.index.dto.IndexObjectDto;
+import com.jklas.search.indexer.jms.BinaryIndexCodec;
+import com.jklas.search.indexer.jms.EntityKey;
+import com.jklas.search.indexer.jms.JmsIndexBatchPDU;
+import com.jklas.search.indexer.jms.JmsIndexCodec;
+import com.jklas.search.indexer.jms.JmsIndexPDU;
+import com.jklas.search.indexer.jms.SerializationIndexCodec;
+
+public class BinaryIndexCodecTest {
+
+	private final JmsIndexCodec codec = new BinaryIndexCodec();
+
+	@Test
+	public void MappedFieldsSurviveRoundTrip() throws IOException {
+		Utils.BeanEntity entity = new Utils.BeanEntity(7, "Julian", "ignored");
+
+		JmsIndexPDU decoded = (JmsIndexPDU) roundTrip(new JmsIndexPDU(IndexerAction.UPDATE, new IndexObjectDto(entity, 7)));
+
+		Assert.assertEquals(IndexerAction.UPDATE, decoded.getAction());
+		Assert.assertEquals(7, decoded.getIndexObjectDto().getId());
+
+		Utils.BeanEntity decodedEntity = (Utils.BeanEntity) decoded.getIndexObjectDto().getEntity();
+		Assert.assertEquals(7, decodedEntity.getId());
+		Assert.assertEquals("Julian", decodedEntity.getAttribute());
+		Assert.assertNull(decodedEntity.getNotMapped());
+	}
+
+	@Test
+	public void EntitiesWithoutDefaultConstructorAreSerialized() throws IOException {
+		Utils.DoubleAttributeEntity entity = new Utils.DoubleAttributeEntity(3, "a", "b");
+
+		JmsIndexPDU decoded = (JmsIndexPDU) roundTrip(new JmsIndexPDU(IndexerAction.CREATE, new IndexObjectDto(entity, 3)));
+
+		Utils.DoubleAttributeEntity decodedEntity = (Utils.DoubleAttributeEntity) decoded.getIndexObjectDto().getEntity();
+		Assert.assertEquals(3, decodedEntity.id);
+		Assert.assertEquals("a", decodedEntity.a1);
+		Assert.assertEquals("b", decodedEntity.a2);
+	}
+
+	@Test
+	public void EntitiesWithoutMappingAnnotationsAreSerialized() throws IOException {
+		UnannotatedEntity entity = new UnannotatedEntity();
+		entity.id = 5;
+		entity.name = "Julian";
+
+		JmsIndexPDU decoded = (JmsIndexPDU) roundTrip(new JmsIndexPDU(IndexerAction.CREATE, new IndexObjectDto(entity, 5)));
+
+		UnannotatedEntity decodedEntity = (UnannotatedEntity) decoded.getIndexObjectDto().getEntity();
+		Assert.assertEquals(5, decodedEntity.id);
+		Assert.assertEquals("Julian", decodedEntity.name);
+	}
+
+	@Test
+	public void ReferencesSurviveRoundTrip() throws IOException {
+		EntityKey reference = new EntityKey(Utils.BeanEntity.class.getName(), 7);
+
+		JmsIndexPDU decoded = (JmsIndexPDU) roundTrip(new JmsIndexPDU(IndexerAction.UPDATE, reference));
+
+		Assert.assertEquals(IndexerAction.UPDATE, decoded.getAction());
+		Assert.assertNull(decoded.getIndexObjectDto());
+		Assert.assertEquals(reference, decoded.getReference());
+	}
+
+	@Test
+	public void VersionsSurviveRoundTrip() throws IOException {
+		JmsIndexPDU versioned = new JmsIndexPDU(IndexerAction.DELETE, new IndexObjectDto(new Utils.BeanEntity(7, "Julian", null), 7));
+		versioned.setVersion(Long.MAX_VALUE - 1);
+
+		List<JmsIndexPDU> pdus = new ArrayList<JmsIndexPDU>();
+		pdus.add(versioned);
+		pdus.add(new JmsIndexPDU(IndexerAction.UPDATE, new EntityKey(Utils.BeanEntity.class.getName(), 8)));
+
+		JmsIndexBatchPDU decoded = (JmsIndexBatchPDU) roundTrip(new JmsIndexBatchPDU(pdus));
+
+		Assert.assertEquals(IndexerAction.DELETE, decoded.getPdus().get(0).getAction());
+		Assert.assertEquals(Long.MAX_VALUE - 1, decoded.getPdus().get(0).getVersion());
+		Assert.assertEquals(IndexerAction.UPDATE, decoded.getPdus().get(1).getAction());
+		Assert.assertEquals(0, decoded.getPdus().get(1).getVersion());
+	}
+
+	@Test
+	public void BatchesKeepOrder() throws IOException {
+		List<JmsIndexPDU> pdus = new ArrayList<JmsIndexPDU>();
+		for (int i = 0; i < 20; i++) {
+			pdus.add(new JmsIndexPDU(IndexerAction.CREATE, new IndexObjectDto(new Utils.BeanEntity(i, "Julian" + i, null), i)));
+		}
+
+		JmsIndexBatchPDU decoded = (JmsIndexBatchPDU) roundTrip(new JmsIndexBatchPDU(pdus));
+
+		Assert.assertEquals(20, decoded.size());
+		for (int i = 0; i < 20; i++) {
+			Assert.assertEquals(i, decoded.getPdus().get(i).getIndexObjectDto().getId());
+		}
+	}
+
+	@Test
+	public void BinaryIsSmallerThanSerialization() throws IOException {
+		List<JmsIndexPDU> pdus = new ArrayList<JmsIndexPDU>();
+		for (int i = 0; i < 20; i++) {
+			pdus.add(new JmsIndexPDU(IndexerAction.CREATE, new IndexObjectDto(new Utils.BeanEntity(i, "Julian" + i, null), i)));
+		}
+		JmsIndexBatchPDU batch = new JmsIndexBatchPDU(pdus);
+
+		Assert.assertTrue(encode(codec, batch).length < encode(new SerializationIndexCodec(), batch).length);
+	}
+
+	private static class UnannotatedEntity implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private int id;
+
+		private String name;
+	}
+
+	private Serializable roundTrip(Serializable payload) throws IOException {
+		return codec.decode(new ByteArrayInputStream(encode(codec, payload)));
+	}
+
+	private static byte[] encode(JmsIndexCodec codec, Serializable payload) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		codec.encode(payload, out);
+		return out.toByteArray();
+	}
+}
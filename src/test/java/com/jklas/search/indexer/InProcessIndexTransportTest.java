@@ -0,0 +1,158 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jklas.search.exception.IndexObjectException;
+import com.jklas.search.exception.SearchEngineMappingException;
+import com.jklas.search.index.dto.IndexObjectDto;
+import com.jklas.search.index.memory.MemoryIndex;
+import com.jklas.search.index.memory.MemoryIndexWriterFactory;
+import com.jklas.search.indexer.jms.InProcessIndexTransport;
+import com.jklas.search.indexer.jms.JmsOfflineIndexer;
+import com.jklas.search.indexer.jms.SendFuture;
+import com.jklas.search.indexer.pipeline.DefaultIndexingPipeline;
+
+public class InProcessIndexTransportTest {
+
+	@Before
+	public void setUp() throws SearchEngineMappingException {
+		MemoryIndex.newDefaultIndex();
+		Utils.configureAndMap(Utils.SingleAttributeEntity.class);
+	}
+
+	@Test
+	public void HundredObjectsFromSeveralThreadsAreIndexed() throws InterruptedException {
+		final InProcessIndexTransport transport = transport(16);
+		final JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(transport);
+
+		Thread transportThread = new Thread(transport);
+		transportThread.start();
+
+		Thread[] senders = new Thread[4];
+		for (int i = 0; i < senders.length; i++) {
+			final int first = i * 25;
+			senders[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int id = first; id < first + 25; id++) {
+							offlineIndexer.create(dto(id));
+						}
+					} catch (IndexObjectException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			senders[i].start();
+		}
+
+		for (Thread sender : senders) {
+			sender.join();
+		}
+		transport.stopWhenDrained();
+		transportThread.join();
+
+		Assert.assertEquals(100, transport.getIndexedCount());
+		Assert.assertEquals(100, transport.getMetrics().meter("dispatched").getCount());
+		Assert.assertEquals(0, transport.getUnsentMessageCount());
+		Assert.assertEquals(100, MemoryIndex.getDefaultIndex().getObjectCount());
+	}
+
+	@Test
+	public void OperationsOnAnEntityAreAppliedInOrder() throws InterruptedException, IndexObjectException {
+		InProcessIndexTransport transport = transport(1024);
+		transport.setBatchSize(7);
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(transport);
+
+		Thread transportThread = new Thread(transport);
+		transportThread.start();
+
+		for (int id = 0; id < 50; id++) {
+			offlineIndexer.create(dto(id));
+			if(id % 2 == 0) offlineIndexer.delete(dto(id));
+		}
+
+		transport.stopWhenDrained();
+		transportThread.join();
+
+		Assert.assertEquals(25, MemoryIndex.getDefaultIndex().getObjectCount());
+	}
+
+	@Test
+	public void FuturesCompleteOnceIndexed() throws Exception {
+		InProcessIndexTransport transport = transport(1024);
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(transport);
+
+		Thread transportThread = new Thread(transport);
+		transportThread.start();
+
+		List<IndexObjectDto> dtos = new ArrayList<IndexObjectDto>();
+		for (int id = 0; id < 10; id++) {
+			dtos.add(dto(id));
+		}
+		SendFuture future = offlineIndexer.submitAll(IndexerAction.CREATE, dtos);
+		future.get(10, TimeUnit.SECONDS);
+
+		Assert.assertEquals(10, MemoryIndex.getDefaultIndex().getObjectCount());
+
+		transport.shutdown();
+		transportThread.join();
+	}
+
+	@Test
+	public void FullRingFailsAfterEnqueueTimeout() throws IndexObjectException {
+		InProcessIndexTransport transport = transport(2);
+		transport.setEnqueueTimeoutMillis(10);
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(transport);
+
+		// nobody dispatches
+		offlineIndexer.create(dto(0));
+		offlineIndexer.create(dto(1));
+
+		try {
+			offlineIndexer.create(dto(2));
+			Assert.fail();
+		} catch (IndexObjectException expected) {
+		}
+
+		Assert.assertEquals(1, transport.getMetrics().meter("rejected").getCount());
+	}
+
+	private InProcessIndexTransport transport(int capacity) {
+		InProcessIndexTransport transport = new InProcessIndexTransport("InProcess", new DefaultIndexerService(
+				new DefaultIndexingPipeline(),
+				MemoryIndexWriterFactory.getInstance()), capacity);
+		transport.setWorkerCount(4);
+		return transport;
+	}
+
+	private IndexObjectDto dto(int id) {
+		return new IndexObjectDto(new Utils.SingleAttributeEntity(id, "Julian" + id), id);
+	}
+}
@@ -0,0 +1,426 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.junit.Test;
+
+import com.jklas.search.exception.IndexObjectException;
+import com.jklas.search.index.dto.IndexObjectDto;
+import com.jklas.search.indexer.jms.BinaryIndexCodec;
+import com.jklas.search.indexer.jms.JmsIndexCodecs;
+import com.jklas.search.indexer.jms.JmsIndexJournal;
+import com.jklas.search.indexer.jms.JmsOfflineIndexer;
+import com.jklas.search.indexer.jms.JmsOfflineIndexerConsumer;
+import com.jklas.search.indexer.jms.JmsOfflineIndexerProducer;
+import com.jklas.search.indexer.jms.RetryPolicy;
+
+public class JmsIndexJournalTest {
+
+	@Test
+	public void RecordsAreReadBackInOrder() throws IOException, InterruptedException {
+		JmsIndexJournal journal = new JmsIndexJournal(newJournalDirectory(), 4096);
+
+		for (int i = 0; i < 10; i++) {
+			Assert.assertTrue(journal.append(("record" + i).getBytes(), 0));
+		}
+
+		List<byte[]> records = journal.read(100, 0);
+
+		Assert.assertEquals(10, records.size());
+		for (int i = 0; i < 10; i++) {
+			Assert.assertEquals("record" + i, new String(records.get(i)));
+		}
+	}
+
+	@Test
+	public void UncheckpointedRecordsAreReplayedAfterRestart() throws IOException, InterruptedException {
+		File directory = newJournalDirectory();
+
+		JmsIndexJournal journal = new JmsIndexJournal(directory, 4096);
+		for (int i = 0; i < 10; i++) {
+			journal.append(("record" + i).getBytes(), 0);
+		}
+		journal.read(4, 0);
+		journal.checkpoint();
+		journal.read(4, 0);
+
+		JmsIndexJournal reopened = new JmsIndexJournal(directory, 4096);
+
+		Assert.assertEquals(6, reopened.getPendingCount());
+		Assert.assertEquals("record4", new String(reopened.read(1, 0).get(0)));
+	}
+
+	@Test
+	public void RewindReadsAgainFromCheckpoint() throws IOException, InterruptedException {
+		JmsIndexJournal journal = new JmsIndexJournal(newJournalDirectory(), 4096);
+		journal.append("a".getBytes(), 0);
+		journal.append("b".getBytes(), 0);
+
+		journal.read(1, 0);
+		journal.checkpoint();
+		journal.read(1, 0);
+		journal.rewind();
+
+		Assert.assertEquals("b", new String(journal.read(1, 0).get(0)));
+	}
+
+	@Test
+	public void CheckpointedSegmentsAreRecycled() throws IOException, InterruptedException {
+		File directory = newJournalDirectory();
+		JmsIndexJournal journal = new JmsIndexJournal(directory, 256);
+		journal.setMaxSegments(2);
+
+		byte[] record = new byte[100];
+		for (int i = 0; i < 50; i++) {
+			Assert.assertTrue(journal.append(record, 0));
+			Assert.assertEquals(1, journal.read(1, 0).size());
+			journal.checkpoint();
+		}
+
+		Assert.assertEquals(0, journal.getPendingCount());
+		Assert.assertTrue(journal.getSegmentCount() <= 2);
+		Assert.assertTrue(directory.list().length <= 4);
+	}
+
+	@Test
+	public void RecycledSegmentsKeepTheirFiles() throws IOException, InterruptedException {
+		File directory = newJournalDirectory();
+		JmsIndexJournal journal = new JmsIndexJournal(directory, 256);
+
+		byte[] record = new byte[100];
+		for (int i = 0; i < 4; i++) {
+			journal.append(record, 0);
+			journal.read(1, 0);
+			journal.checkpoint();
+		}
+		List<String> files = Arrays.asList(directory.list());
+
+		for (int i = 0; i < 10; i++) {
+			journal.append(("record" + i).getBytes(), 0);
+		}
+		journal.close();
+
+		Assert.assertTrue(files.containsAll(Arrays.asList(directory.list())));
+
+		JmsIndexJournal reopened = new JmsIndexJournal(directory, 256);
+		Assert.assertEquals(10, reopened.getPendingCount());
+		List<byte[]> records = reopened.read(100, 0);
+		for (int i = 0; i < 10; i++) {
+			Assert.assertEquals("record" + i, new String(records.get(i)));
+		}
+	}
+
+	@Test
+	public void CorruptRecordInWriteSegmentEndsIt() throws IOException, InterruptedException {
+		File directory = newJournalDirectory();
+		JmsIndexJournal journal = new JmsIndexJournal(directory, 4096);
+		journal.append("a".getBytes(), 0);
+		journal.append("b".getBytes(), 0);
+		journal.append("c".getBytes(), 0);
+
+		// the checksum of "b", after the segment header and the record of "a"
+		RandomAccessFile segment = new RandomAccessFile(new File(directory, String.format("%020d.journal", 0)), "rw");
+		try {
+			segment.seek(8 + 13 + 8);
+			segment.writeInt(0xbad);
+		} finally {
+			segment.close();
+		}
+
+		List<byte[]> records = journal.read(10, 0);
+		Assert.assertEquals(1, records.size());
+		Assert.assertEquals("a", new String(records.get(0)));
+		Assert.assertEquals(2, journal.getLostCount());
+		journal.checkpoint();
+		Assert.assertEquals(0, journal.getPendingCount());
+
+		journal.append("d".getBytes(), 0);
+		Assert.assertEquals("d", new String(journal.read(10, 0).get(0)));
+	}
+
+	@Test
+	public void ClosedJournalRefusesAppends() throws IOException, InterruptedException {
+		JmsIndexJournal journal = new JmsIndexJournal(newJournalDirectory(), 4096);
+		journal.append("a".getBytes(), 0);
+		journal.close();
+
+		Assert.assertTrue(journal.isClosed());
+		Assert.assertTrue(journal.read(1, 0).isEmpty());
+		try {
+			journal.append("b".getBytes(), 0);
+			Assert.fail("Appended to a closed journal");
+		} catch (IOException expected) {}
+	}
+
+	@Test
+	public void FullJournalTimesOut() throws IOException, InterruptedException {
+		JmsIndexJournal journal = new JmsIndexJournal(newJournalDirectory(), 256);
+		journal.setMaxSegments(1);
+
+		byte[] record = new byte[100];
+		Assert.assertTrue(journal.append(record, 0));
+		Assert.assertTrue(journal.append(record, 0));
+		Assert.assertFalse(journal.append(record, 10));
+	}
+
+	@Test
+	public void JournaledObjectsAreSentByARestartedProducer() throws IOException, InterruptedException, IndexObjectException {
+		ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("vm://localhost?broker.persistent=false");
+		File directory = newJournalDirectory();
+
+		// a producer that dies before sending anything
+		JmsOfflineIndexerProducer crashed = new JmsOfflineIndexerProducer("Tom", connectionFactory);
+		crashed.setJournal(new JmsIndexJournal(directory, 64 * 1024));
+
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(crashed);
+		for (int i = 0; i < 10; i++) {
+			Serializable entity = new Utils.SingleAttributeEntity(i, "Julian" + i);
+			offlineIndexer.create(new IndexObjectDto(entity, i));
+		}
+
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom", connectionFactory);
+		tom.setJournal(new JmsIndexJournal(directory, 64 * 1024));
+		tom.stopWhenSentCountReaches(10);
+		Assert.assertEquals(10, tom.getUnsentMessageCount());
+
+		JmsOfflineIndexerConsumer jerry = new JmsOfflineIndexerConsumer("Jerry", connectionFactory);
+		jerry.stopWhenReceivedCountReaches(10);
+
+		Thread jerryThread = new Thread(jerry);
+		jerryThread.start();
+
+		Thread tomThread = new Thread(tom);
+		tomThread.start();
+
+		tomThread.join();
+		jerryThread.join();
+
+		Assert.assertEquals(10, tom.getSentCount());
+		Assert.assertEquals(0, tom.getUnsentMessageCount());
+		Assert.assertEquals(10, jerry.getReceivedCount());
+	}
+
+	@Test
+	public void ProducerWithJournalStopsOnceDrained() throws IOException, InterruptedException, IndexObjectException {
+		ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("vm://localhost?broker.persistent=false");
+
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom", connectionFactory);
+		tom.setSubject("SEARCH.DRAINED");
+		tom.setJournal(new JmsIndexJournal(newJournalDirectory(), 64 * 1024));
+
+		Thread tomThread = new Thread(tom);
+		tomThread.start();
+
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		for (int i = 0; i < 10; i++) {
+			Serializable entity = new Utils.SingleAttributeEntity(i, "Julian" + i);
+			offlineIndexer.create(new IndexObjectDto(entity, i));
+		}
+
+		tom.stopWhenDrained();
+		tomThread.join(5000);
+
+		Assert.assertFalse(tomThread.isAlive());
+		Assert.assertEquals(10, tom.getSentCount());
+		Assert.assertEquals(0, tom.getUnsentMessageCount());
+	}
+
+	@Test
+	public void JournaledObjectsAreEncodedOnce() throws IOException, InterruptedException, IndexObjectException {
+		ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("vm://localhost?broker.persistent=false");
+
+		CountingCodec codec = new CountingCodec();
+		JmsIndexCodecs.register(codec);
+
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom", connectionFactory);
+		tom.setSubject("SEARCH.ENCODED_ONCE");
+		tom.setCodec(codec);
+		tom.setJournal(new JmsIndexJournal(newJournalDirectory(), 64 * 1024));
+		tom.stopWhenSentCountReaches(10);
+
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		for (int i = 0; i < 10; i++) {
+			Serializable entity = new Utils.SingleAttributeEntity(i, "Julian" + i);
+			offlineIndexer.create(new IndexObjectDto(entity, i));
+		}
+
+		// encoded when journaled
+		Assert.assertEquals(10, codec.encodeCount.get());
+
+		JmsOfflineIndexerConsumer jerry = new JmsOfflineIndexerConsumer("Jerry", connectionFactory);
+		jerry.setSubject("SEARCH.ENCODED_ONCE");
+		jerry.stopWhenReceivedCountReaches(10);
+
+		Thread jerryThread = new Thread(jerry);
+		jerryThread.start();
+
+		Thread tomThread = new Thread(tom);
+		tomThread.start();
+
+		tomThread.join();
+		jerryThread.join();
+
+		Assert.assertEquals(10, tom.getSentCount());
+		Assert.assertEquals(10, jerry.getReceivedCount());
+		Assert.assertEquals(10, codec.encodeCount.get());
+	}
+
+	@Test
+	public void UnreadableRecordIsSkipped() throws IOException, InterruptedException, IndexObjectException {
+		ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("vm://localhost?broker.persistent=false");
+		JmsIndexJournal journal = new JmsIndexJournal(newJournalDirectory(), 64 * 1024);
+
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom", connectionFactory);
+		tom.setJournal(journal);
+		tom.stopWhenSentCountReaches(10);
+
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		for (int i = 0; i < 10; i++) {
+			if(i == 5) journal.append("garbage".getBytes(), 0);
+
+			Serializable entity = new Utils.SingleAttributeEntity(i, "Julian" + i);
+			offlineIndexer.create(new IndexObjectDto(entity, i));
+		}
+
+		JmsOfflineIndexerConsumer jerry = new JmsOfflineIndexerConsumer("Jerry", connectionFactory);
+		jerry.stopWhenReceivedCountReaches(10);
+
+		Thread jerryThread = new Thread(jerry);
+		jerryThread.start();
+
+		Thread tomThread = new Thread(tom);
+		tomThread.start();
+
+		tomThread.join();
+		jerryThread.join();
+
+		Assert.assertEquals(10, tom.getSentCount());
+		Assert.assertEquals(1, tom.getUnreadableRecordCount());
+		Assert.assertEquals(0, journal.getPendingCount());
+		Assert.assertEquals(10, jerry.getReceivedCount());
+	}
+
+	@Test
+	public void JournaledObjectsAreSentAgainAfterBrokerRestart() throws Exception {
+		// the vm transport doesn't tell clients that the broker stopped
+		ServerSocket socket = new ServerSocket(0);
+		String brokerUrl = "tcp://localhost:" + socket.getLocalPort();
+		socket.close();
+
+		BrokerService broker = startBroker(brokerUrl);
+		ActiveMQConnectionFactory restartingBroker = new ActiveMQConnectionFactory(brokerUrl);
+
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom", restartingBroker);
+		tom.setSubject("SEARCH.JOURNALED");
+		// persistent messages are sent synchronously, so failures are noticed
+		tom.setPersistent(true);
+		tom.setJournal(new JmsIndexJournal(newJournalDirectory(), 64 * 1024));
+		tom.setReconnectPolicy(new RetryPolicy(100, 10, 100));
+		tom.stopWhenSentCountReaches(10);
+
+		Thread tomThread = new Thread(tom);
+		tomThread.start();
+
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		offlineIndexer.create(new IndexObjectDto(new Utils.SingleAttributeEntity(0, "Julian0"), 0));
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while(tom.getSentCount() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(1, tom.getSentCount());
+
+		broker.stop();
+		broker.waitUntilStopped();
+
+		// journaled while the broker is down
+		for (int i = 1; i < 10; i++) {
+			Serializable entity = new Utils.SingleAttributeEntity(i, "Julian" + i);
+			offlineIndexer.create(new IndexObjectDto(entity, i));
+		}
+
+		broker = startBroker(brokerUrl);
+		try {
+			JmsOfflineIndexerConsumer jerry = new JmsOfflineIndexerConsumer("Jerry", restartingBroker);
+			jerry.setSubject("SEARCH.JOURNALED");
+			jerry.stopWhenReceivedCountReaches(9);
+
+			Thread jerryThread = new Thread(jerry);
+			jerryThread.start();
+
+			tomThread.join();
+			jerryThread.join();
+
+			Assert.assertTrue(tom.getReconnectCount() > 0);
+			Assert.assertEquals(10, tom.getSentCount());
+			Assert.assertEquals(0, tom.getUnsentMessageCount());
+			Assert.assertEquals(9, jerry.getReceivedCount());
+		} finally {
+			broker.stop();
+		}
+	}
+
+	private static class CountingCodec extends BinaryIndexCodec {
+		final AtomicInteger encodeCount = new AtomicInteger();
+
+		@Override
+		public String getName() {
+			return "counting";
+		}
+
+		@Override
+		public void encode(Serializable payload, OutputStream out) throws IOException {
+			encodeCount.incrementAndGet();
+			super.encode(payload, out);
+		}
+	}
+
+	private static BrokerService startBroker(String url) throws Exception {
+		BrokerService broker = new BrokerService();
+		broker.setBrokerName("journaled");
+		broker.setPersistent(false);
+		broker.setUseJmx(false);
+		broker.addConnector(url);
+		broker.start();
+		return broker;
+	}
+
+	private static File newJournalDirectory() throws IOException {
+		File directory = File.createTempFile("journal", "");
+		directory.delete();
+		directory.mkdirs();
+		directory.deleteOnExit();
+		return directory;
+	}
+}
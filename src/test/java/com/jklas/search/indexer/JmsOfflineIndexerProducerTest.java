@@ -0,0 +1,301 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.junit.Test;
+
+import com.jklas.search.exception.IndexObjectException;
+import com.jklas.search.index.dto.IndexObjectDto;
+import com.jklas.search.indexer.IndexerAction;
+import com.jklas.search.indexer.jms.BackpressurePolicy;
+import com.jklas.search.indexer.jms.JmsIndexPDU;
+import com.jklas.search.indexer.jms.JmsOfflineIndexer;
+import com.jklas.search.indexer.jms.JmsOfflineIndexerProducer;
+import com.jklas.search.indexer.jms.RetryPolicy;
+import com.jklas.search.indexer.jms.SendFuture;
+import com.jklas.search.indexer.jms.SendQueueListener;
+import com.jklas.search.indexer.jms.SerializationIndexCodec;
+
+public class JmsOfflineIndexerProducerTest {
+
+	private static final ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("vm://localhost?broker.persistent=false");
+
+	@Test
+	public void FullQueueFailsFastWithFailPolicy() throws IndexObjectException {
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom", connectionFactory, 2);
+		tom.setBackpressurePolicy(BackpressurePolicy.FAIL);
+
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		offlineIndexer.create(dto(0));
+		offlineIndexer.create(dto(1));
+
+		try {
+			offlineIndexer.create(dto(2));
+			Assert.fail();
+		} catch (IndexObjectException expected) {}
+
+		Assert.assertEquals(2, tom.getUnsentMessageCount());
+		Assert.assertEquals(1, tom.getRejectedCount());
+	}
+
+	@Test
+	public void FullQueueTimesOutWithBlockPolicy() throws IndexObjectException {
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom", connectionFactory, 1);
+		tom.setEnqueueTimeoutMillis(10);
+
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		offlineIndexer.create(dto(0));
+
+		try {
+			offlineIndexer.create(dto(1));
+			Assert.fail();
+		} catch (IndexObjectException expected) {}
+
+		Assert.assertEquals(1, tom.getUnsentMessageCount());
+	}
+
+	@Test
+	public void FullQueueDropsOldestWithDropOldestPolicy() throws IndexObjectException {
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom", connectionFactory, 2);
+		tom.setBackpressurePolicy(BackpressurePolicy.DROP_OLDEST);
+
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		for (int i = 0; i < 3; i++) {
+			offlineIndexer.create(dto(i));
+		}
+
+		Assert.assertEquals(2, tom.getUnsentMessageCount());
+		Assert.assertEquals(1, tom.getDroppedCount());
+		Assert.assertEquals(1, ((JmsIndexPDU) tom.getSendQueue().peek()).getIndexObjectDto().getId());
+	}
+
+	@Test
+	public void FullQueueCoalescesWithCoalescePolicy() throws IndexObjectException {
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom", connectionFactory, 2);
+		tom.setBackpressurePolicy(BackpressurePolicy.COALESCE);
+		tom.setEnqueueTimeoutMillis(10);
+
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		offlineIndexer.create(dto(0));
+		offlineIndexer.create(dto(1));
+		offlineIndexer.update(dto(1));
+
+		Assert.assertEquals(2, tom.getUnsentMessageCount());
+		Assert.assertEquals(1, tom.getCoalescedCount());
+
+		offlineIndexer.delete(dto(0));
+
+		Assert.assertEquals(1, tom.getUnsentMessageCount());
+		Assert.assertEquals(IndexerAction.CREATE, ((JmsIndexPDU) tom.getSendQueue().peek()).getAction());
+	}
+
+	@Test
+	public void CoalescedOperationIsSentInPlaceOfQueuedOne() throws IndexObjectException, InterruptedException {
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom", connectionFactory, 2);
+		tom.setBackpressurePolicy(BackpressurePolicy.COALESCE);
+		tom.setEnqueueTimeoutMillis(10);
+		tom.stopWhenSentCountReaches(2);
+
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		offlineIndexer.submit(IndexerAction.CREATE, dto(0));
+		offlineIndexer.submit(IndexerAction.CREATE, dto(1));
+		SendFuture updated = offlineIndexer.submit(IndexerAction.UPDATE, dto(1));
+
+		Assert.assertEquals(1, tom.getCoalescedCount());
+		Assert.assertFalse(updated.isDone());
+
+		Thread tomThread = new Thread(tom);
+		tomThread.start();
+		tomThread.join(5000);
+
+		Assert.assertFalse(tomThread.isAlive());
+		Assert.assertEquals(2, tom.getSentCount());
+		Assert.assertTrue(updated.isDone() && !updated.isFailed());
+	}
+
+	@Test
+	public void WatermarksAreReported() throws IndexObjectException {
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom", connectionFactory, 10);
+		tom.setHighWatermark(3);
+		tom.setLowWatermark(1);
+
+		final List<String> events = new ArrayList<String>();
+		tom.setSendQueueListener(new SendQueueListener() {
+			@Override
+			public void highWatermarkReached(int queueDepth) {
+				events.add("high:" + queueDepth);
+			}
+
+			@Override
+			public void lowWatermarkReached(int queueDepth) {
+				events.add("low:" + queueDepth);
+			}
+		});
+
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		for (int i = 0; i < 4; i++) {
+			offlineIndexer.create(dto(i));
+		}
+
+		Assert.assertTrue(tom.isAboveHighWatermark());
+		Assert.assertEquals(4, tom.getPeakQueueDepth());
+		Assert.assertEquals("[high:3]", events.toString());
+	}
+
+	@Test
+	public void OperationsOnSameEntityAreCoalescedWithinWindow() throws IndexObjectException {
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom", connectionFactory);
+		tom.setCoalescingWindowMillis(60000);
+
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		offlineIndexer.create(dto(0));
+		offlineIndexer.update(dto(0));
+		offlineIndexer.update(dto(0));
+		offlineIndexer.create(dto(1));
+		offlineIndexer.delete(dto(1));
+
+		Assert.assertEquals(1, tom.getUnsentMessageCount());
+		Assert.assertEquals(4, tom.getCoalescedCount());
+		Assert.assertTrue(tom.getSendQueue().isEmpty());
+	}
+
+	@Test
+	public void CoalescedOperationsAreSentWhenWindowIsOver() throws IndexObjectException, InterruptedException {
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom", connectionFactory);
+		tom.setCoalescingWindowMillis(50);
+		tom.stopWhenSentCountReaches(2);
+
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		for (int i = 0; i < 10; i++) {
+			offlineIndexer.update(dto(i % 2));
+		}
+
+		Thread tomThread = new Thread(tom);
+		tomThread.start();
+		tomThread.join(5000);
+
+		Assert.assertFalse(tomThread.isAlive());
+		Assert.assertEquals(2, tom.getSentCount());
+		Assert.assertEquals(8, tom.getCoalescedCount());
+		Assert.assertEquals(0, tom.getUnsentMessageCount());
+	}
+
+	@Test
+	public void ProducerStopsOnceDrained() throws IndexObjectException, InterruptedException {
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom", connectionFactory);
+		tom.setBatchSize(4);
+
+		Thread tomThread = new Thread(tom);
+		tomThread.start();
+
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		for (int i = 0; i < 10; i++) {
+			offlineIndexer.create(dto(i));
+		}
+
+		tom.stopWhenDrained();
+		tomThread.join(5000);
+
+		Assert.assertFalse(tomThread.isAlive());
+		Assert.assertEquals(10, tom.getSentCount());
+		Assert.assertEquals(0, tom.getUnsentMessageCount());
+	}
+
+	@Test
+	public void FutureOfDroppedOperationFails() throws IndexObjectException {
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom", connectionFactory, 2);
+		tom.setBackpressurePolicy(BackpressurePolicy.DROP_OLDEST);
+
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		SendFuture dropped = offlineIndexer.submit(IndexerAction.CREATE, dto(0));
+		SendFuture kept = offlineIndexer.submit(IndexerAction.CREATE, dto(1));
+		offlineIndexer.submit(IndexerAction.CREATE, dto(2));
+
+		Assert.assertTrue(dropped.isFailed());
+		Assert.assertFalse(kept.isDone());
+	}
+
+	@Test
+	public void FuturesOfCancelledOperationsComplete() throws IndexObjectException {
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom", connectionFactory);
+		tom.setCoalescingWindowMillis(60000);
+
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		SendFuture created = offlineIndexer.submit(IndexerAction.CREATE, dto(0));
+		SendFuture updated = offlineIndexer.submit(IndexerAction.UPDATE, dto(0));
+		Assert.assertFalse(created.isDone());
+
+		SendFuture deleted = offlineIndexer.submit(IndexerAction.DELETE, dto(0));
+
+		Assert.assertTrue(created.isDone() && !created.isFailed());
+		Assert.assertTrue(updated.isDone() && !updated.isFailed());
+		Assert.assertTrue(deleted.isDone() && !deleted.isFailed());
+	}
+
+	@Test
+	public void RolledBackMessagesAreNotCounted() throws IndexObjectException, InterruptedException {
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom", connectionFactory);
+		tom.setMaxInFlightMessages(10);
+		tom.setReconnectPolicy(new RetryPolicy(3, 10, 10));
+		tom.setCodec(new SerializationIndexCodec() {
+			private int encoded;
+
+			@Override
+			public void encode(Serializable payload, OutputStream out) throws IOException {
+				if(++encoded == 4) throw new IOException("Can't encode");
+				super.encode(payload, out);
+			}
+		});
+
+		// all queued up front, so nothing is committed before the failure
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		List<SendFuture> futures = new ArrayList<SendFuture>();
+		for (int i = 0; i < 6; i++) {
+			futures.add(offlineIndexer.submit(IndexerAction.CREATE, dto(i)));
+		}
+
+		Thread tomThread = new Thread(tom);
+		tomThread.start();
+		tom.stopWhenDrained();
+		tomThread.join(5000);
+
+		Assert.assertFalse(tomThread.isAlive());
+		for (int i = 0; i < 4; i++) {
+			Assert.assertTrue(futures.get(i).isFailed());
+		}
+		Assert.assertTrue(futures.get(4).isDone() && !futures.get(4).isFailed());
+		Assert.assertTrue(futures.get(5).isDone() && !futures.get(5).isFailed());
+		Assert.assertEquals(2, tom.getSentCount());
+		Assert.assertEquals(2, tom.getSentMessageCount());
+	}
+
+	private IndexObjectDto dto(int id) {
+		return new IndexObjectDto(new Utils.SingleAttributeEntity(id, "Julian" + id), id);
+	}
+}
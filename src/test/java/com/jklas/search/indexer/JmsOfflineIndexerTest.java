@@ -19,11 +19,37 @@
  */
 package com.jklas.search.indexer;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageFormatException;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
 
 import junit.framework.Assert;
 
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerPlugin;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.plugin.StatisticsBrokerPlugin;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -35,9 +61,29 @@ import com.jklas.search.index.memory.MemoryIndex;
 import com.jklas.search.index.memory.MemoryIndexWriterFactory;
 import com.jklas.search.indexer.DefaultIndexerService;
 import com.jklas.search.indexer.IndexerService;
+import com.jklas.search.indexer.jms.BinaryIndexCodec;
+import com.jklas.search.indexer.jms.EntityCache;
+import com.jklas.search.indexer.jms.EntityKey;
+import com.jklas.search.indexer.jms.EntityLoader;
+import com.jklas.search.indexer.jms.IndexMessageFilter;
+import com.jklas.search.indexer.jms.IndexSnapshotter;
+import com.jklas.search.indexer.jms.IndexingWorker;
+import com.jklas.search.indexer.jms.JmsIndexBatchPDU;
+import com.jklas.search.indexer.jms.JmsIndexMessageProperties;
+import com.jklas.search.indexer.jms.JmsIndexPDU;
 import com.jklas.search.indexer.jms.JmsOfflineIndexer;
 import com.jklas.search.indexer.jms.JmsOfflineIndexerConsumer;
+import com.jklas.search.indexer.jms.JmsOfflineIndexerConsumerPool;
 import com.jklas.search.indexer.jms.JmsOfflineIndexerProducer;
+import com.jklas.search.indexer.jms.JmsOfflineIndexerProducerPool;
+import com.jklas.search.indexer.jms.MessageDeduplicator;
+import com.jklas.search.indexer.jms.OfflineIndexTransport;
+import com.jklas.search.indexer.jms.PartitionAssignment;
+import com.jklas.search.indexer.jms.RetryPolicy;
+import com.jklas.search.indexer.jms.ScalingPolicy;
+import com.jklas.search.indexer.jms.SendCallback;
+import com.jklas.search.indexer.jms.SendFuture;
+import com.jklas.search.indexer.jms.StandardPartitioner;
 import com.jklas.search.indexer.pipeline.DefaultIndexingPipeline;
 
 public class JmsOfflineIndexerTest {
@@ -102,6 +148,1289 @@ public class JmsOfflineIndexerTest {
 		Assert.assertEquals(10, MemoryIndex.getDefaultIndex().getObjectCount());
     }
 	
+	@Test
+	public void LatencyIsTrackedPerStage() throws InterruptedException, IndexObjectException, SearchEngineMappingException, IOException {
+		MemoryIndex.newDefaultIndex();
+		
+		int numberOfObjectsToSend = 10;
+		Serializable[] entities = new Serializable[numberOfObjectsToSend];
+		Serializable[] ids = new Serializable[numberOfObjectsToSend];
+		
+		for (int i = 0; i < entities.length; i++) {
+			entities[i]= new Utils.SingleAttributeEntity(i,"Julian" +i);
+			ids[i]=i;
+		}
+		Utils.configureAndMap(entities[0]);
+		
+		JmsOfflineIndexerConsumer jerry = new JmsOfflineIndexerConsumer("Jerry",connectionFactory,
+				new DefaultIndexerService(
+						new DefaultIndexingPipeline(),
+						MemoryIndexWriterFactory.getInstance()));
+		
+		sendEntitiesOverJmsForIndexing(new JmsOfflineIndexerProducer("Tom",connectionFactory), jerry, entities, ids);
+		
+		for (String stage : new String[] {"queued", "transit", "decode", "index", "endToEndPerMessage"}) {
+			Assert.assertEquals(stage, 10, jerry.getMetrics().histogram("latencyMicros." + stage).getCount());
+		}
+		
+		StringBuilder export = new StringBuilder();
+		jerry.getMetrics().exportHistograms(export);
+		Assert.assertTrue(export.toString().startsWith("metric,count,p50,p99,p999,max\n"));
+		Assert.assertTrue(export.toString().contains("\nlatencyMicros.endToEndPerMessage,10,"));
+    }
+	
+	@Test
+	public void TenObjectsSentInBatchesAreIndexed() throws InterruptedException, IndexObjectException, SearchEngineMappingException {
+		MemoryIndex.newDefaultIndex();
+		
+		int numberOfObjectsToSend = 10;
+		Serializable[] entities = new Serializable[numberOfObjectsToSend];
+		Serializable[] ids = new Serializable[numberOfObjectsToSend];
+		
+		for (int i = 0; i < entities.length; i++) {
+			entities[i]= new Utils.SingleAttributeEntity(i,"Julian" +i);
+			ids[i]=i;
+		}
+		Utils.configureAndMap(entities[0]);
+		
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom",connectionFactory);
+		tom.setBatchSize(4);
+		tom.setBatchLingerMillis(50);
+		
+		sendEntitiesOverJmsForIndexing(tom, entities, ids,
+				new DefaultIndexerService(
+						new DefaultIndexingPipeline(),
+						MemoryIndexWriterFactory.getInstance())
+			);
+		
+		Assert.assertEquals(10, MemoryIndex.getDefaultIndex().getObjectCount());
+		Assert.assertTrue(tom.getSentMessageCount() < numberOfObjectsToSend);
+    }
+	
+	@Test
+	public void TenObjectsEncodedWithBinaryCodecAreIndexed() throws InterruptedException, IndexObjectException, SearchEngineMappingException {
+		MemoryIndex.newDefaultIndex();
+		
+		int numberOfObjectsToSend = 10;
+		Serializable[] entities = new Serializable[numberOfObjectsToSend];
+		Serializable[] ids = new Serializable[numberOfObjectsToSend];
+		
+		for (int i = 0; i < entities.length; i++) {
+			entities[i]= new Utils.BeanEntity(i,"Julian" +i, null);
+			ids[i]=i;
+		}
+		Utils.configureAndMap(entities[0]);
+		
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom",connectionFactory);
+		tom.setCodec(new BinaryIndexCodec());
+		tom.setBatchSize(4);
+		
+		sendEntitiesOverJmsForIndexing(tom, entities, ids,
+				new DefaultIndexerService(
+						new DefaultIndexingPipeline(),
+						MemoryIndexWriterFactory.getInstance())
+			);
+		
+		Assert.assertEquals(10, MemoryIndex.getDefaultIndex().getObjectCount());
+    }
+	
+	@Test
+	public void TenCompressedObjectsAreIndexed() throws InterruptedException, IndexObjectException, SearchEngineMappingException {
+		MemoryIndex.newDefaultIndex();
+		
+		StringBuilder largeText = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			largeText.append("Julian ");
+		}
+		
+		int numberOfObjectsToSend = 10;
+		Serializable[] entities = new Serializable[numberOfObjectsToSend];
+		Serializable[] ids = new Serializable[numberOfObjectsToSend];
+		
+		for (int i = 0; i < entities.length; i++) {
+			entities[i]= new Utils.SingleAttributeEntity(i, largeText.toString() + i);
+			ids[i]=i;
+		}
+		Utils.configureAndMap(entities[0]);
+		
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom",connectionFactory);
+		tom.setCompression(512, Deflater.BEST_SPEED);
+		
+		sendEntitiesOverJmsForIndexing(tom, entities, ids,
+				new DefaultIndexerService(
+						new DefaultIndexingPipeline(),
+						MemoryIndexWriterFactory.getInstance())
+			);
+		
+		Assert.assertEquals(10, MemoryIndex.getDefaultIndex().getObjectCount());
+		Assert.assertEquals(10, tom.getCompressor().getCompressedMessageCount());
+		Assert.assertEquals(10, tom.getMetrics().meter("sent").getCount());
+		Assert.assertEquals(10, tom.getMetrics().histogram("sendLatencyNanos").getCount());
+		Assert.assertTrue(tom.getCompressor().getCompressionRatio() < 0.5);
+    }
+	
+	@Test
+	public void TenObjectsReceivedInBulkAreIndexed() throws InterruptedException, IndexObjectException, SearchEngineMappingException {
+		MemoryIndex.newDefaultIndex();
+		
+		int numberOfObjectsToSend = 10;
+		Serializable[] entities = new Serializable[numberOfObjectsToSend];
+		Serializable[] ids = new Serializable[numberOfObjectsToSend];
+		
+		for (int i = 0; i < entities.length; i++) {
+			entities[i]= new Utils.SingleAttributeEntity(i,"Julian" +i);
+			ids[i]=i;
+		}
+		Utils.configureAndMap(entities[0]);
+		
+		JmsOfflineIndexerConsumer jerry = new JmsOfflineIndexerConsumer("Jerry",connectionFactory,
+				new DefaultIndexerService(
+						new DefaultIndexingPipeline(),
+						MemoryIndexWriterFactory.getInstance()));
+		jerry.setBulkSize(5);
+		jerry.setBulkTimeoutMillis(50);
+		jerry.setAckMode("CLIENT_ACKNOWLEDGE");
+		
+		sendEntitiesOverJmsForIndexing(new JmsOfflineIndexerProducer("Tom",connectionFactory), jerry, entities, ids);
+		
+		Assert.assertEquals(10, MemoryIndex.getDefaultIndex().getObjectCount());
+    }
+	
+	@Test
+	public void HundredObjectsAreIndexedByConsumerPool() throws InterruptedException, IndexObjectException, SearchEngineMappingException {
+		MemoryIndex.newDefaultIndex();
+		
+		int numberOfObjectsToSend = 100;
+		Utils.configureAndMap(Utils.SingleAttributeEntity.class);
+		
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom",connectionFactory);
+		tom.setMessageGroupCount(8);
+		tom.stopWhenSentCountReaches(numberOfObjectsToSend);
+		
+		JmsOfflineIndexerConsumerPool jerries = new JmsOfflineIndexerConsumerPool("Jerry",connectionFactory,
+				new DefaultIndexerService(
+						new DefaultIndexingPipeline(),
+						MemoryIndexWriterFactory.getInstance()));
+		jerries.setReceiverCount(2);
+		jerries.setMessageGroups(true);
+		jerries.setWorkerCount(4);
+		jerries.stopWhenIndexedCountReaches(numberOfObjectsToSend);
+		
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		
+		Thread tomThread = new Thread(tom);
+		tomThread.setName("Tom");
+		tomThread.start();
+		
+		Thread jerriesThread = jerries.start();
+		
+		for (int i = 0; i < numberOfObjectsToSend; i++) {
+			offlineIndexer.create(new IndexObjectDto(new Utils.SingleAttributeEntity(i,"Julian" +i), i));
+		}
+		
+		tomThread.join();
+		jerriesThread.join();
+		
+		Assert.assertEquals(numberOfObjectsToSend, jerries.getIndexedCount());
+		Assert.assertEquals(numberOfObjectsToSend, jerries.getMetrics().meter("indexed").getCount());
+		Assert.assertEquals(numberOfObjectsToSend, jerries.getMetrics().histogram("indexLatencyNanos.CREATE").getCount());
+		Assert.assertEquals(0, jerries.getMetrics().meter("indexFailures").getCount());
+		Assert.assertEquals(numberOfObjectsToSend, MemoryIndex.getDefaultIndex().getObjectCount());
+		
+		int indexedByWorkers = 0;
+		for (IndexingWorker worker : jerries.getWorkers()) {
+			Assert.assertEquals(worker.getReceivedCount(), worker.getIndexedCount());
+			indexedByWorkers += worker.getIndexedCount();
+		}
+		Assert.assertEquals(numberOfObjectsToSend, indexedByWorkers);
+    }
+	
+	@Test
+	public void ConsumerPoolWithoutOrderingRefusesSeveralReceivers() {
+		JmsOfflineIndexerConsumerPool jerries = new JmsOfflineIndexerConsumerPool("Jerry",connectionFactory,
+				new DefaultIndexerService(
+						new DefaultIndexingPipeline(),
+						MemoryIndexWriterFactory.getInstance()));
+		jerries.setReceiverCount(2);
+		
+		try {
+			jerries.start();
+			Assert.fail("Two receivers could reorder the operations on an entity");
+		} catch (IllegalStateException expected) {}
+		
+		Assert.assertEquals(0, jerries.getActiveReceiverCount());
+	}
+	
+	@Test
+	public void TenObjectsSentAsReferencesAreIndexed() throws InterruptedException, IndexObjectException, SearchEngineMappingException {
+		MemoryIndex.newDefaultIndex();
+		Utils.configureAndMap(Utils.SingleAttributeEntity.class);
+		
+		int numberOfObjectsToSend = 10;
+		final Map<Serializable, Object> store = new HashMap<Serializable, Object>();
+		for (int i = 0; i < numberOfObjectsToSend; i++) {
+			store.put(i, new Utils.SingleAttributeEntity(i,"Julian" +i));
+		}
+		
+		final int[] loadCalls = new int[1];
+		EntityLoader loader = new EntityLoader() {
+			@Override
+			public Map<Serializable, Object> load(Class<?> entityClass, Collection<Serializable> ids) {
+				loadCalls[0]++;
+				Map<Serializable, Object> loaded = new HashMap<Serializable, Object>();
+				for (Serializable id : ids) {
+					loaded.put(id, store.get(id));
+				}
+				return loaded;
+			}
+		};
+		EntityCache cache = new EntityCache(100);
+		
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom",connectionFactory);
+		tom.setCodec(new BinaryIndexCodec());
+		tom.setBatchSize(numberOfObjectsToSend);
+		tom.setBatchLingerMillis(1000);
+		tom.stopWhenSentCountReaches(numberOfObjectsToSend);
+		
+		JmsOfflineIndexerConsumer jerry = new JmsOfflineIndexerConsumer("Jerry",connectionFactory,
+				new DefaultIndexerService(
+						new DefaultIndexingPipeline(),
+						MemoryIndexWriterFactory.getInstance()));
+		jerry.setEntityLoader(loader);
+		jerry.setEntityCache(cache);
+		jerry.stopWhenReceivedCountReaches(numberOfObjectsToSend);
+		
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		offlineIndexer.setReferenceMode(true);
+		
+		Thread tomThread = new Thread(tom);
+		tomThread.start();
+		Thread jerryThread = new Thread(jerry);
+		jerryThread.start();
+		
+		for (int i = 0; i < numberOfObjectsToSend; i++) {
+			offlineIndexer.create(new IndexObjectDto(store.get(i), i));
+		}
+		
+		tomThread.join();
+		jerryThread.join();
+		
+		Assert.assertEquals(numberOfObjectsToSend, MemoryIndex.getDefaultIndex().getObjectCount());
+		Assert.assertEquals(1, loadCalls[0]);
+		Assert.assertEquals(numberOfObjectsToSend, cache.size());
+		Assert.assertEquals(0, jerry.getUnresolvedReferenceCount());
+    }
+	
+	@Test
+	public void TenObjectsSubmittedAsynchronouslyAreIndexed() throws Exception {
+		MemoryIndex.newDefaultIndex();
+		Utils.configureAndMap(Utils.SingleAttributeEntity.class);
+		
+		int numberOfObjectsToSend = 10;
+		
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom",connectionFactory);
+		tom.setMaxInFlightMessages(4);
+		tom.stopWhenSentCountReaches(numberOfObjectsToSend);
+		
+		JmsOfflineIndexerConsumer jerry = new JmsOfflineIndexerConsumer("Jerry",connectionFactory,
+				new DefaultIndexerService(
+						new DefaultIndexingPipeline(),
+						MemoryIndexWriterFactory.getInstance()));
+		jerry.stopWhenReceivedCountReaches(numberOfObjectsToSend);
+		
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		
+		Thread tomThread = new Thread(tom);
+		tomThread.start();
+		Thread jerryThread = new Thread(jerry);
+		jerryThread.start();
+		
+		List<IndexObjectDto> dtos = new ArrayList<IndexObjectDto>();
+		for (int i = 0; i < numberOfObjectsToSend - 1; i++) {
+			dtos.add(new IndexObjectDto(new Utils.SingleAttributeEntity(i,"Julian" +i), i));
+		}
+		SendFuture bulk = offlineIndexer.submitAll(IndexerAction.CREATE, dtos);
+		
+		final CountDownLatch calledBack = new CountDownLatch(1);
+		SendFuture single = offlineIndexer.submit(IndexerAction.CREATE, new IndexObjectDto(new Utils.SingleAttributeEntity(9,"Julian9"), 9));
+		single.addCallback(new SendCallback() {
+			@Override
+			public void sent() {
+				calledBack.countDown();
+			}
+			
+			@Override
+			public void failed(Throwable cause) {
+			}
+		});
+		
+		bulk.get(10, TimeUnit.SECONDS);
+		single.get(10, TimeUnit.SECONDS);
+		
+		// callbacks run right after waiters are released
+		Assert.assertTrue(calledBack.await(10, TimeUnit.SECONDS));
+		Assert.assertEquals(numberOfObjectsToSend, tom.getSentCount());
+		Assert.assertEquals(0, tom.getUnsentMessageCount());
+		
+		tomThread.join();
+		jerryThread.join();
+		
+		Assert.assertEquals(numberOfObjectsToSend, MemoryIndex.getDefaultIndex().getObjectCount());
+	}
+	
+	@Test
+	public void HundredObjectsSentByStripedProducersAreIndexed() throws InterruptedException, IndexObjectException, SearchEngineMappingException {
+		MemoryIndex.newDefaultIndex();
+		Utils.configureAndMap(Utils.SingleAttributeEntity.class);
+		
+		int numberOfObjectsToSend = 100;
+		
+		JmsOfflineIndexerProducerPool toms = new JmsOfflineIndexerProducerPool("Tom",connectionFactory,4);
+		
+		JmsOfflineIndexerConsumer jerry = new JmsOfflineIndexerConsumer("Jerry",connectionFactory,
+				new DefaultIndexerService(
+						new DefaultIndexingPipeline(),
+						MemoryIndexWriterFactory.getInstance()));
+		jerry.stopWhenReceivedCountReaches(numberOfObjectsToSend);
+		
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(toms);
+		
+		Thread tomsThread = new Thread(toms);
+		tomsThread.start();
+		Thread jerryThread = new Thread(jerry);
+		jerryThread.start();
+		
+		for (int i = 0; i < numberOfObjectsToSend; i++) {
+			offlineIndexer.create(new IndexObjectDto(new Utils.SingleAttributeEntity(i,"Julian" +i), i));
+		}
+		
+		jerryThread.join();
+		toms.stopWhenDrained();
+		tomsThread.join();
+		
+		Assert.assertEquals(numberOfObjectsToSend, toms.getSentCount());
+		Assert.assertEquals(0, toms.getUnsentMessageCount());
+		for (JmsOfflineIndexerProducer tom : toms.getStripes()) {
+			Assert.assertTrue(tom.getSentCount() > 0);
+		}
+		Assert.assertEquals(numberOfObjectsToSend, MemoryIndex.getDefaultIndex().getObjectCount());
+	}
+	
+	@Test
+	public void PartitionsAreIndexedByTheirAssignedConsumers() throws InterruptedException, IndexObjectException, SearchEngineMappingException {
+		MemoryIndex.newDefaultIndex();
+		Utils.configureAndMap(Utils.SingleAttributeEntity.class);
+		
+		int numberOfObjectsToSend = 40;
+		int partitionCount = 4;
+		
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom",connectionFactory);
+		tom.setSubject("SEARCH.PARTITIONED");
+		tom.setPartitionCount(partitionCount);
+		tom.setBatchSize(8);
+		tom.stopWhenSentCountReaches(numberOfObjectsToSend);
+		
+		JmsOfflineIndexerConsumer[] jerries = new JmsOfflineIndexerConsumer[2];
+		int[] expectedCounts = new int[jerries.length];
+		for (int i = 0; i < numberOfObjectsToSend; i++) {
+			int partition = StandardPartitioner.ENTITY_ID.partition(new EntityKey(Utils.SingleAttributeEntity.class.getName(), i), partitionCount);
+			expectedCounts[partition % jerries.length]++;
+		}
+		
+		Thread[] jerryThreads = new Thread[jerries.length];
+		for (int i = 0; i < jerries.length; i++) {
+			jerries[i] = new JmsOfflineIndexerConsumer("Jerry" + i,connectionFactory,
+					new DefaultIndexerService(
+							new DefaultIndexingPipeline(),
+							MemoryIndexWriterFactory.getInstance()));
+			jerries[i].setSubject("SEARCH.PARTITIONED");
+			jerries[i].setAssignedPartitions(PartitionAssignment.roundRobin(i, jerries.length, partitionCount));
+			jerries[i].stopWhenReceivedCountReaches(expectedCounts[i]);
+			jerryThreads[i] = new Thread(jerries[i]);
+			jerryThreads[i].start();
+		}
+		
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		
+		Thread tomThread = new Thread(tom);
+		tomThread.start();
+		
+		for (int i = 0; i < numberOfObjectsToSend; i++) {
+			offlineIndexer.create(new IndexObjectDto(new Utils.SingleAttributeEntity(i,"Julian" +i), i));
+		}
+		
+		tomThread.join();
+		for (int i = 0; i < jerries.length; i++) {
+			jerryThreads[i].join();
+			Assert.assertEquals(expectedCounts[i], jerries[i].getReceivedCount());
+		}
+		
+		Assert.assertEquals(numberOfObjectsToSend, MemoryIndex.getDefaultIndex().getObjectCount());
+	}
+	
+	@Test
+	public void FilteredConsumersReceiveOnlyTheirEntityClass() throws InterruptedException, IndexObjectException, SearchEngineMappingException {
+		MemoryIndex.newDefaultIndex();
+		Utils.configureAndMap(Utils.SingleAttributeEntity.class);
+		Utils.configureAndMap(Utils.DoubleAttributeEntity.class);
+		
+		int numberOfObjectsPerClass = 10;
+		
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom",connectionFactory);
+		tom.setSubject("SEARCH.FILTERED");
+		tom.setRoutingProperties(true);
+		tom.setBatchSize(4);
+		tom.stopWhenSentCountReaches(2 * numberOfObjectsPerClass);
+		
+		Class<?>[] entityClasses = { Utils.SingleAttributeEntity.class, Utils.DoubleAttributeEntity.class };
+		JmsOfflineIndexerConsumer[] jerries = new JmsOfflineIndexerConsumer[entityClasses.length];
+		Thread[] jerryThreads = new Thread[jerries.length];
+		for (int i = 0; i < jerries.length; i++) {
+			jerries[i] = new JmsOfflineIndexerConsumer("Jerry" + i,connectionFactory,
+					new DefaultIndexerService(
+							new DefaultIndexingPipeline(),
+							MemoryIndexWriterFactory.getInstance()));
+			jerries[i].setSubject("SEARCH.FILTERED");
+			jerries[i].setFilter(new IndexMessageFilter().addEntityClass(entityClasses[i]).addAction(IndexerAction.CREATE));
+			jerries[i].stopWhenReceivedCountReaches(numberOfObjectsPerClass);
+			jerryThreads[i] = new Thread(jerries[i]);
+			jerryThreads[i].start();
+		}
+		
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		
+		Thread tomThread = new Thread(tom);
+		tomThread.start();
+		
+		for (int i = 0; i < numberOfObjectsPerClass; i++) {
+			offlineIndexer.create(new IndexObjectDto(new Utils.SingleAttributeEntity(i,"Julian" +i), i));
+			offlineIndexer.create(new IndexObjectDto(new Utils.DoubleAttributeEntity(i,"Julian" +i, "Klas" + i), i));
+		}
+		
+		tomThread.join();
+		for (int i = 0; i < jerries.length; i++) {
+			jerryThreads[i].join();
+			Assert.assertEquals(numberOfObjectsPerClass, jerries[i].getReceivedCount());
+		}
+		
+		Assert.assertEquals(2 * numberOfObjectsPerClass, MemoryIndex.getDefaultIndex().getObjectCount());
+	}
+	
+	@Test
+	public void FilterBuildsSelectorOnRoutingProperties() {
+		Assert.assertNull(new IndexMessageFilter().toSelector());
+		
+		IndexMessageFilter filter = new IndexMessageFilter()
+			.addEntityClassName("com.acme.O'Brien")
+			.addAction(IndexerAction.CREATE)
+			.addAction(IndexerAction.DELETE)
+			.addIndexName("products");
+		
+		Assert.assertEquals("searchEntityClass IN ('com.acme.O''Brien')"
+				+ " AND searchAction IN ('CREATE', 'DELETE')"
+				+ " AND searchIndexName IN ('products')", filter.toSelector());
+	}
+	
+	@Test
+	public void EveryReplicaReceivesEveryObject() throws InterruptedException, IndexObjectException {
+		int numberOfObjectsToSend = 10;
+		
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom",connectionFactory);
+		tom.setSubject("SEARCH.REPLICATED");
+		tom.setReplicated(true);
+		tom.setHeartbeatIntervalMillis(100);
+		tom.stopWhenSentCountReaches(numberOfObjectsToSend);
+		
+		JmsOfflineIndexerConsumer[] replicas = new JmsOfflineIndexerConsumer[2];
+		Thread[] replicaThreads = new Thread[replicas.length];
+		for (int i = 0; i < replicas.length; i++) {
+			replicas[i] = new JmsOfflineIndexerConsumer("Replica" + i,connectionFactory);
+			replicas[i].setSubject("SEARCH.REPLICATED");
+			replicas[i].setReplicated(true);
+			replicas[i].setDurable(true);
+			replicas[i].stopWhenReceivedCountReaches(numberOfObjectsToSend);
+			replicaThreads[i] = new Thread(replicas[i]);
+			replicaThreads[i].start();
+			Assert.assertTrue(replicas[i].awaitStartup(10000));
+		}
+		
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		
+		Thread tomThread = new Thread(tom);
+		tomThread.start();
+		
+		for (int i = 0; i < numberOfObjectsToSend; i++) {
+			offlineIndexer.create(new IndexObjectDto(new Utils.SingleAttributeEntity(i,"Julian" +i), i));
+		}
+		
+		tomThread.join();
+		for (int i = 0; i < replicas.length; i++) {
+			replicaThreads[i].join();
+			Assert.assertEquals(numberOfObjectsToSend, replicas[i].getReceivedCount());
+			Assert.assertEquals(0, replicas[i].getReplicationLag());
+		}
+	}
+	
+	@Test
+	public void ReplicaForgetsPublishersThatAreGone() throws Exception {
+		int numberOfObjectsToSend = 10;
+		
+		JmsOfflineIndexerConsumer replica = new JmsOfflineIndexerConsumer("Replica",connectionFactory);
+		replica.setSubject("SEARCH.RESTARTED");
+		replica.setReplicated(true);
+		replica.setPublisherExpiryMillis(1000);
+		replica.stopWhenReceivedCountReaches(numberOfObjectsToSend);
+		
+		Thread replicaThread = new Thread(replica);
+		replicaThread.start();
+		Assert.assertTrue(replica.awaitStartup(10000));
+		
+		// an earlier run of Tom, which announced operations it never sent, and a producer gone for good
+		Connection connection = connectionFactory.createConnection();
+		try {
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			MessageProducer heartbeats = session.createProducer(session.createTopic("SEARCH.RESTARTED.HEARTBEAT"));
+			sendHeartbeat(session, heartbeats, "Tom@1", 50);
+			sendHeartbeat(session, heartbeats, "Spike@1", 5);
+		} finally {
+			connection.close();
+		}
+		
+		long deadline = System.currentTimeMillis() + 5000;
+		while(replica.getReplicationLag() < 55 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(55, replica.getReplicationLag());
+		
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom",connectionFactory);
+		tom.setSubject("SEARCH.RESTARTED");
+		tom.setReplicated(true);
+		tom.setHeartbeatIntervalMillis(100);
+		tom.stopWhenSentCountReaches(numberOfObjectsToSend);
+		
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+		
+		Thread tomThread = new Thread(tom);
+		tomThread.start();
+		
+		for (int i = 0; i < numberOfObjectsToSend; i++) {
+			offlineIndexer.create(new IndexObjectDto(new Utils.SingleAttributeEntity(i,"Julian" +i), i));
+		}
+		
+		tomThread.join();
+		replicaThread.join();
+		
+		// the current run of Tom replaces the earlier one
+		Assert.assertEquals(numberOfObjectsToSend, replica.getReceivedCount());
+		Assert.assertTrue(replica.getReplicationLag() <= 5);
+		
+		deadline = System.currentTimeMillis() + 5000;
+		while(replica.getReplicationLag() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(0, replica.getReplicationLag());
+	}
+	
+	@Test
+	public void RestartedConsumerRestoresSnapshotAndSkipsCoveredOperations() throws Exception {
+		Utils.configureAndMap(Utils.SingleAttributeEntity.class);
+		
+		File snapshotFile = File.createTempFile("index", ".snapshot");
+		snapshotFile.delete();
+		snapshotFile.deleteOnExit();
+		
+		// keeps the broker up between both consumers
+		Connection connection = connectionFactory.createConnection();
+		try {
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			MessageProducer producer = session.createProducer(session.createQueue("SEARCH.SNAPSHOT"));
+			
+			MemoryIndex.newDefaultIndex();
+			sendSequenced(session, producer, 1, 10);
+			
+			JmsOfflineIndexerConsumer jerry = snapshottingConsumer(snapshotFile, 10);
+			Thread jerryThread = new Thread(jerry);
+			jerryThread.start();
+			jerryThread.join();
+			
+			Assert.assertTrue(snapshotFile.exists());
+			Assert.assertEquals(10, jerry.getSnapshotter().getDocumentCount());
+			
+			// a new node, with an empty index, gets the last two operations again
+			MemoryIndex.newDefaultIndex();
+			sendSequenced(session, producer, 9, 15);
+			
+			JmsOfflineIndexerConsumer restarted = snapshottingConsumer(snapshotFile, 7);
+			Thread restartedThread = new Thread(restarted);
+			restartedThread.start();
+			restartedThread.join();
+			
+			Assert.assertEquals(2, restarted.getSkippedCount());
+			Assert.assertEquals(15, restarted.getSnapshotter().getDocumentCount());
+			Assert.assertEquals(15, MemoryIndex.getDefaultIndex().getObjectCount());
+		} finally {
+			connection.close();
+		}
+	}
+	
+	@Test
+	public void DeadLetteredOperationIsLeftOutOfSnapshot() throws Exception {
+		MemoryIndex.newDefaultIndex();
+		Utils.configureAndMap(Utils.SingleAttributeEntity.class);
+		
+		File snapshotFile = File.createTempFile("index", ".snapshot");
+		snapshotFile.delete();
+		snapshotFile.deleteOnExit();
+		
+		Connection connection = connectionFactory.createConnection();
+		try {
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			sendSequenced(session, session.createProducer(session.createQueue("SEARCH.SNAPSHOT.POISONED")), 1, 10);
+			
+			JmsOfflineIndexerConsumer jerry = new JmsOfflineIndexerConsumer("Jerry",connectionFactory, failingIndexerService(3, Integer.MAX_VALUE));
+			jerry.setSubject("SEARCH.SNAPSHOT.POISONED");
+			jerry.setSnapshotter(new IndexSnapshotter(snapshotFile, 60000));
+			jerry.stopWhenReceivedCountReaches(10);
+			
+			Thread jerryThread = new Thread(jerry);
+			jerryThread.start();
+			jerryThread.join();
+			
+			Assert.assertEquals(1, jerry.getDeadLetteredCount());
+			Assert.assertEquals(9, jerry.getSnapshotter().getDocumentCount());
+		} finally {
+			connection.close();
+		}
+	}
+	
+	@Test
+	public void FailingOperationIsRetriedUntilItIsIndexed() throws Exception {
+		MemoryIndex.newDefaultIndex();
+		Utils.configureAndMap(Utils.SingleAttributeEntity.class);
+		
+		Connection connection = connectionFactory.createConnection();
+		try {
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			sendSequenced(session, session.createProducer(session.createQueue("SEARCH.RETRIED")), 1, 10);
+			
+			JmsOfflineIndexerConsumer jerry = new JmsOfflineIndexerConsumer("Jerry",connectionFactory, failingIndexerService(3, 2));
+			jerry.setSubject("SEARCH.RETRIED");
+			jerry.setRetryPolicy(new RetryPolicy(3, 10, 10));
+			jerry.stopWhenReceivedCountReaches(10);
+			
+			Thread jerryThread = new Thread(jerry);
+			jerryThread.start();
+			jerryThread.join();
+			
+			Assert.assertEquals(10, MemoryIndex.getDefaultIndex().getObjectCount());
+			Assert.assertEquals(2, jerry.getMetrics().meter("indexRetries").getCount());
+			Assert.assertEquals(0, jerry.getDeadLetteredCount());
+		} finally {
+			connection.close();
+		}
+	}
+	
+	@Test
+	public void PartlyAppliedBulkIsReplayedWithoutDuplicates() throws Exception {
+		MemoryIndex.newDefaultIndex();
+		Utils.configureAndMap(Utils.SingleAttributeEntity.class);
+		
+		Connection connection = connectionFactory.createConnection();
+		try {
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			sendSequenced(session, session.createProducer(session.createQueue("SEARCH.REPLAYED")), 1, 10);
+			
+			JmsOfflineIndexerConsumer jerry = new JmsOfflineIndexerConsumer("Jerry",connectionFactory, partlyFailingBulkIndexerService());
+			jerry.setSubject("SEARCH.REPLAYED");
+			jerry.setBulkSize(10);
+			jerry.setBulkTimeoutMillis(1000);
+			jerry.setAckMode("CLIENT_ACKNOWLEDGE");
+			jerry.stopWhenReceivedCountReaches(10);
+			
+			Thread jerryThread = new Thread(jerry);
+			jerryThread.start();
+			jerryThread.join();
+			
+			Assert.assertEquals(10, MemoryIndex.getDefaultIndex().getObjectCount());
+			Assert.assertEquals(0, jerry.getMetrics().meter("indexFailures").getCount());
+			Assert.assertEquals(0, jerry.getDeadLetteredCount());
+		} finally {
+			connection.close();
+		}
+	}
+	
+	@Test
+	public void OperationFailingForGoodIsDeadLettered() throws Exception {
+		MemoryIndex.newDefaultIndex();
+		Utils.configureAndMap(Utils.SingleAttributeEntity.class);
+		
+		Connection connection = connectionFactory.createConnection();
+		try {
+			connection.start();
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			sendSequenced(session, session.createProducer(session.createQueue("SEARCH.POISONED")), 1, 10);
+			
+			JmsOfflineIndexerConsumer jerry = new JmsOfflineIndexerConsumer("Jerry",connectionFactory, failingIndexerService(3, Integer.MAX_VALUE));
+			jerry.setSubject("SEARCH.POISONED");
+			jerry.setRetryPolicy(new RetryPolicy(2, 10, 10));
+			jerry.stopWhenReceivedCountReaches(10);
+			
+			Thread jerryThread = new Thread(jerry);
+			jerryThread.start();
+			jerryThread.join();
+			
+			Assert.assertEquals(9, MemoryIndex.getDefaultIndex().getObjectCount());
+			Assert.assertEquals(1, jerry.getDeadLetteredCount());
+			
+			MessageConsumer deadLetters = session.createConsumer(session.createQueue("SEARCH.POISONED.DLQ"));
+			ObjectMessage deadLetter = (ObjectMessage) deadLetters.receive(5000);
+			
+			Assert.assertNotNull(deadLetter);
+			Assert.assertEquals(3, ((JmsIndexPDU) deadLetter.getObject()).getIndexObjectDto().getId());
+			Assert.assertEquals(IndexObjectException.class.getName(), deadLetter.getStringProperty(JmsIndexMessageProperties.ERROR));
+			Assert.assertEquals(2, deadLetter.getIntProperty(JmsIndexMessageProperties.ATTEMPTS));
+			Assert.assertEquals("Jerry", deadLetter.getStringProperty(JmsIndexMessageProperties.FAILED_BY));
+		} finally {
+			connection.close();
+		}
+	}
+	
+	@Test
+	public void UnreadableMessageIsDeadLetteredAndConsumerGoesOn() throws Exception {
+		MemoryIndex.newDefaultIndex();
+		Utils.configureAndMap(Utils.SingleAttributeEntity.class);
+		
+		Connection connection = connectionFactory.createConnection();
+		try {
+			connection.start();
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			MessageProducer producer = session.createProducer(session.createQueue("SEARCH.UNREADABLE"));
+			
+			BytesMessage garbage = session.createBytesMessage();
+			garbage.setStringProperty(JmsIndexMessageProperties.CODEC, BinaryIndexCodec.NAME);
+			garbage.writeBytes(new byte[] { 42, 42, 42 });
+			producer.send(garbage);
+			sendSequenced(session, producer, 1, 1);
+			
+			JmsOfflineIndexerConsumer jerry = new JmsOfflineIndexerConsumer("Jerry",connectionFactory,
+					new DefaultIndexerService(
+							new DefaultIndexingPipeline(),
+							MemoryIndexWriterFactory.getInstance()));
+			jerry.setSubject("SEARCH.UNREADABLE");
+			jerry.stopWhenReceivedCountReaches(2);
+			
+			Thread jerryThread = new Thread(jerry);
+			jerryThread.start();
+			jerryThread.join();
+			
+			Assert.assertEquals(1, MemoryIndex.getDefaultIndex().getObjectCount());
+			
+			MessageConsumer deadLetters = session.createConsumer(session.createQueue("SEARCH.UNREADABLE.DLQ"));
+			BytesMessage deadLetter = (BytesMessage) deadLetters.receive(5000);
+			
+			Assert.assertNotNull(deadLetter);
+			Assert.assertEquals(3, deadLetter.getBodyLength());
+			Assert.assertEquals(MessageFormatException.class.getName(), deadLetter.getStringProperty(JmsIndexMessageProperties.ERROR));
+			Assert.assertEquals("queue://SEARCH.UNREADABLE", deadLetter.getStringProperty(JmsIndexMessageProperties.ORIGIN));
+		} finally {
+			connection.close();
+		}
+	}
+	
+	@Test
+	public void ConsumerReconnectsAfterBrokerRestart() throws Exception {
+		MemoryIndex.newDefaultIndex();
+		Utils.configureAndMap(Utils.SingleAttributeEntity.class);
+		
+		// the vm transport doesn't tell clients that the broker stopped
+		ServerSocket socket = new ServerSocket(0);
+		String brokerUrl = "tcp://localhost:" + socket.getLocalPort();
+		socket.close();
+		
+		BrokerService broker = startBroker(brokerUrl);
+		ActiveMQConnectionFactory restartingBroker = new ActiveMQConnectionFactory(brokerUrl);
+		
+		JmsOfflineIndexerConsumer jerry = new JmsOfflineIndexerConsumer("Jerry",restartingBroker,
+				new DefaultIndexerService(
+						new DefaultIndexingPipeline(),
+						MemoryIndexWriterFactory.getInstance()));
+		jerry.setSubject("SEARCH.RECONNECTED");
+		jerry.setReconnectPolicy(new RetryPolicy(20, 10, 100));
+		jerry.stopWhenReceivedCountReaches(10);
+		
+		Thread jerryThread = new Thread(jerry);
+		jerryThread.start();
+		Assert.assertTrue(jerry.awaitStartup(5000));
+		
+		broker.stop();
+		broker.waitUntilStopped();
+		broker = startBroker(brokerUrl);
+		
+		try {
+			long deadline = System.currentTimeMillis() + 5000;
+			while(jerry.getReconnectCount() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(1, jerry.getReconnectCount());
+			
+			JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom",restartingBroker);
+			tom.setSubject("SEARCH.RECONNECTED");
+			tom.stopWhenSentCountReaches(10);
+			
+			Thread tomThread = new Thread(tom);
+			tomThread.start();
+			
+			JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+			for (int i = 0; i < 10; i++) {
+				offlineIndexer.create(new IndexObjectDto(new Utils.SingleAttributeEntity(i,"Julian" +i), i));
+			}
+			
+			tomThread.join();
+			jerryThread.join();
+			
+			Assert.assertEquals(10, jerry.getReceivedCount());
+			Assert.assertEquals(10, MemoryIndex.getDefaultIndex().getObjectCount());
+		} finally {
+			broker.stop();
+		}
+	}
+	
+	@Test
+	public void PoolGrowsWithLagAndShrinksWhenIdle() throws Exception {
+		int[] peaks = drainScalingPool(true);
+		
+		Assert.assertTrue(peaks[0] > 1);
+		Assert.assertTrue(peaks[1] > 1);
+	}
+	
+	@Test
+	public void PoolWithoutMessageGroupsScalesOnlyWorkers() throws Exception {
+		int[] peaks = drainScalingPool(false);
+		
+		Assert.assertEquals(1, peaks[0]);
+		Assert.assertTrue(peaks[1] > 1);
+	}
+	
+	/**
+	 * Drains 200 slow operations with a scaling pool, returning the most
+	 * receivers and workers seen.
+	 */
+	private int[] drainScalingPool(boolean messageGroups) throws Exception {
+		MemoryIndex.newDefaultIndex();
+		Utils.configureAndMap(Utils.SingleAttributeEntity.class);
+		
+		BrokerService broker = new BrokerService();
+		broker.setBrokerName("scaling");
+		broker.setPersistent(false);
+		broker.setUseJmx(false);
+		broker.setPlugins(new BrokerPlugin[] {new StatisticsBrokerPlugin()});
+		broker.start();
+		
+		// receivers only share the backlog if they don't prefetch it
+		ActiveMQConnectionFactory scalingBroker = new ActiveMQConnectionFactory("vm://scaling?create=false&jms.prefetchPolicy.queuePrefetch=1");
+		
+		try {
+			Connection connection = scalingBroker.createConnection();
+			try {
+				Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+				sendSequenced(session, session.createProducer(session.createQueue("SEARCH.SCALING")), 1, 200);
+			} finally {
+				connection.close();
+			}
+			
+			JmsOfflineIndexerConsumerPool jerries = new JmsOfflineIndexerConsumerPool("Jerry",scalingBroker,slowIndexerService(2));
+			jerries.setSubject("SEARCH.SCALING");
+			jerries.setMessageGroups(messageGroups);
+			jerries.setReceiverCount(1);
+			jerries.setWorkerCount(1);
+			jerries.setScalingPolicy(new ScalingPolicy(1, 4, 1, 4, 50, 20, 100));
+			
+			Thread jerriesThread = new Thread(jerries);
+			jerriesThread.start();
+			
+			int[] peaks = new int[2];
+			long deadline = System.currentTimeMillis() + 10000;
+			while(jerries.getIndexedCount() < 200 && System.currentTimeMillis() < deadline) {
+				peaks[0] = Math.max(peaks[0], jerries.getActiveReceiverCount());
+				peaks[1] = Math.max(peaks[1], jerries.getWorkerCount());
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(200, jerries.getIndexedCount());
+			Assert.assertEquals(200, MemoryIndex.getDefaultIndex().getObjectCount());
+			Assert.assertTrue(jerries.getMetrics().meter("scaleUps").getCount() > 0);
+			
+			deadline = System.currentTimeMillis() + 5000;
+			while((jerries.getActiveReceiverCount() > 1 || jerries.getWorkerCount() > 1) && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(1, jerries.getActiveReceiverCount());
+			Assert.assertEquals(1, jerries.getWorkerCount());
+			Assert.assertEquals(0, jerries.getLag());
+			Assert.assertTrue(jerries.getMetrics().meter("scaleDowns").getCount() > 0);
+			
+			jerries.shutdown();
+			jerriesThread.join();
+			
+			return peaks;
+		} finally {
+			broker.stop();
+		}
+	}
+	
+	@Test
+	public void ScalingPolicyKeepsThreadsWithinBounds() {
+		ScalingPolicy policy = new ScalingPolicy(2, 8, 1, 4, 100);
+		
+		Assert.assertEquals(2, policy.receiversFor(0));
+		Assert.assertEquals(1, policy.workersFor(0));
+		Assert.assertEquals(3, policy.receiversFor(201));
+		Assert.assertEquals(3, policy.workersFor(300));
+		Assert.assertEquals(8, policy.receiversFor(Long.MAX_VALUE));
+		Assert.assertEquals(4, policy.workersFor(Long.MAX_VALUE));
+		
+		try {
+			new ScalingPolicy(2, 1, 1, 4, 100);
+			Assert.fail("Receiver bounds are reversed");
+		} catch (IllegalArgumentException expected) {}
+	}
+	
+	@Test
+	public void IndexerStampsGrowingVersions() throws IndexObjectException {
+		final List<JmsIndexPDU> enqueued = new ArrayList<JmsIndexPDU>();
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(new OfflineIndexTransport() {
+			@Override
+			public void enqueue(JmsIndexPDU pdu) {
+				enqueued.add(pdu);
+			}
+		});
+		
+		offlineIndexer.create(new Utils.SingleAttributeEntity(1,"Julian"));
+		offlineIndexer.setVersioning(true);
+		for (int i = 0; i < 100; i++) {
+			offlineIndexer.update(new Utils.SingleAttributeEntity(1,"Julian" + i));
+		}
+		
+		Assert.assertEquals(0, enqueued.get(0).getVersion());
+		for (int i = 2; i < enqueued.size(); i++) {
+			Assert.assertTrue(enqueued.get(i).getVersion() > enqueued.get(i - 1).getVersion());
+		}
+	}
+	
+	@Test
+	public void SupersededOperationsAreSkippedWhenVersionsAreChecked() throws Exception {
+		MemoryIndex.newDefaultIndex();
+		Utils.configureAndMap(Utils.SingleAttributeEntity.class);
+		
+		Connection connection = connectionFactory.createConnection();
+		try {
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			MessageProducer producer = session.createProducer(session.createQueue("SEARCH.VERSIONED"));
+			
+			// the delete of 3 and the second update of 5 overtake older operations
+			sendVersioned(session, producer, IndexerAction.DELETE, 3, 100);
+			sendVersioned(session, producer, IndexerAction.UPDATE, 5, 101);
+			for (int i = 1; i <= 10; i++) {
+				sendVersioned(session, producer, IndexerAction.CREATE, i, i);
+			}
+			sendVersioned(session, producer, IndexerAction.UPDATE, 5, 50);
+			
+			JmsOfflineIndexerConsumerPool jerries = new JmsOfflineIndexerConsumerPool("Jerry",connectionFactory,
+					new DefaultIndexerService(
+							new DefaultIndexingPipeline(),
+							MemoryIndexWriterFactory.getInstance()));
+			jerries.setSubject("SEARCH.VERSIONED");
+			jerries.setWorkerCount(4);
+			jerries.setVersionCheck(true);
+			jerries.stopWhenIndexedCountReaches(13);
+			
+			Thread jerriesThread = new Thread(jerries);
+			jerriesThread.start();
+			jerriesThread.join();
+			
+			Assert.assertEquals(13, jerries.getIndexedCount());
+			Assert.assertEquals(3, jerries.getMetrics().meter("staleSkipped").getCount());
+			Assert.assertEquals(0, jerries.getMetrics().meter("indexFailures").getCount());
+			Assert.assertEquals(9, MemoryIndex.getDefaultIndex().getObjectCount());
+		} finally {
+			connection.close();
+		}
+	}
+	
+	@Test
+	public void EntitiesWithCollidingHashesAreVersionedApart() throws Exception {
+		MemoryIndex.newDefaultIndex();
+		Utils.configureAndMap(Utils.SingleAttributeEntity.class);
+		
+		Connection connection = connectionFactory.createConnection();
+		try {
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			MessageProducer producer = session.createProducer(session.createQueue("SEARCH.COLLIDING"));
+			
+			// both ids hash the same, but the older version is on another entity
+			sendVersioned(session, producer, IndexerAction.CREATE, new CollidingId(1), 100);
+			sendVersioned(session, producer, IndexerAction.CREATE, new CollidingId(2), 50);
+			
+			JmsOfflineIndexerConsumerPool jerries = new JmsOfflineIndexerConsumerPool("Jerry",connectionFactory,
+					new DefaultIndexerService(
+							new DefaultIndexingPipeline(),
+							MemoryIndexWriterFactory.getInstance()));
+			jerries.setSubject("SEARCH.COLLIDING");
+			jerries.setVersionCheck(true);
+			jerries.stopWhenIndexedCountReaches(2);
+			
+			Thread jerriesThread = new Thread(jerries);
+			jerriesThread.start();
+			jerriesThread.join();
+			
+			Assert.assertEquals(2, jerries.getIndexedCount());
+			Assert.assertEquals(0, jerries.getMetrics().meter("staleSkipped").getCount());
+		} finally {
+			connection.close();
+		}
+	}
+	
+	@Test
+	public void RetriedEntityDoesNotHoldUpOthersWhenVersionsAreChecked() throws Exception {
+		MemoryIndex.newDefaultIndex();
+		Utils.configureAndMap(Utils.SingleAttributeEntity.class);
+		
+		final long[] failedAt = new long[1];
+		final long[] otherIndexedAt = new long[1];
+		IndexerService indexerService = new DefaultIndexerService(new DefaultIndexingPipeline(), MemoryIndexWriterFactory.getInstance()) {
+			@Override
+			public void createOrUpdate(IndexObjectDto indexObjectDto) throws IndexObjectException {
+				if(new CollidingId(1).equals(indexObjectDto.getId()) && failedAt[0] == 0) {
+					failedAt[0] = System.currentTimeMillis();
+					throw new IndexObjectException("Index is locked");
+				}
+				if(new CollidingId(2).equals(indexObjectDto.getId())) {
+					otherIndexedAt[0] = System.currentTimeMillis();
+				}
+				if(Integer.valueOf(3).equals(indexObjectDto.getId())) {
+					// lets the retried entity fail first
+					try {
+						Thread.sleep(200);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				super.createOrUpdate(indexObjectDto);
+			}
+		};
+		
+		Connection connection = connectionFactory.createConnection();
+		try {
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			MessageProducer producer = session.createProducer(session.createQueue("SEARCH.RETRIED.VERSIONED"));
+			
+			// both colliding entities share a lock stripe, and go to different workers
+			List<JmsIndexPDU> pdus = new ArrayList<JmsIndexPDU>();
+			pdus.add(versionedUpdate(new CollidingId(1), 1, 1));
+			pdus.add(versionedUpdate(3, 3, 2));
+			pdus.add(versionedUpdate(4, 4, 3));
+			pdus.add(versionedUpdate(new CollidingId(2), 2, 4));
+			producer.send(session.createObjectMessage(new JmsIndexBatchPDU(pdus)));
+			
+			JmsOfflineIndexerConsumerPool jerries = new JmsOfflineIndexerConsumerPool("Jerry",connectionFactory, indexerService);
+			jerries.setSubject("SEARCH.RETRIED.VERSIONED");
+			jerries.setWorkerCount(2);
+			jerries.setVersionCheck(true);
+			jerries.setRetryPolicy(new RetryPolicy(2, 1000, 1000));
+			jerries.stopWhenIndexedCountReaches(4);
+			
+			Thread jerriesThread = new Thread(jerries);
+			jerriesThread.start();
+			jerriesThread.join();
+			
+			Assert.assertEquals(0, jerries.getMetrics().meter("indexFailures").getCount());
+			Assert.assertTrue(otherIndexedAt[0] > failedAt[0]);
+			Assert.assertTrue(otherIndexedAt[0] - failedAt[0] < 500);
+		} finally {
+			connection.close();
+		}
+	}
+	
+	@Test
+	public void DuplicateMessagesAreSkipped() throws Exception {
+		MemoryIndex.newDefaultIndex();
+		Utils.configureAndMap(Utils.SingleAttributeEntity.class);
+		
+		Connection connection = connectionFactory.createConnection();
+		try {
+			Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			MessageProducer producer = session.createProducer(session.createQueue("SEARCH.DUPLICATED"));
+			sendSequenced(session, producer, 1, 10);
+			// sent again by the producer, with the same sequences
+			sendSequenced(session, producer, 3, 5);
+			
+			JmsOfflineIndexerConsumer jerry = new JmsOfflineIndexerConsumer("Jerry",connectionFactory,
+					new DefaultIndexerService(
+							new DefaultIndexingPipeline(),
+							MemoryIndexWriterFactory.getInstance()));
+			jerry.setSubject("SEARCH.DUPLICATED");
+			jerry.setAckMode("DUPS_OK_ACKNOWLEDGE");
+			jerry.setDeduplicator(new MessageDeduplicator());
+			jerry.stopWhenReceivedCountReaches(13);
+			
+			Thread jerryThread = new Thread(jerry);
+			jerryThread.start();
+			jerryThread.join();
+			
+			Assert.assertEquals(13, jerry.getReceivedCount());
+			Assert.assertEquals(3, jerry.getDuplicateCount());
+			Assert.assertEquals(10, jerry.getMetrics().histogram("indexLatencyNanos.CREATE").getCount());
+			Assert.assertEquals(10, MemoryIndex.getDefaultIndex().getObjectCount());
+		} finally {
+			connection.close();
+		}
+	}
+	
+	private static BrokerService startBroker(String url) throws Exception {
+		BrokerService broker = new BrokerService();
+		broker.setBrokerName("restarting");
+		broker.setPersistent(false);
+		broker.setUseJmx(false);
+		broker.addConnector(url);
+		broker.start();
+		return broker;
+	}
+	
+	/**
+	 * Fails to create the entity with the given id as many times as told.
+	 */
+	/**
+	 * Bulk creates give up half way through, and creating an entity twice
+	 * fails.
+	 */
+	private static IndexerService partlyFailingBulkIndexerService() {
+		return new DefaultIndexerService(new DefaultIndexingPipeline(), MemoryIndexWriterFactory.getInstance()) {
+			private final Set<Serializable> indexed = new HashSet<Serializable>();
+			
+			@Override
+			public void create(IndexObjectDto indexObjectDto) throws IndexObjectException {
+				if(!indexed.add(indexObjectDto.getId())) {
+					throw new IndexObjectException("Already indexed: " + indexObjectDto.getId());
+				}
+				super.create(indexObjectDto);
+			}
+			
+			@Override
+			public void createOrUpdate(IndexObjectDto indexObjectDto) throws IndexObjectException {
+				indexed.add(indexObjectDto.getId());
+				super.createOrUpdate(indexObjectDto);
+			}
+			
+			@Override
+			public void bulkDtoCreate(List<IndexObjectDto> indexObjectDtos) throws IndexObjectException {
+				for (IndexObjectDto indexObjectDto : indexObjectDtos.subList(0, indexObjectDtos.size() / 2)) {
+					create(indexObjectDto);
+				}
+				throw new IndexObjectException("Index writer closed");
+			}
+		};
+	}
+	
+	private static IndexerService failingIndexerService(final int failingId, final int failures) {
+		return new DefaultIndexerService(new DefaultIndexingPipeline(), MemoryIndexWriterFactory.getInstance()) {
+			private int failed = 0;
+			
+			@Override
+			public void create(IndexObjectDto indexObjectDto) throws IndexObjectException {
+				if(Integer.valueOf(failingId).equals(indexObjectDto.getId()) && failed < failures) {
+					failed++;
+					throw new IndexObjectException("Index is locked");
+				}
+				super.create(indexObjectDto);
+			}
+		};
+	}
+	
+	/**
+	 * Takes its time to index every object.
+	 */
+	private static IndexerService slowIndexerService(final long millisPerObject) {
+		return new DefaultIndexerService(new DefaultIndexingPipeline(), MemoryIndexWriterFactory.getInstance()) {
+			@Override
+			public void create(IndexObjectDto indexObjectDto) throws IndexObjectException {
+				try {
+					Thread.sleep(millisPerObject);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.create(indexObjectDto);
+			}
+		};
+	}
+	
+	private JmsOfflineIndexerConsumer snapshottingConsumer(File snapshotFile, int receivedCountToStop) {
+		JmsOfflineIndexerConsumer jerry = new JmsOfflineIndexerConsumer("Jerry",connectionFactory,
+				new DefaultIndexerService(
+						new DefaultIndexingPipeline(),
+						MemoryIndexWriterFactory.getInstance()));
+		jerry.setSubject("SEARCH.SNAPSHOT");
+		jerry.setSnapshotter(new IndexSnapshotter(snapshotFile, 60000));
+		jerry.stopWhenReceivedCountReaches(receivedCountToStop);
+		return jerry;
+	}
+	
+	private void sendVersioned(Session session, MessageProducer producer, IndexerAction action, int id, long version) throws JMSException {
+		JmsIndexPDU pdu = new JmsIndexPDU(action, new IndexObjectDto(new Utils.SingleAttributeEntity(id,"Julian" + version), id));
+		pdu.setVersion(version);
+		producer.send(session.createObjectMessage(pdu));
+	}
+	
+	private void sendVersioned(Session session, MessageProducer producer, IndexerAction action, CollidingId id, long version) throws JMSException {
+		JmsIndexPDU pdu = new JmsIndexPDU(action, new IndexObjectDto(new Utils.SingleAttributeEntity(id.value,"Julian" + version), id));
+		pdu.setVersion(version);
+		producer.send(session.createObjectMessage(pdu));
+	}
+	
+	private static JmsIndexPDU versionedUpdate(Serializable id, int entityId, long version) {
+		JmsIndexPDU pdu = new JmsIndexPDU(IndexerAction.UPDATE, new IndexObjectDto(new Utils.SingleAttributeEntity(entityId,"Julian" + entityId), id));
+		pdu.setVersion(version);
+		return pdu;
+	}
+	
+	/**
+	 * An id whose hash is the same whatever its value.
+	 */
+	private static class CollidingId implements Serializable {
+		private static final long serialVersionUID = 1L;
+		
+		private final int value;
+		
+		private CollidingId(int value) {
+			this.value = value;
+		}
+		
+		@Override
+		public int hashCode() {
+			return 0;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof CollidingId && ((CollidingId) obj).value == value;
+		}
+	}
+	
+	private void sendSequenced(Session session, MessageProducer producer, int firstSequence, int lastSequence) throws JMSException {
+		for (int sequence = firstSequence; sequence <= lastSequence; sequence++) {
+			IndexObjectDto dto = new IndexObjectDto(new Utils.SingleAttributeEntity(sequence,"Julian" + sequence), sequence);
+			Message message = session.createObjectMessage(new JmsIndexPDU(IndexerAction.CREATE, dto));
+			message.setStringProperty(JmsIndexMessageProperties.PUBLISHER, "Tom@1");
+			message.setLongProperty(JmsIndexMessageProperties.SEQUENCE, sequence);
+			producer.send(message);
+		}
+	}
+	
+	private void sendHeartbeat(Session session, MessageProducer producer, String publisher, long sequence) throws JMSException {
+		Message heartbeat = session.createMessage();
+		heartbeat.setStringProperty(JmsIndexMessageProperties.PUBLISHER, publisher);
+		heartbeat.setLongProperty(JmsIndexMessageProperties.SEQUENCE, sequence);
+		producer.send(heartbeat);
+	}
+	
 	private void sendEntitiesOverJms(Serializable[] entities, Serializable[] ids) throws IndexObjectException, InterruptedException {
 		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom",connectionFactory);
     	JmsOfflineIndexerConsumer jerry = new JmsOfflineIndexerConsumer("Jerry",connectionFactory);
@@ -132,8 +1461,14 @@ public class JmsOfflineIndexerTest {
 	}
 
 	private void sendEntitiesOverJmsForIndexing(Serializable[] entities, Serializable[] ids, IndexerService indexerService) throws IndexObjectException, InterruptedException {
-		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom",connectionFactory);
-    	JmsOfflineIndexerConsumer jerry = new JmsOfflineIndexerConsumer("Jerry",connectionFactory,indexerService);
+		sendEntitiesOverJmsForIndexing(new JmsOfflineIndexerProducer("Tom",connectionFactory), entities, ids, indexerService);
+	}
+
+	private void sendEntitiesOverJmsForIndexing(JmsOfflineIndexerProducer tom, Serializable[] entities, Serializable[] ids, IndexerService indexerService) throws IndexObjectException, InterruptedException {
+		sendEntitiesOverJmsForIndexing(tom, new JmsOfflineIndexerConsumer("Jerry",connectionFactory,indexerService), entities, ids);
+	}
+
+	private void sendEntitiesOverJmsForIndexing(JmsOfflineIndexerProducer tom, JmsOfflineIndexerConsumer jerry, Serializable[] entities, Serializable[] ids) throws IndexObjectException, InterruptedException {
         
         JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
                 
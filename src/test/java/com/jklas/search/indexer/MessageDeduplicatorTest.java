@@ -0,0 +1,75 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.jklas.search.indexer.jms.MessageDeduplicator;
+
+public class MessageDeduplicatorTest {
+
+	@Test
+	public void RecordedIdsAreDuplicates() {
+		MessageDeduplicator deduplicator = new MessageDeduplicator();
+		deduplicator.record("Tom@1:1");
+
+		Assert.assertTrue(deduplicator.isDuplicate("Tom@1:1", false));
+		Assert.assertFalse(deduplicator.isDuplicate("Tom@1:2", false));
+		Assert.assertFalse(deduplicator.isDuplicate("Tom@1:2", true));
+	}
+
+	@Test
+	public void IdsEvictedFromExactSetAreDuplicatesOnlyWhenRedelivered() {
+		MessageDeduplicator deduplicator = new MessageDeduplicator(1000, 2, 60000);
+		deduplicator.record("a");
+		deduplicator.record("b");
+		deduplicator.record("c");
+
+		Assert.assertEquals(2, deduplicator.getExactSize());
+		Assert.assertFalse(deduplicator.isDuplicate("a", false));
+		Assert.assertTrue(deduplicator.isDuplicate("a", true));
+	}
+
+	@Test
+	public void IdsAreForgottenAfterTwoGenerations() {
+		MessageDeduplicator deduplicator = new MessageDeduplicator(2, 1, 60000);
+		for (String id : new String[] {"a", "b", "c", "d"}) {
+			deduplicator.record(id);
+		}
+
+		Assert.assertTrue(deduplicator.isDuplicate("a", true));
+
+		deduplicator.record("e");
+
+		Assert.assertFalse(deduplicator.isDuplicate("a", true));
+		Assert.assertTrue(deduplicator.isDuplicate("c", true));
+	}
+
+	@Test
+	public void InvalidCapacitiesAreRejected() {
+		try {
+			new MessageDeduplicator(0, 10, 60000);
+			Assert.fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+}
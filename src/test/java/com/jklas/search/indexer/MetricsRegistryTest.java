@@ -0,0 +1,111 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.jklas.search.indexer.jms.Gauge;
+import com.jklas.search.indexer.jms.Histogram;
+import com.jklas.search.indexer.jms.Meter;
+import com.jklas.search.indexer.jms.MetricsRegistry;
+
+public class MetricsRegistryTest {
+
+	@Test
+	public void HistogramPercentilesAreWithinBucketPrecision() {
+		Histogram histogram = new Histogram();
+		for (int i = 1; i <= 1000; i++) {
+			histogram.update(i * 1000L);
+		}
+
+		Assert.assertEquals(1000, histogram.getCount());
+		Assert.assertEquals(1000000, histogram.getMax());
+		Assert.assertEquals(500500.0, histogram.getMean(), 0.001);
+
+		assertWithin(500000, histogram.getMedian());
+		assertWithin(990000, histogram.get99thPercentile());
+		assertWithin(999000, histogram.get999thPercentile());
+	}
+
+	@Test
+	public void SmallValuesAreExact() {
+		Histogram histogram = new Histogram();
+		for (int i = 0; i < 10; i++) {
+			histogram.update(i);
+		}
+
+		Assert.assertEquals(4, histogram.getMedian());
+		Assert.assertEquals(9, histogram.get99thPercentile());
+	}
+
+	@Test
+	public void MetricsAreRegisteredOnce() {
+		MetricsRegistry registry = new MetricsRegistry("Test", "once");
+
+		Meter meter = registry.meter("sent");
+		meter.mark(3);
+
+		Assert.assertSame(meter, registry.meter("sent"));
+		Assert.assertEquals(3, registry.meter("sent").getCount());
+
+		try {
+			registry.histogram("sent");
+			Assert.fail();
+		} catch (IllegalArgumentException expected) {}
+	}
+
+	@Test
+	public void MetricsArePublishedAsMBeans() throws JMException {
+		MetricsRegistry registry = new MetricsRegistry("Test", "jmx");
+		registry.meter("sent").mark(2);
+		registry.histogram("latency").update(42);
+		registry.gauge("depth", new Gauge() {
+			@Override
+			public long getValue() {
+				return 7;
+			}
+		});
+
+		registry.registerMBeans();
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			Assert.assertEquals(2L, server.getAttribute(new ObjectName(MetricsRegistry.DOMAIN + ":type=Test,name=\"jmx\",metric=sent"), "Count"));
+			Assert.assertEquals(42L, server.getAttribute(new ObjectName(MetricsRegistry.DOMAIN + ":type=Test,name=\"jmx\",metric=latency"), "Max"));
+			Assert.assertEquals(7L, server.getAttribute(new ObjectName(MetricsRegistry.DOMAIN + ":type=Test,name=\"jmx\",metric=depth"), "Value"));
+		} finally {
+			registry.unregisterMBeans();
+		}
+
+		Assert.assertFalse(server.isRegistered(new ObjectName(MetricsRegistry.DOMAIN + ":type=Test,name=\"jmx\",metric=sent")));
+	}
+
+	private void assertWithin(long expected, long actual) {
+		Assert.assertTrue(actual + " is not within 12.5% of " + expected, Math.abs(actual - expected) <= expected / 8);
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.jklas.search.indexer.jms.EntityKey;
+import com.jklas.search.indexer.jms.PartitionAssignment;
+import com.jklas.search.indexer.jms.StandardPartitioner;
+
+public class PartitionAssignmentTest {
+
+	@Test
+	public void AssignmentWithRangesIsParsed() {
+		Assert.assertTrue(Arrays.equals(new int[] {0, 2, 4, 5, 6}, PartitionAssignment.parse("0, 2,4-6")));
+	}
+
+	@Test
+	public void InvalidAssignmentIsRejected() {
+		try {
+			PartitionAssignment.parse("0,two");
+			Assert.fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	@Test
+	public void RoundRobinAssignsEveryPartitionOnce() {
+		int[] assigned = new int[10];
+
+		for (int member = 0; member < 3; member++) {
+			for (int partition : PartitionAssignment.roundRobin(member, 3, 10)) {
+				assigned[partition]++;
+			}
+		}
+
+		for (int count : assigned) {
+			Assert.assertEquals(1, count);
+		}
+	}
+
+	@Test
+	public void CompositeSubjectNamesEveryPartition() {
+		Assert.assertEquals("SEARCH.ALL_INDEXES.1,SEARCH.ALL_INDEXES.3", PartitionAssignment.compositeSubject("SEARCH.ALL_INDEXES", new int[] {1, 3}));
+	}
+
+	@Test
+	public void ClassPartitionerKeepsAClassTogether() {
+		int partition = StandardPartitioner.ENTITY_CLASS.partition(new EntityKey("a.B", 1), 8);
+
+		for (int id = 2; id < 100; id++) {
+			Assert.assertEquals(partition, StandardPartitioner.ENTITY_CLASS.partition(new EntityKey("a.B", id), 8));
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/**
+ * Object Search Framework
+ *
+ * Copyright (C) 2010 Julian Klas
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package com.jklas.search.indexer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import junit.framework.Assert;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.jklas.search.exception.IndexObjectException;
+import com.jklas.search.index.dto.IndexObjectDto;
+import com.jklas.search.indexer.jms.BinaryIndexCodec;
+import com.jklas.search.indexer.jms.JmsIndexBatchPDU;
+import com.jklas.search.indexer.jms.JmsIndexPDU;
+import com.jklas.search.indexer.jms.JmsOfflineIndexer;
+import com.jklas.search.indexer.jms.JmsOfflineIndexerProducer;
+
+/**
+ * Bytes allocated per operation on the send path, as counted by the JVM
+ * for each thread. Skipped where the JVM doesn't count them.
+ * <p>
+ * Object sizes depend on the JVM, so each budget is a multiple of a
+ * baseline measured on the same JVM: the least work the path could do.
+ */
+public class SendPathAllocationTest {
+
+	private static final int WARM_UP_OPERATIONS = 20000;
+
+	private static final int MEASURED_OPERATIONS = 20000;
+
+	private static final int BATCH_SIZE = 64;
+
+	private static final long SEND_TIMEOUT_MILLIS = 60000;
+
+	private static ActiveMQConnectionFactory connectionFactory = null;
+
+	@BeforeClass
+	public static void setUp() {
+		connectionFactory = new ActiveMQConnectionFactory("vm://localhost?broker.persistent=false");
+	}
+
+	@Test
+	public void EnqueueingAllocatesLittleMoreThanTheOperation() throws IndexObjectException {
+		com.sun.management.ThreadMXBean threads = allocationCountingThreads();
+		if(threads == null) return;
+
+		// never started, so everything stays in the send queue
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom", connectionFactory);
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+
+		IndexObjectDto[] dtos = dtos(WARM_UP_OPERATIONS + MEASURED_OPERATIONS);
+
+		for (int i = 0; i < WARM_UP_OPERATIONS; i++) {
+			offlineIndexer.create(dtos[i]);
+		}
+
+		long threadId = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = WARM_UP_OPERATIONS; i < dtos.length; i++) {
+			offlineIndexer.create(dtos[i]);
+		}
+		long perOperation = (threads.getThreadAllocatedBytes(threadId) - before) / MEASURED_OPERATIONS;
+
+		// the PDU and the queue node
+		long baseline = queueingBaseline(threads, dtos);
+		Assert.assertTrue(perOperation + " bytes per operation, baseline " + baseline, perOperation <= 2 * baseline);
+	}
+
+	@Test
+	public void SendingBatchesAllocatesWithinBudget() throws Exception {
+		com.sun.management.ThreadMXBean threads = allocationCountingThreads();
+		if(threads == null) return;
+
+		JmsOfflineIndexerProducer tom = new JmsOfflineIndexerProducer("Tom", connectionFactory);
+		tom.setSubject("SEARCH.ALLOCATION");
+		tom.setCodec(new BinaryIndexCodec());
+		tom.setBatchSize(BATCH_SIZE);
+		JmsOfflineIndexer offlineIndexer = new JmsOfflineIndexer(tom);
+
+		IndexObjectDto[] dtos = dtos(WARM_UP_OPERATIONS + MEASURED_OPERATIONS);
+
+		Thread tomThread = new Thread(tom);
+		tomThread.start();
+
+		for (int i = 0; i < WARM_UP_OPERATIONS; i++) {
+			offlineIndexer.create(dtos[i]);
+		}
+		awaitSentCount(tom, WARM_UP_OPERATIONS);
+
+		long before = threads.getThreadAllocatedBytes(tomThread.getId());
+		for (int i = WARM_UP_OPERATIONS; i < dtos.length; i++) {
+			offlineIndexer.create(dtos[i]);
+		}
+		awaitSentCount(tom, dtos.length);
+		long perOperation = (threads.getThreadAllocatedBytes(tomThread.getId()) - before) / MEASURED_OPERATIONS;
+
+		tom.stopWhenDrained();
+		tomThread.join();
+
+		// mostly the JMS message and its marshalled form, shared by the batch
+		long baseline = encodingBaseline(threads, dtos);
+		Assert.assertTrue(perOperation + " bytes per operation, baseline " + baseline, perOperation <= 2 * baseline);
+	}
+
+	/**
+	 * Bytes per operation to build a PDU and put it on a queue.
+	 */
+	private static long queueingBaseline(com.sun.management.ThreadMXBean threads, IndexObjectDto[] dtos) {
+		LinkedBlockingQueue<Serializable> queue = new LinkedBlockingQueue<Serializable>();
+		for (int i = 0; i < WARM_UP_OPERATIONS; i++) {
+			queue.offer(new JmsIndexPDU(IndexerAction.CREATE, dtos[i]));
+		}
+
+		long threadId = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = WARM_UP_OPERATIONS; i < dtos.length; i++) {
+			queue.offer(new JmsIndexPDU(IndexerAction.CREATE, dtos[i]));
+		}
+		return (threads.getThreadAllocatedBytes(threadId) - before) / MEASURED_OPERATIONS;
+	}
+
+	/**
+	 * Bytes per operation to batch PDUs and encode them into a reused
+	 * buffer, without any JMS message.
+	 */
+	private static long encodingBaseline(com.sun.management.ThreadMXBean threads, IndexObjectDto[] dtos) throws IOException {
+		BinaryIndexCodec codec = new BinaryIndexCodec();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		encodeInBatches(codec, body, dtos, 0, WARM_UP_OPERATIONS);
+
+		long threadId = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(threadId);
+		encodeInBatches(codec, body, dtos, WARM_UP_OPERATIONS, dtos.length);
+		return (threads.getThreadAllocatedBytes(threadId) - before) / MEASURED_OPERATIONS;
+	}
+
+	private static void encodeInBatches(BinaryIndexCodec codec, ByteArrayOutputStream body, IndexObjectDto[] dtos, int from, int to) throws IOException {
+		for (int start = from; start < to; start += BATCH_SIZE) {
+			List<JmsIndexPDU> pdus = new ArrayList<JmsIndexPDU>(BATCH_SIZE);
+			for (int i = start; i < Math.min(start + BATCH_SIZE, to); i++) {
+				pdus.add(new JmsIndexPDU(IndexerAction.CREATE, dtos[i]));
+			}
+			body.reset();
+			codec.encode(new JmsIndexBatchPDU(pdus), body);
+		}
+	}
+
+	private static com.sun.management.ThreadMXBean allocationCountingThreads() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(!(threads instanceof com.sun.management.ThreadMXBean)) return null;
+
+		com.sun.management.ThreadMXBean allocationCounting = (com.sun.management.ThreadMXBean) threads;
+		if(!allocationCounting.isThreadAllocatedMemorySupported()) return null;
+
+		allocationCounting.setThreadAllocatedMemoryEnabled(true);
+		return allocationCounting;
+	}
+
+	private static IndexObjectDto[] dtos(int count) {
+		IndexObjectDto[] dtos = new IndexObjectDto[count];
+		for (int i = 0; i < count; i++) {
+			dtos[i] = new IndexObjectDto(new Utils.BeanEntity(i, "Julian" + i, "Klas" + i), i);
+		}
+		return dtos;
+	}
+
+	private static void awaitSentCount(JmsOfflineIndexerProducer producer, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + SEND_TIMEOUT_MILLIS;
+		while(producer.getSentCount() < count) {
+			if(System.currentTimeMillis() > deadline) {
+				Assert.fail("Producer sent " + producer.getSentCount() + " of " + count + " operations in " + SEND_TIMEOUT_MILLIS + " ms");
+			}
+			Thread.sleep(10);
+		}
+	}
+}
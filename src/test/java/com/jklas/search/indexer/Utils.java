@@ -98,6 +98,36 @@ public class Utils {
 		}
 	}
 	
+	@Indexable
+	public static class BeanEntity implements Serializable {
+
+		private static final long serialVersionUID = 2113826493398823532L;
+		
+		@SearchId private int id;
+		@SearchField private String attribute;
+		private String notMapped;
+		
+		public BeanEntity() {}
+		
+		public BeanEntity(int id, String attribute, String notMapped) {
+			this.id = id;
+			this.attribute = attribute;
+			this.notMapped = notMapped;
+		}
+		
+		public int getId() {
+			return id;
+		}
+		
+		public String getAttribute() {
+			return attribute;
+		}
+		
+		public String getNotMapped() {
+			return notMapped;
+		}
+	}
+	
 	@Indexable
 	public static class DoubleAttributeFiltrableEntity {
 		@SearchId public final int id;